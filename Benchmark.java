@@ -0,0 +1,767 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Benchmarks for the peer's hot paths, run from the project folder
+ * (the TLS ones need the keystore)
+ * e.x: java Benchmark threads 20000 50
+ */
+public class Benchmark {
+    // Connections of the benchmark, which plays a peer talking to the others
+    private static final ConnectionPool pool = new ConnectionPool(null);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage:\tBenchmark threads [<requests> [<reply_delay_ms>]]");
+            System.out.println("\tBenchmark routing [<lookups>]");
+            System.out.println("\tBenchmark keys [<iterations>]");
+            System.out.println("\tBenchmark metadata [<entries>]");
+            System.out.println("\tBenchmark chunking [<megabytes> [<edits>]]");
+            System.out.println("\tBenchmark erasure [<megabytes>]");
+            System.out.println("\tBenchmark compression [<megabytes>]");
+            System.out.println("\tBenchmark metrics [<requests>]");
+            System.out.println("\tBenchmark suite [<name_prefix> [<threads>]]");
+            return;
+        }
+
+        switch (args[0]) {
+            case "threads":
+                threads(args.length > 1 ? Integer.parseInt(args[1]) : 20000,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 50);
+                break;
+            case "keys":
+                keys(args.length > 1 ? Integer.parseInt(args[1]) : 2000000);
+                break;
+            case "metadata":
+                metadata(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+                break;
+            case "chunking":
+                chunking(args.length > 1 ? Integer.parseInt(args[1]) : 256,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 20);
+                break;
+            case "erasure":
+                erasure(args.length > 1 ? Integer.parseInt(args[1]) : 256);
+                break;
+            case "compression":
+                compression(args.length > 1 ? Integer.parseInt(args[1]) : 256);
+                break;
+            case "metrics":
+                metrics(args.length > 1 ? Integer.parseInt(args[1]) : 10000000);
+                break;
+            case "suite":
+                suite(args.length > 1 ? args[1] : "",
+                        args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+                break;
+            case "routing":
+                routing(args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+                break;
+            default:
+                System.out.println("Unknown benchmark " + args[0]);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Compares the platform and the virtual thread modes: every task makes a
+     * blocking call to a peer that takes delay ms to reply, like a request
+     * handler waiting on another peer
+     */
+    private static void threads(int requests, int delay) throws Exception {
+        Peer.setJSSEProperties();
+        InetSocketAddress server = startSlowPeer(delay);
+
+        System.out.println("requests: " + requests + ", reply delay: " + delay + "ms");
+        System.out.println("mode      | peak in flight | requests/s | time (ms)");
+        runThreads("platform", Executors.newFixedThreadPool(150), server, requests);
+
+        if (Threads.virtualThreadsAvailable()) {
+            runThreads("virtual", Threads.newVirtualExecutor(), server, requests);
+        } else {
+            System.out.println("virtual   | needs Java 21");
+        }
+    }
+
+    private static void runThreads(String mode, ExecutorService executor, InetSocketAddress server, int requests)
+            throws InterruptedException {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger peakInFlight = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(requests);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            executor.execute(() -> {
+                int current = inFlight.incrementAndGet();
+                peakInFlight.accumulateAndGet(current, Math::max);
+                try {
+                    pool.request(server, "TEST\n", ConnectionPool.REQUEST_TIMEOUT);
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                } finally {
+                    inFlight.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        executor.shutdown();
+
+        System.out.println(String.format("%-9s | %14d | %10.0f | %9d%s", mode, peakInFlight.get(),
+                requests * 1000.0 / Math.max(1, elapsed), elapsed,
+                failed.get() > 0 ? " (" + failed.get() + " failed)" : ""));
+    }
+
+    private interface Operation {
+        Object run(int i);
+    }
+
+    // Results are compared to this, so the JIT can't drop the code that makes them
+    private static Object marker = new Object();
+    private static volatile Object sink;
+
+    /**
+     * Times an operation with MicroBenchmark, like the suite does, then runs it
+     * iterations times in a loop to count the bytes it allocates per call. The
+     * loop doesn't store every result to the volatile sink: that fence cost
+     * more than the cheapest operations.
+     */
+    private static void measure(String name, int iterations, Operation operation) throws Exception {
+        double time = MicroBenchmark.nanosPerCall(operation::run);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            Object value = operation.run(i);
+            if (value == marker) {
+                sink = value;
+            }
+        }
+        allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+        System.out.println(String.format("%-32s | %8.1f | %10.1f", name, time, (double) allocated / iterations));
+    }
+
+    /**
+     * Compares the key operations on the hot paths with the BigInteger mod 2^8
+     * versions they replaced
+     */
+    private static void keys(int iterations) throws Exception {
+        Random random = new Random(42);
+        int count = 1024;
+        int mask = count - 1;
+        BigInteger ringSize = new BigInteger("2").pow(8);
+        BigInteger[] bigIds = new BigInteger[count];
+        Key[] ids = new Key[count];
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "127.0.0.1:" + (8000 + i);
+            bigIds[i] = legacySHA1(names[i]).mod(ringSize);
+            ids[i] = Key.of(Helper.getSHA1(names[i]));
+        }
+        FingerTable fingerTable = new FingerTable(Key.BITS, new OutsidePeer(new InetSocketAddress("127.0.0.1", 8000)));
+
+        System.out.println("iterations: " + iterations + ", identifier bits: " + Key.BITS);
+        System.out.println("operation                        |  ns/call | bytes/call");
+        measure("middlePeer BigInteger", iterations,
+                i -> legacyMiddlePeer(bigIds[i & mask], bigIds[(i + 1) & mask], bigIds[(i + 7) & mask]));
+        measure("middlePeer Key", iterations,
+                i -> Helper.middlePeer(ids[i & mask], ids[(i + 1) & mask], ids[(i + 7) & mask]));
+        measure("calculateFinger BigInteger", iterations,
+                i -> bigIds[i & mask].add(new BigInteger("2").pow(i & 7)).mod(new BigInteger("2").pow(8)));
+        measure("calculateFinger Key", iterations, i -> ids[i & mask].plusPowerOfTwo(i % Key.BITS));
+        measure("finger start (precomputed)", iterations, i -> fingerTable.getStart(i % Key.BITS));
+        measure("peer id BigInteger", iterations / 10, i -> legacySHA1(names[i & mask]).mod(ringSize));
+        measure("peer id Key", iterations / 10, i -> Key.of(Helper.getSHA1(names[i & mask])));
+    }
+
+    private static boolean legacyMiddlePeer(BigInteger id, BigInteger lBound, BigInteger rBound) {
+        if (lBound.compareTo(rBound) > 0)
+            if (id.compareTo(lBound) >= 0 || id.compareTo(rBound) <= 0) {
+                return true;
+            }
+
+        return id.compareTo(lBound) >= 0 && id.compareTo(rBound) <= 0;
+    }
+
+    private static BigInteger legacySHA1(String input) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return new BigInteger(1, digest.digest(input.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Logs entries stored files and as many file locations, then measures how
+     * long a peer takes to load them back on a restart
+     */
+    private static void metadata(int entries) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("metadata");
+        Random random = new Random(42);
+        OutsidePeer[] holders = new OutsidePeer[16];
+        for (int i = 0; i < holders.length; i++) {
+            holders[i] = new OutsidePeer(new InetSocketAddress("127.0.0.1", 8000 + i));
+        }
+
+        Storage storage = new Storage(pool);
+        storage.load(directory);
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            Key fileId = Key.random(random);
+            storage.addStoredFile(fileId, random.nextInt(1 << 20));
+            storage.addFileLocation(fileId, holders[i % holders.length]);
+        }
+        storage.sync();
+        long logged = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("logged " + 2 * entries + " changes in " + logged + "ms ("
+                + (long) (2000.0 * entries / Math.max(1, logged)) + " changes/s)");
+
+        // Compaction runs in the background once a segment is full
+        Thread.sleep(2000);
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                size += Files.size(file);
+            }
+        }
+        System.out.println("on disk: " + size / (1024 * 1024) + " MB");
+
+        start = System.nanoTime();
+        Storage restarted = new Storage(pool);
+        restarted.load(directory);
+        System.out.println("restart: " + restarted.getStoredFiles().size() + " stored files, "
+                + restarted.getFileLocations().size() + " locations, "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Backs up a file and then a copy of it with a few small insertions and
+     * deletions, counting the bytes the copy adds with content-defined chunks
+     * and with fixed-size blocks
+     */
+    private static void chunking(int megabytes, int edits) throws IOException {
+        Random random = new Random(42);
+        byte[] original = new byte[megabytes * 1024 * 1024];
+        random.nextBytes(original);
+
+        ByteArrayOutputStream edited = new ByteArrayOutputStream(original.length + edits * 64);
+        int[] positions = new int[edits];
+        for (int i = 0; i < edits; i++) {
+            positions[i] = random.nextInt(original.length);
+        }
+        Arrays.sort(positions);
+        int from = 0;
+        for (int i = 0; i < edits; i++) {
+            int to = Math.max(from, positions[i]);
+            edited.write(original, from, to - from);
+            if (i % 2 == 0) {
+                byte[] inserted = new byte[1 + random.nextInt(64)];
+                random.nextBytes(inserted);
+                edited.write(inserted, 0, inserted.length);
+                from = to;
+            } else {
+                from = Math.min(original.length, to + 1 + random.nextInt(64));
+            }
+        }
+        edited.write(original, from, original.length - from);
+        byte[] copy = edited.toByteArray();
+
+        Set<Key> chunks = new HashSet<Key>();
+        long start = System.nanoTime();
+        chunk(new ByteArrayInputStream(original), chunks);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long chunkedNew = chunk(new ByteArrayInputStream(copy), chunks);
+
+        Set<Key> blocks = new HashSet<Key>();
+        block(original, blocks);
+        long blockedNew = block(copy, blocks);
+
+        System.out.println(megabytes + " MB, " + edits + " edits, " + chunks.size() + " chunks");
+        System.out.println("content-defined chunks: " + String.format("%.0f", megabytes / seconds)
+                + " MB/s (with SHA-1), copy sends " + chunkedNew + " bytes ("
+                + String.format("%.2f", 100.0 * chunkedNew / copy.length) + "%)");
+        System.out.println("fixed " + Chunker.AVERAGE_SIZE / 1024 + " KiB blocks: copy sends " + blockedNew
+                + " bytes (" + String.format("%.2f", 100.0 * blockedNew / copy.length) + "%)");
+    }
+
+    /**
+     * Encodes a file into Reed-Solomon fragments and decodes it back from the
+     * last k of them (as many parity fragments as possible), for a few codes
+     */
+    private static void erasure(int megabytes) throws IOException {
+        byte[] data = new byte[megabytes * 1024 * 1024];
+        new Random(42).nextBytes(data);
+        Path directory = Files.createTempDirectory("erasure");
+        int[][] codes = { { 2, 1 }, { 4, 2 }, { 10, 4 } };
+
+        System.out.println(megabytes + " MB");
+        System.out.println("code | stored | encode MB/s | decode MB/s (from parity)");
+        for (int[] code : codes) {
+            int k = code[0];
+            Fragments.Header[] headers = Fragments.headers(data.length, k, code[1]);
+            OutputStream[] fragments = new OutputStream[headers.length];
+            List<Path> files = new ArrayList<Path>();
+            for (int i = 0; i < headers.length; i++) {
+                files.add(directory.resolve("fragment" + i));
+                fragments[i] = new BufferedOutputStream(Files.newOutputStream(files.get(i)), Helper.CHUNK_SIZE);
+            }
+
+            long start = System.nanoTime();
+            Fragments.encode(new ByteArrayInputStream(data), headers, fragments);
+            for (OutputStream fragment : fragments) {
+                fragment.close();
+            }
+            double encode = megabytes / ((System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            Fragments.decode(files.subList(headers.length - k, headers.length), new ByteArrayOutputStream(data.length));
+            double decode = megabytes / ((System.nanoTime() - start) / 1e9);
+
+            System.out.println(String.format("%2d+%d | %5.2fx | %11.0f | %11.0f", k, code[1],
+                    (double) headers.length / k, encode, decode));
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Compresses and decompresses log-like text and random bytes, at the level
+     * given by sdis.compressionLevel
+     */
+    private static void compression(int megabytes) throws IOException {
+        byte[] text = new byte[megabytes * 1024 * 1024];
+        Random random = new Random(42);
+        StringBuilder lines = new StringBuilder();
+        String[] levels = { "INFO", "INFO", "INFO", "WARN", "DEBUG" };
+        for (int i = 0; lines.length() < text.length; i++) {
+            lines.append("2020-05-").append(10 + i / 1000000).append(' ').append(levels[random.nextInt(levels.length)])
+                    .append(" request ").append(i).append(" from 10.0.").append(random.nextInt(256)).append('.')
+                    .append(random.nextInt(256)).append(" took ").append(random.nextInt(500)).append(" ms\n");
+        }
+        System.arraycopy(lines.toString().getBytes(StandardCharsets.US_ASCII), 0, text, 0, text.length);
+        byte[] randomBytes = new byte[text.length];
+        random.nextBytes(randomBytes);
+
+        System.out.println(megabytes + " MB, level " + Config.COMPRESSION_LEVEL);
+        System.out.println("data   | stored | compress MB/s | decompress MB/s");
+        compression("text", text);
+        compression("random", randomBytes);
+    }
+
+    private static void compression(String name, byte[] data) throws IOException {
+        double megabytes = data.length / (1024.0 * 1024);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length + data.length / 1000);
+        long start = System.nanoTime();
+        Compression.compress(new ByteArrayInputStream(data), data.length, compressed);
+        double compress = megabytes / ((System.nanoTime() - start) / 1e9);
+
+        ByteArrayOutputStream restored = new ByteArrayOutputStream(data.length);
+        start = System.nanoTime();
+        Compression.decompress(new ByteArrayInputStream(compressed.toByteArray()), restored);
+        double decompress = megabytes / ((System.nanoTime() - start) / 1e9);
+        if (!Arrays.equals(data, restored.toByteArray())) {
+            throw new IllegalStateException("Compression changed the data");
+        }
+
+        System.out.println(String.format("%-6s | %5.1f%% | %13.0f | %15.0f", name,
+                100.0 * compressed.size() / data.length, compress, decompress));
+    }
+
+    /**
+     * Times what the metrics add to every request handled, on one thread and
+     * on as many as there are cores, and checks the histogram's percentiles
+     * against the exact ones
+     */
+    private static void metrics(int requests) throws Exception {
+        Metrics metrics = new Metrics(null);
+        String[] commands = { "BACKUP", "FORWARD", "MARCO", "FINDPREDECESSOR", "STORED", "TEST" };
+
+        System.out.println("operation                        | ns/call | bytes/call");
+        Histogram histogram = new Histogram();
+        measure("Histogram.record", requests, i -> {
+            histogram.record(i & 0xFFFFF);
+            return histogram;
+        });
+        measure("handling + handled", requests, i -> {
+            metrics.handled(commands[i % commands.length], metrics.handling(), 0, "OK");
+            return metrics;
+        });
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < requests / threads; i++) {
+                    metrics.handled(commands[i % commands.length], metrics.handling(), 0, "OK");
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        System.out.println(String.format("%-32s | %8.1f |", "handling + handled, " + threads + " threads",
+                (double) (System.nanoTime() - start) / (requests / threads)));
+
+        // Log-normal latencies, like request times
+        Random random = new Random(42);
+        long[] values = new long[1000000];
+        Histogram latencies = new Histogram();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(6 + 1.5 * random.nextGaussian());
+            latencies.record(values[i]);
+        }
+        Arrays.sort(values);
+        System.out.println("percentile | exact | histogram");
+        for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+            long exact = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            System.out.println(String.format("%10.1f | %5d | %9d", percentile, exact, latencies.percentile(percentile)));
+        }
+    }
+
+    /**
+     * Runs the hot paths of the ring, the storage and the connections under
+     * MicroBenchmark, the ones names start with the prefix given. The ones
+     * that contend for something run on one thread and on many.
+     */
+    private static void suite(String prefix, int threads) throws Exception {
+        Peer.setJSSEProperties();
+        Random random = new Random(42);
+        int count = 1024;
+        int mask = count - 1;
+        String[] names = new String[count];
+        Key[] ids = new Key[count];
+        OutsidePeer[] holders = new OutsidePeer[16];
+        for (int i = 0; i < count; i++) {
+            names[i] = "127.0.0.1:" + (8000 + i);
+            ids[i] = Key.of(Helper.getSHA1(names[i]));
+        }
+        for (int i = 0; i < holders.length; i++) {
+            holders[i] = new OutsidePeer(new InetSocketAddress("127.0.0.1", 8000 + i));
+        }
+        byte[] chunk = new byte[Helper.CHUNK_SIZE];
+        random.nextBytes(chunk);
+
+        // The table of 127.0.0.1:8000 in a ring of 64 peers
+        FingerTable fingerTable = ringFingerTable(64);
+        Key self = holders[0].getId();
+        OutsidePeer successor = fingerTable.getPeer(0);
+
+        Storage storage = new Storage(pool);
+        for (int i = 0; i < count; i += 2) {
+            storage.addStoredFile(ids[i], i);
+            storage.addFileLocation(ids[i], holders[i % holders.length]);
+        }
+        Path logDirectory = Files.createTempDirectory("suite");
+        Storage loggedStorage = new Storage(pool);
+        loggedStorage.load(logDirectory);
+
+        // Headers as RequestHandler reads them off a connection
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            headerBytes.write((i + " 65536 BACKUP 127.0.0.1 8001 127.0.0.1 8002 " + ids[i] + " 2 65536\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        byte[] headers = headerBytes.toByteArray();
+        InputStream[] headerStream = { new ByteArrayInputStream(headers) };
+
+        InetSocketAddress server = startSlowPeer(0);
+        int[] threadCounts = threads > 1 ? new int[] { 1, threads } : new int[] { 1 };
+
+        MicroBenchmark.header();
+        if (selected(prefix, "sha1")) {
+            MicroBenchmark.time("sha1.peerId", 1, i -> Helper.getSHA1(names[i & mask]));
+            MicroBenchmark.throughput("sha1.chunk", 1, chunk.length, i -> Helper.getSHA1(chunk, 0, chunk.length));
+        }
+        if (selected(prefix, "ring")) {
+            MicroBenchmark.time("ring.middlePeer", 1,
+                    i -> Helper.middlePeer(ids[i & mask], ids[(i + 1) & mask], ids[(i + 7) & mask]));
+            MicroBenchmark.time("ring.calculateFinger", 1,
+                    i -> fingerTable.calculateFinger(ids[i & mask], i % Key.BITS));
+            MicroBenchmark.time("ring.closestPrecedingFinger", 1,
+                    i -> fingerTable.closestPrecedingFinger(self, ids[i & mask]));
+            MicroBenchmark.time("ring.nextHop", 1, i -> fingerTable.nextHop(self, successor, ids[i & mask]));
+        }
+        for (int n : threadCounts) {
+            if (selected(prefix, "storage")) {
+                MicroBenchmark.time("storage.read", n,
+                        i -> storage.hasFileStored(ids[i & mask]) || storage.hasFileLocation(ids[i & mask]));
+                MicroBenchmark.time("storage.write", n, i -> {
+                    if ((i & 1) == 0) {
+                        storage.addStoredFile(ids[i & mask], i);
+                    } else {
+                        storage.removeStoredFile(ids[(i - 1) & mask]);
+                    }
+                    return storage;
+                });
+                MicroBenchmark.time("storage.mixed", n, i -> {
+                    if (i % 10 == 0) {
+                        storage.addFileLocation(ids[i & mask], holders[i & 15]);
+                        return storage;
+                    }
+                    return storage.hasFileStored(ids[i & mask]);
+                });
+                MicroBenchmark.time("storage.write.logged", n, i -> {
+                    loggedStorage.addStoredFile(ids[i & mask], i);
+                    return loggedStorage;
+                });
+            }
+            if (selected(prefix, "framing")) {
+                MicroBenchmark.time("framing.roundTrip", n,
+                        i -> pool.request(server, "TEST\n", ConnectionPool.REQUEST_TIMEOUT));
+                MicroBenchmark.throughput("framing.body", n, chunk.length, i -> {
+                    pool.send(server, "BACKUP 127.0.0.1 8001 127.0.0.1 8002 " + ids[i & mask] + " 2 " + chunk.length
+                            + "\n", new ByteArrayInputStream(chunk), chunk.length);
+                    return server;
+                });
+            }
+        }
+        if (selected(prefix, "request")) {
+            MicroBenchmark.time("request.parse", 1, i -> {
+                if (headerStream[0].available() == 0) {
+                    headerStream[0] = new ByteArrayInputStream(headers);
+                }
+                String[] frame = Helper.readLine(headerStream[0]).split(" ", 3);
+                Long.parseLong(frame[0]);
+                Long.parseLong(frame[1]);
+                return frame[2].split(" ");
+            });
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(logDirectory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(logDirectory);
+    }
+
+    private static boolean selected(String prefix, String group) {
+        return group.startsWith(prefix) || prefix.startsWith(group);
+    }
+
+    /**
+     * Builds the exact finger table of the first of peers peers on the
+     * loopback address
+     */
+    private static FingerTable ringFingerTable(int peers) {
+        List<OutsidePeer> ring = new ArrayList<OutsidePeer>();
+        for (int i = 0; i < peers; i++) {
+            ring.add(new OutsidePeer(new InetSocketAddress("127.0.0.1", 8000 + i)));
+        }
+        OutsidePeer self = ring.get(0);
+        ring.sort((a, b) -> a.getId().compareTo(b.getId()));
+
+        FingerTable fingerTable = new FingerTable(Key.BITS, self);
+        for (int i = 0; i < Key.BITS; i++) {
+            Key start = fingerTable.getStart(i);
+            OutsidePeer finger = ring.get(0);
+            for (OutsidePeer peer : ring) {
+                if (peer.getId().compareTo(start) >= 0) {
+                    finger = peer;
+                    break;
+                }
+            }
+            fingerTable.add(finger, i);
+        }
+        return fingerTable;
+    }
+
+    /**
+     * Adds the chunks of a stream to the set, returning the bytes of the new ones
+     */
+    private static long chunk(InputStream in, Set<Key> chunks) throws IOException {
+        Chunker chunker = new Chunker(in);
+        long added = 0;
+        int length;
+        while ((length = chunker.next()) > 0) {
+            if (chunks.add(Key.of(Helper.getSHA1(chunker.getBuffer(), 0, length)))) {
+                added += length;
+            }
+        }
+        return added;
+    }
+
+    private static long block(byte[] data, Set<Key> blocks) {
+        long added = 0;
+        for (int offset = 0; offset < data.length; offset += Chunker.AVERAGE_SIZE) {
+            int length = Math.min(Chunker.AVERAGE_SIZE, data.length - offset);
+            if (blocks.add(Key.of(Helper.getSHA1(data, offset, length)))) {
+                added += length;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Routes random keys on rings of growing size, with exact finger tables,
+     * and compares the hops taken with walking the successors
+     */
+    private static void routing(int lookups) {
+        Random random = new Random(42);
+
+        System.out.println("lookups: " + lookups + ", identifier bits: " + Helper.getNumberOfNodes());
+        System.out.println("peers | log2(N) | finger hops (mean/max) | successor hops (mean/max)");
+        for (int peers = 4; peers <= 1024; peers *= 2) {
+            // Real peer ids, from the addresses they would have
+            TreeMap<Key, OutsidePeer> ring = new TreeMap<Key, OutsidePeer>();
+            for (int port = 8000; ring.size() < peers; port++) {
+                OutsidePeer peer = new OutsidePeer(new InetSocketAddress("127.0.0.1", port));
+                ring.put(peer.getId(), peer);
+            }
+
+            Map<Key, FingerTable> fingerTables = new HashMap<Key, FingerTable>();
+            for (OutsidePeer peer : ring.values()) {
+                FingerTable fingerTable = new FingerTable(Helper.getNumberOfNodes(), peer);
+                for (int i = 0; i < fingerTable.getSize(); i++) {
+                    fingerTable.add(successor(ring, fingerTable.calculateFinger(peer.getId(), i)), i);
+                }
+                fingerTables.put(peer.getId(), fingerTable);
+            }
+
+            long fingerHops = 0, successorHops = 0;
+            int maxFingerHops = 0, maxSuccessorHops = 0;
+            List<OutsidePeer> peerList = new ArrayList<OutsidePeer>(ring.values());
+            for (int i = 0; i < lookups; i++) {
+                OutsidePeer start = peerList.get(random.nextInt(peers));
+                Key key = Key.random(random);
+
+                int hops = 0;
+                OutsidePeer current = start;
+                // Same check the handlers make to know they own the key
+                while (!Helper.middlePeer(key, predecessor(ring, current.getId()).getId(), current.getId())) {
+                    current = fingerTables.get(current.getId()).nextHop(current.getId(),
+                            successor(ring, current.getId().plusPowerOfTwo(0)), key);
+                    hops++;
+                }
+                fingerHops += hops;
+                maxFingerHops = Math.max(maxFingerHops, hops);
+
+                hops = 0;
+                current = start;
+                while (!Helper.middlePeer(key, predecessor(ring, current.getId()).getId(), current.getId())) {
+                    current = successor(ring, current.getId().plusPowerOfTwo(0));
+                    hops++;
+                }
+                successorHops += hops;
+                maxSuccessorHops = Math.max(maxSuccessorHops, hops);
+            }
+
+            System.out.println(String.format("%5d | %7.1f | %15.2f / %-4d | %18.2f / %d", peers,
+                    Math.log(peers) / Math.log(2), (double) fingerHops / lookups, maxFingerHops,
+                    (double) successorHops / lookups, maxSuccessorHops));
+        }
+    }
+
+    /**
+     * First peer at or after key, going clockwise
+     */
+    private static OutsidePeer successor(TreeMap<Key, OutsidePeer> ring, Key key) {
+        Map.Entry<Key, OutsidePeer> entry = ring.ceilingEntry(key);
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static OutsidePeer predecessor(TreeMap<Key, OutsidePeer> ring, Key id) {
+        Map.Entry<Key, OutsidePeer> entry = ring.lowerEntry(id);
+        return entry != null ? entry.getValue() : ring.lastEntry().getValue();
+    }
+
+    /**
+     * Starts a TLS server that speaks the peer framing and answers every
+     * request after a delay
+     */
+    private static InetSocketAddress startSlowPeer(int delay) throws IOException {
+        SSLServerSocket serverSocket = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(0);
+        ScheduledExecutorService replies = Executors.newScheduledThreadPool(2);
+
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    SSLSocket socket = (SSLSocket) serverSocket.accept();
+                    Thread reader = new Thread(() -> serveSlowly(socket, replies, delay));
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        return new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort());
+    }
+
+    private static void serveSlowly(SSLSocket socket, ScheduledExecutorService replies, int delay) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            ReentrantLock writeLock = new ReentrantLock();
+
+            String header;
+            while ((header = Helper.readLine(in)) != null) {
+                // <request_id> <body_length> <message>
+                String[] frame = header.split(" ", 3);
+                new DataInputStream(in).skipBytes(Integer.parseInt(frame[1]));
+                replies.schedule(() -> {
+                    writeLock.lock();
+                    try {
+                        out.writeBytes(frame[0] + " OK\n");
+                        out.flush();
+                    } catch (IOException e) {
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+        }
+    }
+}
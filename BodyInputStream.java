@@ -0,0 +1,101 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Body of a received request. Reads no further than the body's length and
+ * leaves the connection open when closed. The connection's reader waits for
+ * the end of the body, not for the handler reading it.
+ */
+class BodyInputStream extends InputStream {
+    private final InputStream in;
+    private final CountDownLatch end = new CountDownLatch(1);
+    private volatile long remaining;
+
+    public BodyInputStream(InputStream in, long length) {
+        this.in = in;
+        this.remaining = length;
+    }
+
+    /**
+     * Gets the number of body bytes not read yet
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException(remaining + " body bytes missing");
+        }
+        if (--remaining == 0) {
+            end.countDown();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+
+        int read = in.read(b, off, (int) Math.min(len, remaining));
+        if (read == -1) {
+            throw new EOFException(remaining + " body bytes missing");
+        }
+        remaining -= read;
+        if (remaining == 0) {
+            end.countDown();
+        }
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * Skips the part of the body the handler didn't read, so the next request
+     * can be read from the connection
+     */
+    public void drain() throws IOException {
+        byte[] buffer = new byte[(int) Math.min(remaining, Helper.CHUNK_SIZE)];
+
+        while (remaining > 0) {
+            read(buffer, 0, buffer.length);
+        }
+    }
+
+    /**
+     * Lets the connection's reader go on, once the body was read or can't be
+     */
+    public void finish() {
+        end.countDown();
+    }
+
+    /**
+     * Waits until the whole body was read, or finish was called
+     */
+    public void awaitEnd() throws InterruptedIOException {
+        try {
+            end.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-size buffer between an event loop, which fills it with a request's
+ * body as it arrives, and the handler reading that body. When it's full the
+ * event loop stops reading the connection until the handler catches up.
+ */
+class BodyPipe extends InputStream {
+    private static final int CAPACITY = 4 * Helper.CHUNK_SIZE;
+
+    private final byte[] buffer = new byte[CAPACITY];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Runnable onSpace;
+    private int head;
+    private int count;
+    private long missing;
+    private boolean waitingForSpace;
+    private boolean closed;
+
+    /**
+     * @param length  body length
+     * @param onSpace called when there is room again after offer couldn't take
+     *                everything
+     */
+    public BodyPipe(long length, Runnable onSpace) {
+        this.missing = length;
+        this.onSpace = onSpace;
+    }
+
+    /**
+     * Gets the number of body bytes that haven't been offered yet
+     */
+    public long getMissing() {
+        lock.lock();
+        try {
+            return missing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves as much of the body as fits from src, returning how much was moved.
+     * Once the handler is done with the body the rest is thrown away.
+     */
+    public int offer(ByteBuffer src) {
+        lock.lock();
+        try {
+            int wanted = (int) Math.min(src.remaining(), missing);
+            int length = wanted;
+
+            if (!closed) {
+                length = Math.min(wanted, CAPACITY - count);
+                int tail = (head + count) % CAPACITY;
+                int first = Math.min(length, CAPACITY - tail);
+                src.get(buffer, tail, first);
+                src.get(buffer, 0, length - first);
+                count += length;
+                waitingForSpace = length < wanted;
+                notEmpty.signalAll();
+            } else {
+                src.position(src.position() + length);
+            }
+
+            missing -= length;
+            if (missing == 0) {
+                notEmpty.signalAll();
+            }
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        boolean resume = false;
+
+        lock.lock();
+        try {
+            while (count == 0) {
+                if (missing == 0) {
+                    return -1;
+                }
+                if (closed) {
+                    throw new EOFException("Body closed");
+                }
+                notEmpty.awaitUninterruptibly();
+            }
+
+            int length = Math.min(len, count);
+            int first = Math.min(length, CAPACITY - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, length - first);
+            head = (head + length) % CAPACITY;
+            count -= length;
+
+            resume = waitingForSpace && count <= CAPACITY / 2;
+            if (resume) {
+                waitingForSpace = false;
+            }
+            return length;
+        } finally {
+            lock.unlock();
+            if (resume) {
+                onSpace.run();
+            }
+        }
+    }
+
+    /**
+     * Called when the connection is lost before the whole body arrived
+     */
+    public void fail() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the handler when it's done, the rest of the body is discarded
+     */
+    @Override
+    public void close() {
+        boolean resume;
+
+        lock.lock();
+        try {
+            closed = true;
+            count = 0;
+            resume = waitingForSpace;
+            waitingForSpace = false;
+        } finally {
+            lock.unlock();
+        }
+
+        if (resume) {
+            onSpace.run();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * What a backed up body holds, told along with it by the peer backing it up,
+ * kept by every holder and told again to the peer restoring it, so nobody has
+ * to guess from its first bytes: a user's file may start with anything. It's
+ * a set of flags, sent as a number.
+ */
+public class BodyType {
+    // The file, or chunk, as it is
+    public static final int PLAIN = 0;
+    // Compressed, see Compression
+    public static final int COMPRESSED = 1;
+    // A chunked backup's list of chunks, see Manifest
+    public static final int MANIFEST = 2;
+    // One of the erasure-coded fragments of the body, see Fragments
+    public static final int FRAGMENT = 4;
+    private static final int ALL = COMPRESSED | MANIFEST | FRAGMENT;
+
+    public static boolean isCompressed(int type) {
+        return (type & COMPRESSED) != 0;
+    }
+
+    public static boolean isManifest(int type) {
+        return (type & MANIFEST) != 0;
+    }
+
+    public static boolean isFragment(int type) {
+        return (type & FRAGMENT) != 0;
+    }
+
+    /**
+     * Reads the type field of a request
+     *
+     * @throws IllegalArgumentException if it isn't one
+     */
+    public static int parse(String field) {
+        int type = Integer.parseInt(field);
+        if ((type & ~ALL) != 0) {
+            throw new IllegalArgumentException("Unknown body type " + field);
+        }
+        return type;
+    }
+}
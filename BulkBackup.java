@@ -0,0 +1,227 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Backup of many files at once, a directory tree or a list. Directories are
+ * listed and files read by a pool of threads. Small files are sent to the
+ * owner of their key in batches, one request for many files, and larger ones
+ * are backed up one by one, still in parallel.
+ */
+public class BulkBackup {
+    private static final int THREADS = 16;
+    // Files up to this size go in batches, of up to these many bytes or files
+    private static final int MAX_BATCHED_FILE = Helper.CHUNK_SIZE;
+    private static final int MAX_BATCH_SIZE = 16 * Helper.CHUNK_SIZE;
+    private static final int MAX_BATCH_FILES = 512;
+
+    private final Peer peer;
+    private final int replicationDegree;
+    private final ExecutorService pool = Threads.isVirtual() ? Threads.newVirtualExecutor()
+            : Executors.newFixedThreadPool(THREADS);
+    // Result of every file, by the name it was backed up with
+    private final ConcurrentHashMap<String, String> results = new ConcurrentHashMap<String, String>();
+    // Batches being filled, by owner
+    private final Map<Key, Batch> batches = new HashMap<Key, Batch>();
+    private final List<CompletableFuture<Void>> sends = new ArrayList<CompletableFuture<Void>>();
+
+    private static class Batch {
+        final OutsidePeer owner;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<Key, String> files = new HashMap<Key, String>();
+
+        Batch(OutsidePeer owner) {
+            this.owner = owner;
+        }
+    }
+
+    public BulkBackup(Peer peer, int replicationDegree) {
+        this.peer = peer;
+        this.replicationDegree = replicationDegree;
+    }
+
+    /**
+     * Backs up every regular file under a directory
+     *
+     * @return the result of every file: OK and its copies, or ERROR and why
+     */
+    public Map<String, String> backupDirectory(Path directory) {
+        try {
+            walk(directory).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            results.put(directory.toString(), "ERROR " + e.getCause());
+        }
+        return finish();
+    }
+
+    /**
+     * Backs up the given files
+     *
+     * @return the result of every file: OK and its copies, or ERROR and why
+     */
+    public Map<String, String> backupFiles(List<String> fileNames) {
+        List<CompletableFuture<Void>> files = new ArrayList<CompletableFuture<Void>>();
+        for (String fileName : fileNames) {
+            files.add(CompletableFuture.runAsync(() -> add(Paths.get(fileName)), pool));
+        }
+        CompletableFuture.allOf(files.toArray(new CompletableFuture<?>[0])).join();
+        return finish();
+    }
+
+    private CompletableFuture<Void> walk(Path directory) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<CompletableFuture<Void>> subdirectories = new ArrayList<CompletableFuture<Void>>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        subdirectories.add(walk(entry));
+                    } else if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                results.put(directory.toString(), "ERROR " + e);
+            }
+            return subdirectories;
+        }, pool).thenCompose(subdirectories -> CompletableFuture
+                .allOf(subdirectories.toArray(new CompletableFuture<?>[0])));
+    }
+
+    private void add(Path file) {
+        String fileName = file.toString();
+        try {
+            long length = Files.size(file);
+            if (length > MAX_BATCHED_FILE || Config.isContentDefinedChunking()) {
+                results.put(fileName, peer.backup(fileName, replicationDegree));
+                return;
+            }
+
+            byte[] content = Files.readAllBytes(file);
+            int type = BodyType.PLAIN;
+            if (Config.isCompressed()) {
+                content = Compression.compress(content, 0, content.length);
+                type = BodyType.COMPRESSED;
+            }
+            Key fileId = Helper.getFileId(fileName);
+            peer.getStorage().addAskedFile(fileId);
+            batch(fileName, fileId, content, type);
+        } catch (IOException e) {
+            results.put(fileName, "ERROR " + e);
+        }
+    }
+
+    private void batch(String fileName, Key fileId, byte[] content, int type) throws IOException {
+        OutsidePeer owner = peer.findOwner(fileId);
+        Batch full = null;
+
+        synchronized (batches) {
+            Batch batch = batches.get(owner.getId());
+            if (batch == null) {
+                batch = new Batch(owner);
+                batches.put(owner.getId(), batch);
+            }
+
+            // <file_key> <length> <body_type>\n<bytes>
+            batch.body.write((fileId + " " + content.length + " " + type + "\n").getBytes(StandardCharsets.US_ASCII));
+            batch.body.write(content);
+            batch.files.put(fileId, fileName);
+            if (batch.body.size() >= MAX_BATCH_SIZE || batch.files.size() >= MAX_BATCH_FILES) {
+                full = batches.remove(owner.getId());
+            }
+        }
+
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    private void send(Batch batch) {
+        for (String fileName : batch.files.values()) {
+            results.put(fileName, "ERROR no reply from " + batch.owner.getId());
+        }
+
+        // BATCH <count> <rep_degree> <body_length>
+        String message = "BATCH " + batch.files.size() + " " + replicationDegree + " " + batch.body.size() + "\n";
+        CompletableFuture<Void> sent;
+        try {
+            sent = peer.getConnectionPool().send(batch.owner.getInetSocketAddress(), message, batch.body.toByteArray())
+                    .thenAccept(reply -> results(batch, reply));
+        } catch (IOException e) {
+            sent = new CompletableFuture<Void>();
+            sent.completeExceptionally(e);
+        }
+
+        sent = sent.exceptionally(e -> {
+            for (String fileName : batch.files.values()) {
+                results.put(fileName, "ERROR " + e);
+            }
+            return null;
+        });
+        synchronized (sends) {
+            sends.add(sent);
+        }
+    }
+
+    private void results(Batch batch, String reply) {
+        // OK <file_key> <copies> ..., for every file
+        String[] fields = reply.trim().split(" ");
+        Map<Key, Integer> copies = new HashMap<Key, Integer>();
+        for (int i = 1; fields[0].equals("OK") && i + 1 < fields.length; i += 2) {
+            copies.put(Key.parse(fields[i]), Integer.parseInt(fields[i + 1]));
+        }
+
+        for (Map.Entry<Key, String> file : batch.files.entrySet()) {
+            Integer stored = copies.get(file.getKey());
+            if (stored == null) {
+                results.put(file.getValue(), "ERROR " + batch.owner.getId() + " replied " + reply.trim());
+            } else {
+                results.put(file.getValue(), stored > 0 ? "OK " + stored : "ERROR no peer stored the file");
+            }
+        }
+    }
+
+    /**
+     * Sends the batches left and waits for every reply
+     */
+    private Map<String, String> finish() {
+        List<Batch> left;
+        synchronized (batches) {
+            left = new ArrayList<Batch>(batches.values());
+            batches.clear();
+        }
+        for (Batch batch : left) {
+            send(batch);
+        }
+
+        List<CompletableFuture<Void>> all;
+        synchronized (sends) {
+            all = new ArrayList<CompletableFuture<Void>>(sends);
+        }
+        for (CompletableFuture<Void> sent : all) {
+            try {
+                ConnectionPool.await(sent.thenApply(done -> ""), ConnectionPool.REQUEST_TIMEOUT);
+            } catch (IOException e) {
+                // Counted as an error of its files when it failed
+            }
+        }
+        pool.shutdown();
+
+        return new TreeMap<String, String>(results);
+    }
+}
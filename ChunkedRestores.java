@@ -0,0 +1,354 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Restores this peer is waiting for. The file given back for a restore may be
+ * the manifest of a chunked backup, in which case its chunks are restored one
+ * after the other and put together in place of the manifest. A file, or chunk,
+ * stored in erasure-coded fragments comes back as k fragments, decoded once
+ * they're all here. A file held whole by several peers comes back in ranges,
+ * one from each of them, written in place as they arrive.
+ */
+public class ChunkedRestores {
+    private final Peer peer;
+    // Files asked for, whose file or manifest hasn't arrived yet
+    private final Set<Key> files = new HashSet<Key>();
+    // Chunks asked for and the restores waiting for each of them
+    private final Map<Key, List<Assembly>> chunks = new HashMap<Key, List<Assembly>>();
+    // Fragments received of the files and chunks asked for
+    private final Map<Key, List<Path>> fragments = new HashMap<Key, List<Path>>();
+    // Files and chunks whose fragments are all here, being decoded until they're received
+    private final Set<Key> decoded = new HashSet<Key>();
+    // Offsets of the ranges received of the files and chunks asked for
+    private final Map<Key, Ranges> ranges = new HashMap<Key, Ranges>();
+
+    private static class Ranges {
+        final Set<Long> offsets = new HashSet<Long>();
+        long received;
+        boolean complete;
+    }
+
+    private static class Assembly {
+        final Key fileId;
+        final Manifest manifest;
+        final Set<Key> missing;
+
+        Assembly(Key fileId, Manifest manifest) {
+            this.fileId = fileId;
+            this.manifest = manifest;
+            this.missing = manifest.getDistinctChunks();
+        }
+    }
+
+    public ChunkedRestores(Peer peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Called before asking for a file. What an earlier restore of it left in
+     * the restore directory is deleted, so it isn't taken for this one's.
+     */
+    public synchronized void expect(Key fileId) {
+        files.add(fileId);
+
+        Path directory = Paths.get(peer.getRestoreDirPath());
+        try {
+            Files.deleteIfExists(directory.resolve(fileId.toString()));
+            Files.deleteIfExists(directory.resolve(fileId + ".part"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called when a file given back by GIVEFILE is saved in the restore
+     * directory, with the BodyType it was stored as
+     */
+    public void received(Key key, Path path, int type) {
+        boolean isFile;
+        synchronized (this) {
+            isFile = files.remove(key);
+            decoded.remove(key);
+        }
+
+        try {
+            // Bodies are only decompressed here, at the end of their trip
+            if (BodyType.isCompressed(type)) {
+                Compression.decompress(path);
+            }
+
+            if (BodyType.isManifest(type)) {
+                Manifest manifest = Manifest.read(path);
+                if (manifest == null) {
+                    throw new IOException("Bad manifest");
+                }
+                if (isFile) {
+                    start(key, manifest);
+                }
+            } else if (isFile) {
+                peer.getOperations().completed(key);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (isFile) {
+                peer.getOperations().failed(key, e.toString());
+            }
+            // A chunk that can't be read is never put together into its file
+            return;
+        }
+        chunkReceived(key);
+    }
+
+    /**
+     * Called when a fragment given back by GIVEFILE is saved in the restore
+     * directory, with the BodyType of the fragmented body
+     */
+    public void fragmentReceived(Key key, Path path, int type) {
+        Path directory = Paths.get(peer.getRestoreDirPath());
+        Path restored = directory.resolve(key.toString());
+        List<Path> ready = null;
+
+        try {
+            Fragments.Header header = Fragments.readHeader(path);
+            synchronized (this) {
+                // A fragment nobody is waiting for anymore, more were sent than needed
+                if (header == null || !(files.contains(key) || chunks.containsKey(key)) || decoded.contains(key)) {
+                    Files.delete(path);
+                    return;
+                }
+
+                List<Path> received = fragments.get(key);
+                if (received == null) {
+                    received = new ArrayList<Path>();
+                    fragments.put(key, received);
+                }
+                received.add(path);
+                if (received.size() == header.dataFragments) {
+                    ready = fragments.remove(key);
+                    decoded.add(key);
+                }
+            }
+
+            if (ready == null) {
+                return;
+            }
+
+            Path part = directory.resolve(key + ".part");
+            try (OutputStream out = Files.newOutputStream(part)) {
+                Fragments.decode(ready, out);
+            }
+            Files.move(part, restored, StandardCopyOption.REPLACE_EXISTING);
+            for (Path fragment : ready) {
+                Files.delete(fragment);
+            }
+            System.out.println("Decoded " + key + " from " + ready.size() + " fragments");
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                decoded.remove(key);
+            }
+            return;
+        }
+
+        received(key, restored, type & ~BodyType.FRAGMENT);
+    }
+
+    /**
+     * Called when a range given back by GIVERANGE arrives, the file is ready
+     * once all of it has. A range given twice, by a holder thought to have
+     * failed, is written twice and counted once.
+     */
+    public void rangeReceived(Key key, long fileLength, long offset, long length, int type, InputStream body)
+            throws IOException {
+        Path directory = Paths.get(peer.getRestoreDirPath());
+        Path part = directory.resolve(key + ".ranges");
+        synchronized (this) {
+            if (!(files.contains(key) || chunks.containsKey(key))) {
+                return;
+            }
+            if (!ranges.containsKey(key)) {
+                // Left by a restore that never finished
+                Files.createDirectories(directory);
+                Files.deleteIfExists(part);
+                ranges.put(key, new Ranges());
+                peer.getOperations().expect(key, fileLength);
+            } else if (ranges.get(key).complete) {
+                return;
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[Helper.CHUNK_SIZE];
+            long position = offset;
+            int read;
+            while (position < offset + length
+                    && (read = body.read(buffer, 0, (int) Math.min(buffer.length, offset + length - position))) != -1) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+                peer.getOperations().progress(key, read);
+            }
+            if (position < offset + length) {
+                throw new IOException("Range of " + key + " at " + offset + " is too short");
+            }
+        }
+
+        synchronized (this) {
+            Ranges received = ranges.get(key);
+            if (received == null || !received.offsets.add(offset)) {
+                return;
+            }
+            received.received += length;
+            if (received.received < fileLength) {
+                return;
+            }
+            received.complete = true;
+            System.out.println("Got " + key + " in " + received.offsets.size() + " ranges");
+        }
+
+        Path restored = directory.resolve(key.toString());
+        try {
+            Files.move(part, restored, StandardCopyOption.REPLACE_EXISTING);
+            received(key, restored, type);
+        } finally {
+            synchronized (this) {
+                ranges.remove(key);
+            }
+        }
+    }
+
+    private void start(Key fileId, Manifest manifest) {
+        Assembly assembly = new Assembly(fileId, manifest);
+        System.out.println("Restoring " + fileId + " from " + assembly.missing.size() + " chunks");
+
+        Set<Key> counted = new HashSet<Key>();
+        long chunkBytes = 0;
+        for (int i = 0; i < manifest.size(); i++) {
+            if (counted.add(manifest.getChunk(i))) {
+                chunkBytes += manifest.getLength(i);
+            }
+        }
+        peer.getOperations().expectMore(fileId, chunkBytes);
+
+        synchronized (this) {
+            for (Key chunkId : assembly.missing) {
+                peer.getOperations().addChunk(fileId, chunkId);
+                List<Assembly> waiting = chunks.get(chunkId);
+                if (waiting == null) {
+                    waiting = new ArrayList<Assembly>();
+                    chunks.put(chunkId, waiting);
+                }
+                waiting.add(assembly);
+            }
+        }
+
+        if (assembly.missing.isEmpty()) {
+            assemble(assembly);
+            return;
+        }
+
+        // One chunk after the other, each owner replies once it asked the holders for the chunk
+        Threads.start(() -> {
+            for (Key chunkId : manifest.getDistinctChunks()) {
+                // RESTORE <chunk_key> <ip_address> <port> <hops>
+                String message = "RESTORE " + chunkId + " " + peer.getAddress().getAddress().getHostAddress() + " "
+                        + peer.getPort() + " 1\n";
+                try {
+                    String reply = peer.sendToOwner(message, chunkId);
+                    if (!reply.startsWith("OK")) {
+                        peer.getOperations().failed(fileId, "Chunk " + chunkId + ": " + reply.trim());
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    peer.getOperations().failed(fileId, "Chunk " + chunkId + ": " + e);
+                }
+            }
+        }, "ChunkedRestore-" + fileId);
+    }
+
+    private void chunkReceived(Key chunkId) {
+        List<Assembly> complete = new ArrayList<Assembly>();
+
+        synchronized (this) {
+            List<Assembly> waiting = chunks.get(chunkId);
+            if (waiting == null) {
+                return;
+            }
+            for (Assembly assembly : waiting) {
+                assembly.missing.remove(chunkId);
+                if (assembly.missing.isEmpty()) {
+                    complete.add(assembly);
+                }
+            }
+        }
+
+        for (Assembly assembly : complete) {
+            assemble(assembly);
+        }
+    }
+
+    /**
+     * Writes the chunks of a file, in order, over its manifest and deletes the
+     * chunks no other restore is waiting for
+     */
+    private void assemble(Assembly assembly) {
+        Path directory = Paths.get(peer.getRestoreDirPath());
+        Path part = directory.resolve(assembly.fileId + ".part");
+        Manifest manifest = assembly.manifest;
+
+        try {
+            try (OutputStream out = Files.newOutputStream(part)) {
+                for (int i = 0; i < manifest.size(); i++) {
+                    Path chunk = directory.resolve(manifest.getChunk(i).toString());
+                    if (Files.size(chunk) != manifest.getLength(i)) {
+                        throw new IOException("Chunk " + manifest.getChunk(i) + " has the wrong size");
+                    }
+                    try (InputStream in = Files.newInputStream(chunk)) {
+                        Helper.copy(in, out, manifest.getLength(i));
+                    }
+                }
+            }
+            Files.move(part, directory.resolve(assembly.fileId.toString()), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Restored " + assembly.fileId + " from " + manifest.size() + " chunks");
+            peer.getOperations().completed(assembly.fileId);
+        } catch (IOException e) {
+            e.printStackTrace();
+            peer.getOperations().failed(assembly.fileId, e.toString());
+        }
+
+        List<Key> unused = new ArrayList<Key>();
+        synchronized (this) {
+            for (Key chunkId : manifest.getDistinctChunks()) {
+                List<Assembly> waiting = chunks.get(chunkId);
+                waiting.remove(assembly);
+                if (waiting.isEmpty()) {
+                    chunks.remove(chunkId);
+                    unused.add(chunkId);
+                }
+            }
+        }
+
+        for (Key chunkId : unused) {
+            try {
+                Files.deleteIfExists(directory.resolve(chunkId.toString()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks. A chunk ends where a rolling
+ * Gear hash of the bytes before it matches a mask, so the cut points depend
+ * only on the content around them: inserting or removing bytes changes the
+ * chunks around the edit, and the rest of the file gives the same chunks as
+ * before.
+ *
+ * Chunks are 16 KiB to 256 KiB, 64 KiB on average. As in FastCDC, the mask is
+ * harder to match before the average size and easier after it, which keeps
+ * most chunks close to the average.
+ */
+public class Chunker {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVERAGE_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+
+    // Gear hash bit k depends on the last k + 1 bytes, so the masks use the top bits
+    private static final long HARD_MASK = -1L << (64 - 18);
+    private static final long EASY_MASK = -1L << (64 - 14);
+
+    // Random values for every byte, always the same so every peer cuts the same way
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5d15c0deL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_SIZE];
+    private int filled;
+    private int chunkLength;
+    private boolean ended;
+
+    public Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next chunk into the buffer
+     *
+     * @return length of the chunk, 0 at the end of the stream
+     */
+    public int next() throws IOException {
+        // The bytes after the last chunk are the start of this one
+        System.arraycopy(buffer, chunkLength, buffer, 0, filled - chunkLength);
+        filled -= chunkLength;
+
+        while (!ended && filled < MAX_SIZE) {
+            int read = in.read(buffer, filled, MAX_SIZE - filled);
+            if (read == -1) {
+                ended = true;
+            } else {
+                filled += read;
+            }
+        }
+
+        chunkLength = cut(buffer, filled);
+        return chunkLength;
+    }
+
+    /**
+     * Gets the buffer, which holds the last chunk read from its start
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Finds where the chunk that starts a buffer ends
+     */
+    static int cut(byte[] data, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+
+        long hash = 0;
+        int i = MIN_SIZE;
+        int normal = Math.min(AVERAGE_SIZE, length);
+
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & HARD_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & EASY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+
+        return length;
+    }
+}
@@ -1,7 +1,10 @@
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
 
 public class Client {
+    private static final long WAIT_STEP = 10000;
     private static String accessPoint;
     private static String protocol;
     private static String filePath;
@@ -27,7 +30,10 @@ public class Client {
             System.out.println("\n Usage:\tClient <peerAccessPoint> <subProtocol> \n");
             System.out.println(" Subprotocols :\t");
             System.out.println(" - BACKUP <file> [replicationDegree] \t");
-            System.out.println(" - RESTORE <file>\t");
+            System.out.println(" - BACKUPDIR <directory> [replicationDegree] \t");
+            System.out.println(" - RESTORE <file> [NOWAIT]\t");
+            System.out.println(" - STATUS <operation>\t");
+            System.out.println(" - WAIT <operation>\t");
             System.out.println(" - DELETE <file>\t");
             System.out.println(" - RECLAIM <space>\t");
             System.out.println(" - STATE\t");
@@ -51,25 +57,92 @@ public class Client {
                     repDegree = Integer.parseInt(args[3]);
                 }
 
-                peer.backup(filePath, repDegree);
-                System.out.println("\nBackup finished successfully\n");
+                String outcome = peer.backup(filePath, repDegree);
+                if (outcome.startsWith("OK")) {
+                    System.out.println("\nBackup finished successfully, " + outcome.substring(2).trim() + " copies\n");
+                } else {
+                    System.out.println("\nBackup failed: " + outcome + "\n");
+                }
+                break;
+
+            case "BACKUPDIR":
+                Map<String, String> results = peer.backupDirectory(filePath,
+                        args.length == 3 ? 2 : Integer.parseInt(args[3]));
+                int failed = 0;
+                for (Map.Entry<String, String> result : results.entrySet()) {
+                    if (!result.getValue().startsWith("OK")) {
+                        System.out.println(result.getKey() + ": " + result.getValue());
+                        failed++;
+                    }
+                }
+                System.out.println("\nBacked up " + (results.size() - failed) + " of " + results.size() + " files\n");
                 break;
 
             case "RESTORE":
-                peer.restore(filePath);
-                System.out.println("\nRestore finished successfully\n");
+                String operationId = peer.restore(filePath);
+                if (operationId.equals("ERROR")) {
+                    System.out.println("\nRestore failed\n");
+                    break;
+                }
+                System.out.println("Restore started, operation " + operationId);
+                if (args.length == 3) {
+                    follow(peer, operationId);
+                }
+                break;
+
+            case "STATUS":
+                OperationStatus status = peer.getOperation(args[2]);
+                System.out.println(status != null ? status : "No operation " + args[2]);
+                break;
+
+            case "WAIT":
+                follow(peer, args[2]);
                 break;
 
             case "DELETE":
-                peer.delete(filePath);
-                System.out.println("\nFile deleted successfully\n");
+                String deleted = peer.delete(filePath);
+                System.out.println(deleted.startsWith("OK") ? "\nFile deleted successfully\n" : deleted);
                 break;
 
             case "RECLAIM":
-                int size = Integer.parseInt(args[2]);
+                long size = Long.parseLong(args[2]);
                 peer.reclaim(size);
                 System.out.println("\nSpace reclaimed successfully\n");
                 break;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Prints the progress of an operation until it's finished
+     */
+    private static void follow(RmiRemote peer, String operationId) throws Exception {
+        // The final state is printed once it's awaited
+        OperationListener listener = status -> {
+            if (!status.isFinished()) {
+                System.out.println(status);
+            }
+        };
+        OperationListener stub = (OperationListener) UnicastRemoteObject.exportObject(listener, 0);
+
+        try {
+            if (!peer.subscribe(operationId, stub)) {
+                System.out.println("No operation " + operationId);
+                return;
+            }
+
+            OperationStatus status;
+            do {
+                status = peer.awaitOperation(operationId, WAIT_STEP);
+            } while (status != null && !status.isFinished());
+            System.out.println(status);
+
+            if (status != null && status.getState().equals(OperationStatus.DONE)) {
+                System.out.println("\nRestore finished successfully\n");
+            } else {
+                System.out.println("\nRestore failed\n");
+            }
+        } finally {
+            UnicastRemoteObject.unexportObject(listener, true);
+        }
+    }
+}
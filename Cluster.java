@@ -0,0 +1,334 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Starts a ring of peers in this JVM, on loopback ports, and runs a scripted
+ * workload against it: every peer joins through the first one, then files are
+ * backed up, restored and deleted by many clients at once, each asking a
+ * different peer. Reports how long the ring and the finger tables took to be
+ * right and the throughput and latency of every phase. Run from the project
+ * folder (peers need the keystore).
+ * e.x: java Cluster 32 200 64 16
+ */
+public class Cluster {
+    private static final String ADDRESS = "127.0.0.1";
+    private static final int BASE_PORT = Integer.getInteger("sdis.cluster.port", 9000);
+    private static final long JOIN_TIMEOUT = 10000;
+    private static final long CONVERGENCE_TIMEOUT = Long.getLong("sdis.cluster.timeout", 600) * 1000;
+    private static final long POLL_INTERVAL = 100;
+    private static final long IDLE_TIME = 10000;
+
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private final PrintStream out;
+
+    private Cluster(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage:\tCluster <peers> [<files> [<file_kb> [<clients>]]]");
+            return;
+        }
+
+        int peers = Integer.parseInt(args[0]);
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int fileSize = (args.length > 2 ? Integer.parseInt(args[2]) : 64) * 1024;
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        try {
+            Config.check();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        // Every peer logs each request and stabilization round, only the report is printed
+        PrintStream out = System.out;
+        if (!Boolean.getBoolean("sdis.cluster.verbose")) {
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+        }
+
+        Cluster cluster = new Cluster(out);
+        Path workload = Files.createTempDirectory("sdis-cluster");
+        try {
+            cluster.start(peers);
+            List<String> fileNames = createFiles(workload, files, fileSize);
+            cluster.out.println();
+            cluster.out.println(" phase   | ops | failed |    ops/s |   MB/s | mean ms | p50 ms | p99 ms | max ms");
+            cluster.run("backup", fileNames, fileSize, clients,
+                    (peer, fileName) -> peer.backup(fileName, 2).startsWith("OK"));
+            // Replicas are still being stored and the location tables spread every round
+            cluster.idle(IDLE_TIME);
+            cluster.run("restore", fileNames, fileSize, clients, Cluster::restore);
+            cluster.run("delete", fileNames, 0, clients,
+                    (peer, fileName) -> peer.delete(fileName).startsWith("OK"));
+            cluster.out.println();
+            cluster.routingStats().summaries().forEach(cluster.out::println);
+        } finally {
+            cluster.stop();
+            delete(workload);
+        }
+        System.exit(0);
+    }
+
+    private interface Operation {
+        boolean run(Peer peer, String fileName) throws IOException;
+    }
+
+    /**
+     * Starts the peers one after the other, each joining through the first one
+     * once the previous one got its place, then waits for the ring to be right
+     */
+    private void start(int count) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int port = BASE_PORT + i;
+            // Peers of an earlier run would load their files and locations
+            delete(Paths.get("node_" + Helper.getPeerId(ADDRESS, port)));
+
+            Peer peer = i == 0 ? new Peer(ADDRESS, port, "0", -1) : new Peer(ADDRESS, port, ADDRESS, BASE_PORT);
+            peers.add(peer);
+            if (i > 0 && !await(() -> peer.getSuccessor() != null && peer.getPredecessor() != null, JOIN_TIMEOUT)) {
+                out.println("Peer " + port + " didn't get a place in the ring");
+            }
+        }
+        double joined = (System.nanoTime() - start) / 1e9;
+        out.printf("%d peers joined in %.1fs, over the %s transport%n", count, joined, Config.TRANSPORT);
+
+        long converging = System.nanoTime();
+        boolean ring = await(this::isRingCorrect, CONVERGENCE_TIMEOUT);
+        double ringTime = (System.nanoTime() - converging) / 1e9;
+        boolean fingers = ring && await(this::areFingersCorrect, CONVERGENCE_TIMEOUT);
+        double fingerTime = (System.nanoTime() - converging) / 1e9;
+
+        out.println(ring ? String.format("successors and predecessors right after %.1fs", ringTime)
+                : "successors and predecessors still wrong after " + CONVERGENCE_TIMEOUT / 1000 + "s");
+        if (ring) {
+            out.println(fingers ? String.format("finger tables right after %.1fs", fingerTime)
+                    : "finger tables still wrong after " + CONVERGENCE_TIMEOUT / 1000 + "s");
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static boolean await(Condition condition, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the peers in the order of their ids, the order they should have
+     * around the ring
+     */
+    private List<Peer> byId() {
+        List<Peer> ring = new ArrayList<Peer>(peers);
+        ring.sort(Comparator.comparing(Peer::getId));
+        return ring;
+    }
+
+    private boolean isRingCorrect() {
+        List<Peer> ring = byId();
+        // A ring of one peer has no successor
+        if (ring.size() == 1) {
+            return true;
+        }
+        for (int i = 0; i < ring.size(); i++) {
+            Peer peer = ring.get(i);
+            Peer successor = ring.get((i + 1) % ring.size());
+            Peer predecessor = ring.get((i + ring.size() - 1) % ring.size());
+            if (!isPeer(peer.getSuccessor(), successor) || !isPeer(peer.getPredecessor(), predecessor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean areFingersCorrect() {
+        List<Peer> ring = byId();
+        for (Peer peer : ring) {
+            FingerTable fingers = peer.getFingerTable();
+            for (int i = 0; i < fingers.getSize(); i++) {
+                if (!isPeer(fingers.getPeer(i), owner(ring, fingers.getStart(i)))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the first peer at or after key, going clockwise
+     */
+    private static Peer owner(List<Peer> ring, Key key) {
+        for (Peer peer : ring) {
+            if (peer.getId().compareTo(key) >= 0) {
+                return peer;
+            }
+        }
+        return ring.get(0);
+    }
+
+    private static boolean isPeer(OutsidePeer outsidePeer, Peer peer) {
+        return outsidePeer != null && outsidePeer.getId().equals(peer.getId());
+    }
+
+    /**
+     * Runs an operation on every file, from as many clients at once, each file
+     * through the next peer
+     */
+    private void run(String phase, List<String> fileNames, long fileSize, int clients, Operation operation)
+            throws InterruptedException {
+        Histogram latencies = new Histogram();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+
+        long start = System.nanoTime();
+        List<Future<?>> running = new ArrayList<Future<?>>();
+        for (int i = 0; i < clients; i++) {
+            running.add(executor.submit(() -> {
+                int file;
+                while ((file = next.getAndIncrement()) < fileNames.size()) {
+                    Peer peer = peers.get(file % peers.size());
+                    long operationStart = System.nanoTime();
+                    try {
+                        if (!operation.run(peer, fileNames.get(file))) {
+                            failed.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        failed.incrementAndGet();
+                    }
+                    latencies.record((System.nanoTime() - operationStart) / 1000);
+                }
+            }));
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int ops = fileNames.size();
+        out.printf(" %-7s | %3d | %6d | %8.1f | %6.1f | %7.1f | %6.1f | %6.1f | %6.1f%n", phase, ops, failed.get(),
+                ops / seconds, ops * fileSize / seconds / (1024 * 1024), latencies.getMean() / 1000,
+                latencies.percentile(50) / 1000.0, latencies.percentile(99) / 1000.0, latencies.getMax() / 1000.0);
+    }
+
+    /**
+     * Lets the peers run their stabilization rounds with no requests from
+     * clients, to see how much they send to keep the ring and the location
+     * tables up to date
+     */
+    private void idle(long millis) throws InterruptedException {
+        long sent = bytesSent();
+        long requests = requestsSent();
+        Thread.sleep(millis);
+        double kilobytes = (bytesSent() - sent) / 1024.0;
+        out.printf(" idle    | %.1fs, %.1f KB/s in %.0f requests/s sent by the %d peers to keep the ring%n",
+                millis / 1000.0, kilobytes * 1000 / millis, (requestsSent() - requests) * 1000.0 / millis,
+                peers.size());
+    }
+
+    /**
+     * Gets the bytes sent in requests by all the peers
+     */
+    private long bytesSent() {
+        return peers.stream().mapToLong(peer -> peer.getConnectionPool().getBytesSent()).sum();
+    }
+
+    /**
+     * Gets the requests sent by all the peers
+     */
+    private long requestsSent() {
+        return peers.stream().mapToLong(peer -> peer.getConnectionPool().getRequestsSent()).sum();
+    }
+
+    /**
+     * Gets the hops of the requests routed to all the peers
+     */
+    private RoutingStats routingStats() {
+        RoutingStats total = new RoutingStats();
+        for (Peer peer : peers) {
+            total.add(peer.getRoutingStats());
+        }
+        return total;
+    }
+
+    /**
+     * Restores a file and waits for it to be in the peer's Restore folder
+     */
+    private static boolean restore(Peer peer, String fileName) throws InterruptedIOException {
+        String operationId = peer.restore(fileName);
+        if (operationId.equals("ERROR")) {
+            return false;
+        }
+        OperationStatus status = peer.awaitOperation(operationId, ConnectionPool.REQUEST_TIMEOUT);
+        return status != null && status.getState().equals(OperationStatus.DONE);
+    }
+
+    private static List<String> createFiles(Path directory, int count, int size) throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[size];
+        List<String> fileNames = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(content);
+            Path file = directory.resolve("file" + i);
+            Files.write(file, content);
+            fileNames.add(file.toString());
+        }
+        return fileNames;
+    }
+
+    /**
+     * Stops the peers' rounds and removes the folders they stored files in
+     */
+    private void stop() throws IOException {
+        for (Peer peer : peers) {
+            peer.stop();
+        }
+        for (Peer peer : peers) {
+            delete(Paths.get(peer.getStorageDirPath()));
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Requests of one command this peer handled, as seen through JMX
+ * (sdis:type=Command,peer=<id>,name=<command>). Times are in microseconds,
+ * from when the handler started until the reply was ready.
+ */
+public interface CommandMetricsMBean {
+
+    long getCount();
+
+    long getErrors();
+
+    /**
+     * Gets the body bytes received with the requests
+     */
+    long getBytesReceived();
+
+    /**
+     * Gets the bytes of the replies
+     */
+    long getBytesSent();
+
+    /**
+     * Gets the requests handled per second since the peer started
+     */
+    double getThroughput();
+
+    double getMeanMicros();
+
+    long getMaxMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+}
@@ -0,0 +1,287 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed form of a body, made by the peer backing it up, stored as it is
+ * by every peer that holds it and only decompressed by the peer restoring it:
+ * "SDZ1" <original_length> then one block per CHUNK_SIZE bytes of the body,
+ * <codec> <original_length> <stored_length> <bytes>. Every block says its own
+ * codec, and a block that doesn't get smaller is stored raw, so incompressible
+ * data only costs 9 bytes per chunk.
+ */
+public class Compression {
+    private static final int MAGIC = 0x53445a31; // "SDZ1"
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    private static final int PROBE_SIZE = 4096;
+
+    // A Deflater holds native memory, every thread reuses its own
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal
+            .withInitial(() -> new Deflater(Config.COMPRESSION_LEVEL, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * Compresses length bytes of a stream
+     */
+    public static void compress(InputStream in, long length, OutputStream out) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        DataOutputStream compressed = new DataOutputStream(out);
+        byte[] block = new byte[Helper.CHUNK_SIZE];
+        byte[] deflated = new byte[Helper.CHUNK_SIZE];
+
+        compressed.writeInt(MAGIC);
+        compressed.writeLong(length);
+        while (length > 0) {
+            int blockLength = (int) Math.min(block.length, length);
+            data.readFully(block, 0, blockLength);
+            writeBlock(compressed, block, 0, blockLength, deflated);
+            length -= blockLength;
+        }
+        compressed.flush();
+    }
+
+    /**
+     * Gets the length the compressed form of length bytes of a stream has,
+     * compressing them without keeping the result
+     */
+    public static long compressedLength(InputStream in, long length) throws IOException {
+        Counter counter = new Counter();
+        compress(in, length, counter);
+        return counter.count;
+    }
+
+    /**
+     * Compresses length bytes of a stream as they are read, a block at a time,
+     * so no more than a block of either form is ever held
+     */
+    public static InputStream compressing(InputStream in, long length) {
+        return new BlockCompressor(in, length);
+    }
+
+    /**
+     * Compresses part of an array
+     */
+    public static byte[] compress(byte[] data, int offset, int length) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+        DataOutputStream compressed = new DataOutputStream(bytes);
+        byte[] deflated = new byte[Helper.CHUNK_SIZE];
+
+        try {
+            compressed.writeInt(MAGIC);
+            compressed.writeLong(length);
+            for (int start = offset; start < offset + length; start += Helper.CHUNK_SIZE) {
+                writeBlock(compressed, data, start, Math.min(Helper.CHUNK_SIZE, offset + length - start), deflated);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeBlock(DataOutputStream out, byte[] block, int offset, int length, byte[] deflated)
+            throws IOException {
+        Deflater deflater = DEFLATER.get();
+        if (length > PROBE_SIZE && !shrinks(deflater, block, offset, deflated)) {
+            out.writeByte(RAW);
+            out.writeInt(length);
+            out.writeInt(length);
+            out.write(block, offset, length);
+            return;
+        }
+
+        deflater.reset();
+        deflater.setInput(block, offset, length);
+        deflater.finish();
+
+        // Only worth it if the block fits, with room to spare, in less than its size
+        int deflatedLength = 0;
+        while (!deflater.finished() && deflatedLength < length - 1) {
+            deflatedLength += deflater.deflate(deflated, deflatedLength, length - 1 - deflatedLength);
+        }
+
+        if (deflater.finished()) {
+            out.writeByte(DEFLATE);
+            out.writeInt(length);
+            out.writeInt(deflatedLength);
+            out.write(deflated, 0, deflatedLength);
+        } else {
+            out.writeByte(RAW);
+            out.writeInt(length);
+            out.writeInt(length);
+            out.write(block, offset, length);
+        }
+    }
+
+    private static class Counter extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static class BlockCompressor extends InputStream {
+        private final DataInputStream in;
+        private final byte[] block = new byte[Helper.CHUNK_SIZE];
+        private final byte[] deflated = new byte[Helper.CHUNK_SIZE];
+        private final ExposedBuffer compressed = new ExposedBuffer();
+        private final DataOutputStream out = new DataOutputStream(compressed);
+        private long remaining;
+        private int position;
+
+        BlockCompressor(InputStream in, long length) {
+            this.in = new DataInputStream(in);
+            this.remaining = length;
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(length);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == compressed.size()) {
+                if (remaining == 0) {
+                    return -1;
+                }
+                compressed.reset();
+                position = 0;
+                int blockLength = (int) Math.min(block.length, remaining);
+                in.readFully(block, 0, blockLength);
+                writeBlock(out, block, 0, blockLength, deflated);
+                remaining -= blockLength;
+            }
+
+            int length = Math.min(len, compressed.size() - position);
+            System.arraycopy(compressed.buffer(), position, b, off, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class ExposedBuffer extends ByteArrayOutputStream {
+        ExposedBuffer() {
+            super(Helper.CHUNK_SIZE + 16);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Deflates the start of a block, already compressed data (media, archives)
+     * doesn't get much smaller and isn't worth deflating whole
+     */
+    private static boolean shrinks(Deflater deflater, byte[] block, int offset, byte[] deflated) {
+        deflater.reset();
+        deflater.setInput(block, offset, PROBE_SIZE);
+        deflater.finish();
+        int deflatedLength = 0;
+        while (!deflater.finished() && deflatedLength < PROBE_SIZE) {
+            deflatedLength += deflater.deflate(deflated, deflatedLength, PROBE_SIZE - deflatedLength);
+        }
+        return deflater.finished() && deflatedLength < PROBE_SIZE * 15 / 16;
+    }
+
+    /**
+     * Decompresses a whole compressed stream
+     *
+     * @throws IOException if it isn't one
+     */
+    public static void decompress(InputStream in, OutputStream out) throws IOException {
+        DataInputStream compressed = new DataInputStream(in);
+        if (compressed.readInt() != MAGIC) {
+            throw new IOException("Not compressed");
+        }
+
+        long remaining = compressed.readLong();
+        byte[] stored = new byte[Helper.CHUNK_SIZE];
+        byte[] block = new byte[Helper.CHUNK_SIZE];
+        Inflater inflater = INFLATER.get();
+
+        while (remaining > 0) {
+            byte codec = compressed.readByte();
+            int length = compressed.readInt();
+            int storedLength = compressed.readInt();
+            if (length <= 0 || length > block.length || storedLength < 0 || storedLength > stored.length
+                    || length > remaining) {
+                throw new IOException("Bad compressed block");
+            }
+            compressed.readFully(stored, 0, storedLength);
+
+            switch (codec) {
+                case RAW:
+                    out.write(stored, 0, storedLength);
+                    break;
+                case DEFLATE:
+                    inflater.reset();
+                    inflater.setInput(stored, 0, storedLength);
+                    try {
+                        if (inflater.inflate(block, 0, length) != length || !inflater.finished()) {
+                            throw new IOException("Bad compressed block");
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException(e);
+                    }
+                    out.write(block, 0, length);
+                    break;
+                default:
+                    throw new IOException("Unknown codec " + codec);
+            }
+            remaining -= length;
+        }
+
+        if (compressed.read() != -1) {
+            throw new IOException("Data after the last compressed block");
+        }
+    }
+
+    /**
+     * Decompresses a file in place. The file is left as it was if it isn't a
+     * whole compressed body.
+     */
+    public static void decompress(Path file) throws IOException {
+        Path part = file.resolveSibling(file.getFileName() + ".inflating");
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), Helper.CHUNK_SIZE);
+                OutputStream out = new BufferedOutputStream(Files.newOutputStream(part), Helper.CHUNK_SIZE)) {
+            decompress(in, out);
+        } catch (IOException e) {
+            Files.deleteIfExists(part);
+            throw e;
+        }
+
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Peer settings, read from system properties
+ * e.x: java -Dsdis.server=nio Peer AP1 127.0.0.1 8000
+ */
+public class Config {
+    /**
+     * "blocking" serves every connection on a thread of its own, "nio" serves
+     * all of them from a few event loops
+     */
+    public static final String SERVER_MODE = System.getProperty("sdis.server", "blocking");
+
+    /**
+     * Number of event loops used by the "nio" server
+     */
+    public static final int EVENT_LOOPS = Integer.getInteger("sdis.eventLoops",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * "platform" runs requests on a pool of 150 threads, "virtual" runs each
+     * request and outgoing call on a virtual thread of its own (Java 21+)
+     */
+    public static final String THREAD_MODE = System.getProperty("sdis.threads", "platform");
+
+    /**
+     * "store" forwards a replica to the next peer once it's stored, "cutthrough"
+     * forwards every chunk while the replica is still being written
+     */
+    public static final String REPLICATION_MODE = System.getProperty("sdis.replication", "store");
+
+    /**
+     * "chain" passes the replicas of a file from successor to successor, "fanout"
+     * has the key's owner send them to all of the target peers at once
+     */
+    public static final String PLACEMENT_MODE = System.getProperty("sdis.placement", "chain");
+
+    /**
+     * "none" stores full replicas, "<k>+<m>" (e.g. 4+2) stores k + m Reed-Solomon
+     * fragments of every file on as many peers, any k of which give the file back
+     */
+    public static final String ERASURE_CODE = System.getProperty("sdis.erasure", "none");
+
+    /**
+     * "whole" backs up every file as it is, "cdc" splits it into content-defined
+     * chunks stored once each under their hash, plus a manifest of the chunks
+     */
+    public static final String CHUNKING_MODE = System.getProperty("sdis.chunking", "whole");
+
+    /**
+     * "none" sends and stores bodies as they are, "deflate" compresses every chunk
+     * of a backup that gets smaller, until it's restored
+     */
+    public static final String COMPRESSION_MODE = System.getProperty("sdis.compression", "none");
+
+    /**
+     * Deflate level, 1 (fastest) to 9 (smallest)
+     */
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("sdis.compressionLevel", 1);
+
+    /**
+     * A part of a restore not given back within the time this percentage of the
+     * last ones were is asked for again from another holder, 0 never does
+     */
+    public static final int HEDGE_PERCENTILE = Integer.getInteger("sdis.hedgePercentile", 95);
+
+    /**
+     * Size of the identifier space, 64 or 160 bits
+     */
+    public static final int KEY_BITS = Integer.getInteger("sdis.keyBits", 64);
+
+    /**
+     * "tls" connects peers with TLS over TCP, "memory" with in-memory pipes
+     * between peers of the same JVM, for running a ring of tens of peers on
+     * one machine
+     */
+    public static final String TRANSPORT = System.getProperty("sdis.transport", "tls");
+
+    /**
+     * One-way delay of the "memory" transport, in milliseconds, and how much
+     * more it can randomly be
+     */
+    public static final int MEMORY_LATENCY = Integer.getInteger("sdis.memory.latency", 0);
+    public static final int MEMORY_JITTER = Integer.getInteger("sdis.memory.jitter", 0);
+
+    /**
+     * Bandwidth of each direction of a "memory" connection, in KB/s, 0 is
+     * unlimited
+     */
+    public static final int MEMORY_BANDWIDTH = Integer.getInteger("sdis.memory.bandwidth", 0);
+
+    /**
+     * Percentage of the segments the "memory" transport loses, each of which
+     * arrives a retransmission timeout later, as it would over TCP
+     */
+    public static final double MEMORY_LOSS = Double.parseDouble(System.getProperty("sdis.memory.loss", "0"));
+
+    /**
+     * Seed of the delays and losses of the "memory" transport
+     */
+    public static final long MEMORY_SEED = Long.getLong("sdis.memory.seed", 1);
+
+    /**
+     * Number of successors every peer keeps, to replace its successor with the
+     * next one that's up if it goes down
+     */
+    public static final int SUCCESSORS = Integer.getInteger("sdis.successors", 4);
+
+    /**
+     * Time between the heartbeats sent to the successors and the predecessor,
+     * in milliseconds
+     */
+    public static final int HEARTBEAT_INTERVAL = Integer.getInteger("sdis.heartbeatInterval", 500);
+
+    /**
+     * Suspicion (phi) of the failure detector above which a peer is taken as
+     * down: 8 is wrong once in 10^8
+     */
+    public static final double PHI_THRESHOLD = Double.parseDouble(System.getProperty("sdis.phiThreshold", "8"));
+
+    /**
+     * Fingers looked up again every stabilization round, in turns, besides the
+     * ones the successor is known to hold
+     */
+    public static final int FINGERS_PER_ROUND = Integer.getInteger("sdis.fingersPerRound", 8);
+
+    public static boolean isNioServer() {
+        return SERVER_MODE.equals("nio");
+    }
+
+    public static boolean isVirtualThreads() {
+        return THREAD_MODE.equals("virtual");
+    }
+
+    public static boolean isCutThrough() {
+        return REPLICATION_MODE.equals("cutthrough");
+    }
+
+    public static boolean isFanOut() {
+        return PLACEMENT_MODE.equals("fanout");
+    }
+
+    public static boolean isErasureCoded() {
+        return !ERASURE_CODE.equals("none");
+    }
+
+    /**
+     * Checks the settings that are only parsed once they're used, so a peer
+     * with a bad one refuses to start instead of failing its first backup
+     *
+     * @throws IllegalArgumentException naming the setting that's wrong
+     */
+    public static void check() {
+        if (isErasureCoded()) {
+            String[] code = ERASURE_CODE.split("\\+", -1);
+            int k = -1;
+            int m = -1;
+            try {
+                if (code.length == 2) {
+                    k = Integer.parseInt(code[0]);
+                    m = Integer.parseInt(code[1]);
+                }
+            } catch (NumberFormatException e) {
+            }
+            if (k < 1 || m < 0 || k + m > 255) {
+                throw new IllegalArgumentException("sdis.erasure must be none or <k>+<m>, with k >= 1, m >= 0 and "
+                        + "k + m <= 255, not " + ERASURE_CODE);
+            }
+        }
+    }
+
+    public static int getDataFragments() {
+        return Integer.parseInt(ERASURE_CODE.split("\\+")[0]);
+    }
+
+    public static int getParityFragments() {
+        return Integer.parseInt(ERASURE_CODE.split("\\+")[1]);
+    }
+
+    public static boolean isCompressed() {
+        return COMPRESSION_MODE.equals("deflate");
+    }
+
+    public static boolean isContentDefinedChunking() {
+        return CHUNKING_MODE.equals("cdc");
+    }
+
+    public static boolean isMemoryTransport() {
+        return TRANSPORT.equals("memory");
+    }
+}
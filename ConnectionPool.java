@@ -0,0 +1,307 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a few long-lived connections to every peer we talk to, so messages
+ * don't pay for a new TCP + TLS handshake each time. Each peer has its own
+ * pool, so peers sharing a JVM don't share connections or counters.
+ */
+public class ConnectionPool {
+    public static final int REQUEST_TIMEOUT = 30000;
+    private static final int CONNECTIONS_PER_PEER = 2;
+    private static final long MAX_IDLE_TIME = 60000;
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    // Address of the peer the pool belongs to, null for a client
+    private final InetSocketAddress local;
+    private final ConcurrentHashMap<InetSocketAddress, Slots> connections = new ConcurrentHashMap<InetSocketAddress, Slots>();
+    // Connections heartbeats go on, which no body ever reserves
+    private final ConcurrentHashMap<InetSocketAddress, PeerConnection> heartbeatConnections = new ConcurrentHashMap<InetSocketAddress, PeerConnection>();
+    // Connections messages without a body go on, so they never wait behind one
+    private final ConcurrentHashMap<InetSocketAddress, PeerConnection> controlConnections = new ConcurrentHashMap<InetSocketAddress, PeerConnection>();
+    // Bytes of every request sent on this pool's connections, for the metrics
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder requestsSent = new LongAdder();
+
+    public ConnectionPool(InetSocketAddress local) {
+        this.local = local;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return local;
+    }
+
+    /**
+     * Connections to a single peer
+     */
+    private static class Slots {
+        private final PeerConnection[] connections = new PeerConnection[CONNECTIONS_PER_PEER];
+        private final ReentrantLock lock = new ReentrantLock();
+    }
+
+    /**
+     * Gets the least busy connection to a peer, opening a new one if all of them
+     * are busy and there is room for another
+     */
+    public PeerConnection get(InetSocketAddress address) throws IOException {
+        Slots peerSlots = connections.computeIfAbsent(address, key -> new Slots());
+        PeerConnection[] slots = peerSlots.connections;
+
+        peerSlots.lock.lock();
+        try {
+            PeerConnection best = null;
+            int freeSlot = -1;
+
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] == null || slots[i].isClosed()) {
+                    if (freeSlot == -1) {
+                        freeSlot = i;
+                    }
+                } else if (best == null || slots[i].getPendingRequests() < best.getPendingRequests()) {
+                    best = slots[i];
+                }
+            }
+
+            if (best != null && (best.getPendingRequests() == 0 || freeSlot == -1)) {
+                return best;
+            }
+
+            PeerConnection connection = new PeerConnection(address, this, "slot " + freeSlot);
+            slots[freeSlot] = connection;
+            return connection;
+        } finally {
+            peerSlots.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the connection to a peer kept for one kind of message, opening it if
+     * there's none yet
+     */
+    private PeerConnection getDedicated(ConcurrentHashMap<InetSocketAddress, PeerConnection> dedicated,
+            InetSocketAddress address, String channel) throws IOException {
+        PeerConnection connection = dedicated.get(address);
+        if (connection == null || connection.isClosed()) {
+            connection = new PeerConnection(address, this, channel);
+            PeerConnection previous = dedicated.put(address, connection);
+            if (previous != null) {
+                previous.close();
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Sends a message without waiting for the reply. It goes on the control
+     * connection, which no body ever reserves, so a FINDOWNER or a REPLY isn't
+     * queued behind a transfer on both pooled ones. Retried once like send.
+     */
+    public CompletableFuture<String> send(InetSocketAddress address, String message) throws IOException {
+        try {
+            return getDedicated(controlConnections, address, "control").send(message, EMPTY_BODY);
+        } catch (IOException e) {
+            return getDedicated(controlConnections, address, "control").send(message, EMPTY_BODY);
+        }
+    }
+
+    /**
+     * Sends a message with a body without waiting for the reply. A pooled
+     * connection may have been closed by the other side in the meantime, so the
+     * message is retried once on a new connection.
+     */
+    public CompletableFuture<String> send(InetSocketAddress address, String message, byte[] body)
+            throws IOException {
+        PeerConnection connection = get(address);
+
+        try {
+            return connection.send(message, body);
+        } catch (IOException e) {
+            return get(address).send(message, body);
+        }
+    }
+
+    /**
+     * Sends a message whose body is streamed from a source, without waiting for
+     * the reply
+     */
+    public CompletableFuture<String> send(InetSocketAddress address, String message, InputStream body,
+            long length) throws IOException {
+        PeerConnection.RequestBody request = open(address, message, length);
+
+        try {
+            Helper.copy(body, request, length);
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        }
+        request.close();
+
+        return request.getReply();
+    }
+
+    /**
+     * Starts a request whose body the caller writes
+     */
+    public PeerConnection.RequestBody open(InetSocketAddress address, String message, long length)
+            throws IOException {
+        PeerConnection connection = get(address);
+
+        try {
+            return connection.open(message, length);
+        } catch (IOException e) {
+            return get(address).open(message, length);
+        }
+    }
+
+    /**
+     * Starts requests to several peers, whose bodies the caller writes at the
+     * same time. Each connection stays reserved until its body is closed, so
+     * they're taken in the order of their addresses, the same for every caller:
+     * two callers can't each wait for a connection the other one holds.
+     *
+     * @return the requests, by address, null where one couldn't be started
+     */
+    public PeerConnection.RequestBody[] openAll(InetSocketAddress[] addresses, String[] messages,
+            long[] lengths) {
+        Integer[] order = new Integer[addresses.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing((Integer i) -> addresses[i].toString()));
+
+        PeerConnection.RequestBody[] requests = new PeerConnection.RequestBody[addresses.length];
+        for (int i : order) {
+            try {
+                requests[i] = open(addresses[i], messages[i], lengths[i]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Sends a heartbeat on the connection to a peer kept for them, so it isn't
+     * queued behind a transfer on a pooled one. If the last heartbeat is still
+     * being written this one is skipped rather than waited for.
+     *
+     * @return the reply, null if the heartbeat was skipped
+     */
+    public CompletableFuture<String> sendHeartbeat(InetSocketAddress address, String message)
+            throws IOException {
+        return getDedicated(heartbeatConnections, address, "heartbeat").trySend(message, EMPTY_BODY);
+    }
+
+    /**
+     * Sends a message and waits for its reply
+     */
+    public String request(InetSocketAddress address, String message, long timeout) throws IOException {
+        return await(send(address, message), timeout);
+    }
+
+    /**
+     * Waits for the reply of a request that was already sent
+     */
+    public static String await(CompletableFuture<String> reply, long timeout) throws IOException {
+        try {
+            return reply.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("No reply after " + timeout + "ms");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Gets the number of connections open to other peers
+     */
+    public int getOpenConnections() {
+        int open = 0;
+        for (Slots peerSlots : connections.values()) {
+            for (PeerConnection connection : peerSlots.connections) {
+                if (connection != null && !connection.isClosed()) {
+                    open++;
+                }
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Gets the bytes sent in requests by this peer, bodies included
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Gets the requests sent by this peer
+     */
+    public long getRequestsSent() {
+        return requestsSent.sum();
+    }
+
+    /**
+     * Counts a request sent on one of this pool's connections
+     */
+    void countSent(long bytes) {
+        bytesSent.add(bytes);
+        requestsSent.increment();
+    }
+
+    /**
+     * Closes the connections that haven't been used for a while
+     */
+    public void closeIdle() {
+        long now = System.currentTimeMillis();
+
+        // Peers that aren't neighbours anymore get no more heartbeats
+        closeIdle(heartbeatConnections, now);
+        closeIdle(controlConnections, now);
+
+        connections.forEach((address, peerSlots) -> {
+            PeerConnection[] slots = peerSlots.connections;
+
+            peerSlots.lock.lock();
+            try {
+                for (int i = 0; i < slots.length; i++) {
+                    if (slots[i] != null && (slots[i].isClosed()
+                            || (slots[i].getPendingRequests() == 0 && now - slots[i].getLastUsed() > MAX_IDLE_TIME))) {
+                        slots[i].close();
+                        slots[i] = null;
+                    }
+                }
+            } finally {
+                peerSlots.lock.unlock();
+            }
+        });
+    }
+
+    private static void closeIdle(ConcurrentHashMap<InetSocketAddress, PeerConnection> dedicated, long now) {
+        dedicated.forEach((address, connection) -> {
+            if (connection.isClosed()
+                    || (connection.getPendingRequests() == 0 && now - connection.getLastUsed() > MAX_IDLE_TIME)) {
+                connection.close();
+                dedicated.remove(address, connection);
+            }
+        });
+    }
+}
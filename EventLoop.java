@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Selector thread that does the reads, TLS work and writes of its connections
+ */
+class EventLoop implements Runnable {
+    private final Peer peer;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<NioConnection>();
+    private final ConcurrentLinkedQueue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<NioConnection>();
+    private final ConcurrentLinkedQueue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<NioConnection>();
+
+    public EventLoop(Peer peer) throws IOException {
+        this.peer = peer;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop
+     */
+    public void register(SocketChannel channel) throws IOException {
+        SSLEngine engine;
+
+        try {
+            engine = SSLContext.getDefault().createSSLEngine();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        engine.setUseClientMode(false);
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        pendingRegistrations.add(new NioConnection(this, peer, channel, engine));
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write the data queued on a connection
+     */
+    public void requestFlush(NioConnection connection) {
+        pendingFlushes.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to go back to reading a connection whose request body
+     * handler has caught up
+     */
+    public void requestResume(NioConnection connection) {
+        pendingResumes.add(connection);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            NioConnection connection;
+            while ((connection = pendingRegistrations.poll()) != null) {
+                try {
+                    connection.open(selector);
+                } catch (IOException e) {
+                    connection.close();
+                }
+            }
+
+            while ((connection = pendingFlushes.poll()) != null) {
+                try {
+                    connection.flush();
+                } catch (IOException | RuntimeException e) {
+                    connection.close();
+                }
+            }
+
+            while ((connection = pendingResumes.poll()) != null) {
+                try {
+                    connection.resume();
+                } catch (IOException | RuntimeException e) {
+                    connection.close();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                connection = (NioConnection) key.attachment();
+
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    connection.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector: the heartbeats of every peer watched are
+ * timed, and the longer the wait since the last one compared to how far apart
+ * they usually are, the higher the suspicion (phi) that the peer is down.
+ * Phi 1 means a 10% chance of being wrong in suspecting it, phi 8 a 10^-8
+ * chance. Reading a peer's status is a few arithmetic operations, no network.
+ */
+public class FailureDetector {
+    // Intervals kept per peer, the mean and deviation follow the recent ones
+    private static final int WINDOW = 100;
+
+    private final long interval;
+    private final double threshold;
+    // The deviation used is at least this, so a steady peer isn't suspected after a small delay
+    private final double minDeviation;
+    private final ConcurrentHashMap<Key, History> histories = new ConcurrentHashMap<Key, History>();
+
+    private static class History {
+        final ArrayDeque<Long> intervals = new ArrayDeque<Long>();
+        long last;
+        double sum;
+        double squares;
+
+        History(long now, long interval) {
+            // The peer is assumed to reply on time until it's heard from
+            last = now;
+            add(interval);
+        }
+
+        synchronized void heartbeat(long now) {
+            add(now - last);
+            last = now;
+        }
+
+        private void add(long interval) {
+            intervals.add(interval);
+            sum += interval;
+            squares += (double) interval * interval;
+            if (intervals.size() > WINDOW) {
+                long removed = intervals.poll();
+                sum -= removed;
+                squares -= (double) removed * removed;
+            }
+        }
+
+        synchronized double phi(long now, double minDeviation) {
+            int n = intervals.size();
+            double mean = sum / n;
+            double deviation = Math.max(minDeviation, Math.sqrt(Math.max(0, squares / n - mean * mean)));
+
+            // Logistic approximation of the normal distribution's tail
+            double y = (now - last - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return now - last > mean ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+
+    /**
+     * @param interval  time between heartbeats, in milliseconds
+     * @param threshold phi above which a peer is suspected to be down
+     */
+    public FailureDetector(long interval, double threshold) {
+        this.interval = interval;
+        this.threshold = threshold;
+        this.minDeviation = interval / 4.0;
+    }
+
+    /**
+     * Watches the given peers, and only them, from now on
+     */
+    public void watch(Collection<OutsidePeer> peers) {
+        long now = System.currentTimeMillis();
+        Set<Key> ids = new HashSet<Key>();
+        for (OutsidePeer peer : peers) {
+            ids.add(peer.getId());
+            histories.computeIfAbsent(peer.getId(), id -> new History(now, interval));
+        }
+        histories.keySet().retainAll(ids);
+    }
+
+    /**
+     * Records a heartbeat of a peer being watched
+     */
+    public void heartbeat(OutsidePeer peer) {
+        History history = histories.get(peer.getId());
+        if (history != null) {
+            history.heartbeat(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Gets the suspicion that a peer is down, 0 for a peer that isn't watched
+     */
+    public double phi(OutsidePeer peer) {
+        History history = histories.get(peer.getId());
+        return history == null ? 0 : history.phi(System.currentTimeMillis(), minDeviation);
+    }
+
+    /**
+     * Checks that a peer isn't suspected to be down. Peers that aren't watched
+     * never are.
+     */
+    public boolean isAvailable(OutsidePeer peer) {
+        return peer != null && phi(peer) < threshold;
+    }
+}
@@ -6,7 +6,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class FileInfo {
-    private BigInteger id;
+    private Key id;
     private int replicationDegree;
     private String fileName;
 
@@ -35,7 +35,7 @@ public class FileInfo {
         return hexString.toString();
     }
 
-    public BigInteger getId() {
+    public Key getId() {
         return this.id;
     }
 
@@ -46,4 +46,4 @@ public class FileInfo {
     public void setReplicationDegree(int replicationDegree) {
         this.replicationDegree = replicationDegree;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
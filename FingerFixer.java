@@ -1,8 +1,18 @@
-import java.math.BigInteger;
-import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Refreshes the finger table, one turn of fingers per stabilization round.
+ * The fingers that start before the successor are the successor, the others
+ * are looked up, Config.FINGERS_PER_ROUND at a time, all in one request
+ * (FINDFINGERS) that splits along the way towards their owners.
+ */
 public class FingerFixer implements Runnable {
     private Peer peer;
+    private final AtomicBoolean running = new AtomicBoolean();
+    // Finger the next turn starts from
+    private int next;
 
     public FingerFixer(Peer peer) {
         this.peer = peer;
@@ -10,17 +20,38 @@ public class FingerFixer implements Runnable {
 
     @Override
     public void run() {
+        // The lookup waits for the owners, it could outlast a round
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+
         try {
+            FingerTable fingerTable = peer.getFingerTable();
+            OutsidePeer successor = peer.getSuccessor();
+            Map<Integer, Key> keys = new TreeMap<Integer, Key>();
+            int size = fingerTable.getSize();
+            int last = next;
 
-            for (int i = 0; i < peer.getFingerTable().getSize(); i++) {
-                BigInteger key = peer.getFingerTable().calculateFinger(peer.getId(), i);
-                InetSocketAddress entryAddress = peer.getSuccessor().getInetSocketAddress();
-                Messenger.sendFindFinger(peer.getAddress(), entryAddress, i, key);
+            for (int n = 0; n < size; n++) {
+                int i = (next + n) % size;
+                Key key = fingerTable.getStart(i);
+                // With a wide key space most of the first fingers are the successor, no need to ask
+                if (Helper.between(key, peer.getId(), successor.getId()) || key.equals(successor.getId())) {
+                    fingerTable.add(successor, i);
+                } else if (keys.size() < Config.FINGERS_PER_ROUND) {
+                    keys.put(i, key);
+                    last = i;
+                }
             }
+            next = (last + 1) % size;
 
-            // this.peer.getFingerTable().print();
+            for (Map.Entry<Integer, OutsidePeer> owner : peer.findOwners(keys, 0).entrySet()) {
+                fingerTable.add(owner.getValue(), owner.getKey());
+            }
         } catch (Exception e) {
 
+        } finally {
+            running.set(false);
         }
     }
 }
\ No newline at end of file
@@ -1,19 +1,21 @@
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.net.InetSocketAddress;
 
 public class FingerTable {
     private ArrayList<OutsidePeer> table;
     private int numOfEntries;
+    private final Key[] starts;
     // private String localAddress = "127.0.0.1";
 
     public FingerTable(int numOfEntries, OutsidePeer outsidePeer) {
         table = new ArrayList<>();
         this.numOfEntries = numOfEntries;
+        // The table belongs to outsidePeer, the start of its fingers never changes
+        this.starts = new Key[numOfEntries];
         for (int i = 0; i < numOfEntries; i++) {
             table.add(outsidePeer);
+            starts[i] = calculateFinger(outsidePeer.getId(), i);
         }
-        print();
     }
 
     public int getSize() {
@@ -37,33 +39,49 @@ public class FingerTable {
         table.set(index, outsidePeer);
     }
 
-    public BigInteger calculateFinger(BigInteger peerID, int i) {
-        return ((peerID.add(new BigInteger("2").pow(i))).mod(new BigInteger("2").pow(this.getSize())));
+    public Key calculateFinger(Key peerID, int i) {
+        return peerID.plusPowerOfTwo(i);
     }
 
-    public OutsidePeer getNearestPeer(BigInteger fileId) {
-        OutsidePeer receiverPeer = table.get(0);
-
-        for (int i = 1; i < table.size(); i++) {
-            BigInteger peerId = table.get(i).getId();
+    /**
+     * Gets the first key finger i is responsible for, peerId + 2^i
+     */
+    public Key getStart(int i) {
+        return starts[i];
+    }
 
-            if (peerId.compareTo(fileId) == -1 || peerId.compareTo(fileId) == 0) {
-                if (peerId.compareTo(fileId) == 0) {
-                    receiverPeer = table.get(i);
-                    break;
-                }
+    /**
+     * Gets the finger that comes closest before key, going clockwise from
+     * peerId, or null if none of them is between the two
+     */
+    public OutsidePeer closestPrecedingFinger(Key peerId, Key key) {
+        for (int i = table.size() - 1; i >= 0; i--) {
+            OutsidePeer finger = table.get(i);
 
-                if (peerId.compareTo(receiverPeer.getId()) == 1) {
-                    receiverPeer = table.get(i);
-                }
+            if (Helper.between(finger.getId(), peerId, key)) {
+                return finger;
             }
         }
 
-        return receiverPeer;
+        return null;
+    }
+
+    /**
+     * Gets the peer a request for key goes to next from peerId: the successor
+     * if it owns key, the closest preceding finger otherwise. Each hop at least
+     * halves the distance to key, so a request takes O(log N) hops.
+     */
+    public OutsidePeer nextHop(Key peerId, OutsidePeer successor, Key key) {
+        if (Helper.between(key, peerId, successor.getId()) || key.equals(successor.getId())) {
+            return successor;
+        }
+
+        OutsidePeer finger = closestPrecedingFinger(peerId, key);
+        return finger == null ? successor : finger;
     }
 
     public void setAllEntries(OutsidePeer outsidePeer) {
-        table.forEach(value -> value = outsidePeer);
+        table.replaceAll(value -> outsidePeer);
     }
 
     public void print() {
@@ -71,4 +89,4 @@ public class FingerTable {
             System.out.println("| " + i + " | " + table.get(i).getId() + " |");
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,219 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Erasure-coded fragments of a file. The file is cut into stripes of k shards
+ * (the last one padded with zeros), the m parity shards of every stripe are
+ * computed, and fragment i gets shard i of every stripe after a header:
+ * SDISFRAGMENT <k> <m> <index> <file_length> <shard_size>
+ */
+public class Fragments {
+    private static final String HEADER = "SDISFRAGMENT";
+    private static final int MAX_HEADER_SIZE = 128;
+
+    /**
+     * Header of a fragment
+     */
+    public static class Header {
+        public final int dataFragments;
+        public final int parityFragments;
+        public final int index;
+        public final long fileLength;
+        public final int shardSize;
+
+        public Header(int dataFragments, int parityFragments, int index, long fileLength, int shardSize) {
+            this.dataFragments = dataFragments;
+            this.parityFragments = parityFragments;
+            this.index = index;
+            this.fileLength = fileLength;
+            this.shardSize = shardSize;
+        }
+
+        public byte[] toBytes() {
+            return (HEADER + " " + dataFragments + " " + parityFragments + " " + index + " " + fileLength + " "
+                    + shardSize + "\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        public long getStripes() {
+            long stripeSize = (long) dataFragments * shardSize;
+            return (fileLength + stripeSize - 1) / stripeSize;
+        }
+
+        /**
+         * Gets the length of the fragment, header included
+         */
+        public long getFragmentLength() {
+            return toBytes().length + getStripes() * shardSize;
+        }
+    }
+
+    /**
+     * Gets the headers of the k + m fragments of a file. Shards are at most a
+     * transfer chunk, smaller for files smaller than k chunks.
+     */
+    public static Header[] headers(long fileLength, int dataFragments, int parityFragments) {
+        long shardSize = Math.min(Helper.CHUNK_SIZE, (fileLength + dataFragments - 1) / dataFragments);
+        Header[] headers = new Header[dataFragments + parityFragments];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = new Header(dataFragments, parityFragments, i, fileLength, (int) Math.max(1, shardSize));
+        }
+        return headers;
+    }
+
+    /**
+     * Writes the fragments of a file to the given streams, one per fragment
+     * index. A null stream, or one that fails, gets nothing (more).
+     *
+     * @return which streams failed
+     */
+    public static boolean[] encode(InputStream in, Header[] headers, OutputStream[] fragments) throws IOException {
+        Header first = headers[0];
+        int k = first.dataFragments;
+        int shardSize = first.shardSize;
+        ReedSolomon codec = new ReedSolomon(k, first.parityFragments);
+        byte[][] shards = new byte[headers.length][shardSize];
+        boolean[] failed = new boolean[headers.length];
+
+        for (int i = 0; i < headers.length; i++) {
+            write(fragments, failed, i, headers[i].toBytes(), headers[i].toBytes().length);
+        }
+
+        DataInputStream data = new DataInputStream(in);
+        long remaining = first.fileLength;
+        for (long stripe = 0; stripe < first.getStripes(); stripe++) {
+            for (int i = 0; i < k; i++) {
+                int length = (int) Math.min(shardSize, remaining);
+                data.readFully(shards[i], 0, length);
+                Arrays.fill(shards[i], length, shardSize, (byte) 0);
+                remaining -= length;
+            }
+            codec.encode(shards, shardSize);
+
+            for (int i = 0; i < headers.length; i++) {
+                write(fragments, failed, i, shards[i], shardSize);
+            }
+        }
+
+        return failed;
+    }
+
+    private static void write(OutputStream[] fragments, boolean[] failed, int i, byte[] bytes, int length) {
+        if (fragments[i] == null || failed[i]) {
+            return;
+        }
+        try {
+            fragments[i].write(bytes, 0, length);
+        } catch (IOException e) {
+            failed[i] = true;
+        }
+    }
+
+    /**
+     * Reads the header of a fragment
+     *
+     * @return the header, null if there is no file or it isn't a fragment
+     */
+    public static Header readHeader(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return readHeader(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static Header readHeader(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1 || line.length() == MAX_HEADER_SIZE) {
+                return null;
+            }
+            line.append((char) b);
+        }
+
+        String[] fields = line.toString().split(" ");
+        if (fields.length != 6 || !fields[0].equals(HEADER)) {
+            return null;
+        }
+        try {
+            return new Header(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                    Long.parseLong(fields[4]), Integer.parseInt(fields[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds a file from k of its fragments
+     */
+    public static void decode(List<Path> files, OutputStream out) throws IOException {
+        List<InputStream> ins = new ArrayList<InputStream>();
+        try {
+            Header first = null;
+            List<Integer> indexes = new ArrayList<Integer>();
+            for (Path file : files) {
+                InputStream in = new BufferedInputStream(Files.newInputStream(file), Helper.CHUNK_SIZE);
+                ins.add(in);
+                Header header = readHeader(in);
+                if (header == null) {
+                    throw new IOException(file + " isn't a fragment");
+                }
+                first = first == null ? header : first;
+                indexes.add(header.index);
+            }
+
+            int k = first.dataFragments;
+            if (files.size() < k) {
+                throw new IOException(k + " fragments are needed, there are " + files.size());
+            }
+
+            int[] rows = new int[k];
+            byte[][] inputs = new byte[k][first.shardSize];
+            byte[][] shards = new byte[k][first.shardSize];
+            for (int i = 0; i < k; i++) {
+                rows[i] = indexes.get(i);
+            }
+            byte[][] matrix = new ReedSolomon(k, first.parityFragments).decodingMatrix(rows);
+
+            long remaining = first.fileLength;
+            for (long stripe = 0; stripe < first.getStripes(); stripe++) {
+                for (int i = 0; i < k; i++) {
+                    readFully(ins.get(i), inputs[i], first.shardSize);
+                }
+                ReedSolomon.multiply(matrix, inputs, shards, first.shardSize);
+
+                for (int i = 0; i < k && remaining > 0; i++) {
+                    int length = (int) Math.min(first.shardSize, remaining);
+                    out.write(shards[i], 0, length);
+                    remaining -= length;
+                }
+            }
+        } finally {
+            for (InputStream in : ins) {
+                in.close();
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n == -1) {
+                throw new EOFException("Fragment is too short");
+            }
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends a heartbeat request (TEST) to the successors and the predecessor of a
+ * peer, each on its own connection and its own thread, and gives the failure
+ * detector the time every reply arrives. A neighbour whose connection is busy
+ * or slow to open holds up neither the round nor the others' heartbeats.
+ */
+public class Heartbeats implements Runnable {
+    private final Peer peer;
+    // Neighbours a heartbeat is still being sent to
+    private final Set<Key> sending = ConcurrentHashMap.newKeySet();
+
+    public Heartbeats(Peer peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public void run() {
+        List<OutsidePeer> neighbours = new ArrayList<OutsidePeer>(peer.getSuccessorList());
+        OutsidePeer predecessor = peer.getPredecessor();
+        if (predecessor != null && !neighbours.contains(predecessor)) {
+            neighbours.add(predecessor);
+        }
+
+        FailureDetector detector = peer.getFailureDetector();
+        detector.watch(neighbours);
+        for (OutsidePeer neighbour : neighbours) {
+            if (!sending.add(neighbour.getId())) {
+                continue;
+            }
+            try {
+                peer.getRequestExecutor().execute(() -> beat(detector, neighbour));
+            } catch (RejectedExecutionException e) {
+                // The peer was stopped
+                sending.remove(neighbour.getId());
+                return;
+            }
+        }
+    }
+
+    private void beat(FailureDetector detector, OutsidePeer neighbour) {
+        try {
+            CompletableFuture<String> reply = peer.getConnectionPool().sendHeartbeat(neighbour.getInetSocketAddress(),
+                    "TEST\n");
+            if (reply != null) {
+                reply.thenRun(() -> detector.heartbeat(neighbour));
+            }
+        } catch (IOException e) {
+            // No heartbeat, the suspicion grows
+        } finally {
+            sending.remove(neighbour.getId());
+        }
+    }
+}
@@ -1,34 +1,52 @@
+import java.io.EOFException;
 import java.io.File;
-import java.math.BigInteger;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 public class Helper {
-    static int numberOfNodes = 8;
+    static int numberOfNodes = Key.BITS;
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    // Transfers go through a fixed-size buffer, reused by every transfer of the thread
+    private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
 
     public static int getNumberOfNodes() {
         return numberOfNodes;
     }
 
-    public static BigInteger getFileId(String fileName) {
-        return getSHA1(fileName).mod(new BigInteger("2").pow(numberOfNodes));
+    public static Key getFileId(String fileName) {
+        return Key.of(getSHA1(fileName));
     }
 
-    public static BigInteger getPeerId(String ip, int port) {
-        return getSHA1(ip + ":" + port).mod(new BigInteger("2").pow(numberOfNodes));
+    public static Key getPeerId(String ip, int port) {
+        return Key.of(getSHA1(ip + ":" + port));
     }
 
-    public static BigInteger getSHA1(String input) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            byte[] encoded = digest.digest(input.getBytes());
-            return new BigInteger(1, encoded);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new BigInteger(1, "0".getBytes());
-        }
+    public static byte[] getSHA1(String input) {
+        return SHA1.get().digest(input.getBytes());
     }
 
-    public static boolean middlePeer(BigInteger id, BigInteger lBound, BigInteger rBound) {
+    public static byte[] getSHA1(byte[] input, int offset, int length) {
+        MessageDigest digest = SHA1.get();
+        digest.update(input, offset, length);
+        return digest.digest();
+    }
+
+    public static boolean middlePeer(Key id, Key lBound, Key rBound) {
         if (lBound.compareTo(rBound) > 0)
             if (id.compareTo(lBound) >= 0 || id.compareTo(rBound) <= 0) {
                 return true;
@@ -41,6 +59,143 @@ public class Helper {
         return false;
     }
 
+    /**
+     * Checks if id is in the open interval (from, to), going clockwise around
+     * the ring. When from and to are the same the interval is the whole ring
+     * but them.
+     */
+    public static boolean between(Key id, Key from, Key to) {
+        if (from.compareTo(to) < 0) {
+            return id.compareTo(from) > 0 && id.compareTo(to) < 0;
+        }
+
+        return id.compareTo(from) > 0 || id.compareTo(to) < 0;
+    }
+
+    /**
+     * Reads a '\n' terminated line from a binary stream, without reading past it
+     */
+    public static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                return line.toString();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * Copies exactly length bytes, one chunk at a time
+     */
+    public static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = CHUNK.get();
+
+        while (length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read == -1) {
+                throw new EOFException(length + " bytes missing");
+            }
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    /**
+     * Copies exactly length bytes to out, sending every chunk to next as well
+     * before writing it to out. If next fails, the copy to out goes on without
+     * it.
+     *
+     * @return whether the whole body was sent to next
+     */
+    public static boolean copy(InputStream in, OutputStream out, PeerConnection.RequestBody next, long length)
+            throws IOException {
+        byte[] buffer = CHUNK.get();
+
+        while (length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read == -1) {
+                if (next != null) {
+                    next.abort();
+                }
+                throw new EOFException(length + " bytes missing");
+            }
+
+            if (next != null) {
+                try {
+                    next.write(buffer, 0, read);
+                } catch (IOException e) {
+                    next.abort();
+                    next = null;
+                }
+            }
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+
+        if (next != null) {
+            try {
+                next.close();
+                return true;
+            } catch (IOException e) {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies exactly length bytes to all the given request bodies, one chunk at
+     * a time, and closes them. A body that fails is aborted and the others go
+     * on without it.
+     *
+     * @return the bodies that were sent whole
+     * @throws IOException if the source failed, every body is aborted then
+     */
+    public static List<PeerConnection.RequestBody> copy(InputStream in, List<PeerConnection.RequestBody> outs,
+            long length) throws IOException {
+        List<PeerConnection.RequestBody> open = new ArrayList<PeerConnection.RequestBody>(outs);
+        byte[] buffer = CHUNK.get();
+
+        while (length > 0 && !open.isEmpty()) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read == -1) {
+                for (PeerConnection.RequestBody out : open) {
+                    out.abort();
+                }
+                throw new EOFException(length + " bytes missing");
+            }
+
+            Iterator<PeerConnection.RequestBody> iterator = open.iterator();
+            while (iterator.hasNext()) {
+                PeerConnection.RequestBody out = iterator.next();
+                try {
+                    out.write(buffer, 0, read);
+                } catch (IOException e) {
+                    // Until it's aborted the request keeps the connection to itself
+                    out.abort();
+                    iterator.remove();
+                }
+            }
+            length -= read;
+        }
+
+        Iterator<PeerConnection.RequestBody> iterator = open.iterator();
+        while (iterator.hasNext()) {
+            try {
+                iterator.next().close();
+            } catch (IOException e) {
+                iterator.remove();
+            }
+        }
+        return open;
+    }
+
     public static void deleteFile(String fileId, String storage, String backup) {
         if (fileId.equals("") || fileId.equals(null)) {
             return;
@@ -70,4 +225,4 @@ public class Helper {
         // }
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
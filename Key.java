@@ -0,0 +1,148 @@
+import java.util.Random;
+
+/**
+ * Identifier of a peer or a file on the ring: the low Config.KEY_BITS bits (64
+ * or 160) of a SHA-1 hash. It's kept in three longs, so comparing keys and
+ * checking intervals never allocates.
+ */
+public final class Key implements Comparable<Key> {
+    public static final int BITS = Config.KEY_BITS;
+    private static final long HIGH_MASK = 0xffffffffL;
+
+    // Most significant first, high only uses its low 32 bits
+    private final long high;
+    private final long mid;
+    private final long low;
+
+    private Key(long high, long mid, long low) {
+        if (BITS == 64) {
+            high = 0;
+            mid = 0;
+        }
+
+        this.high = high & HIGH_MASK;
+        this.mid = mid;
+        this.low = low;
+    }
+
+    /**
+     * Gets the key of a SHA-1 digest, i.e. the digest mod 2^BITS
+     */
+    public static Key of(byte[] digest) {
+        int end = digest.length;
+        return new Key(getLong(digest, end - 24), getLong(digest, end - 16), getLong(digest, end - 8));
+    }
+
+    /**
+     * Parses a key written with toString
+     */
+    public static Key parse(String hex) {
+        int length = hex.length();
+        long low = Long.parseUnsignedLong(hex.substring(Math.max(0, length - 16)), 16);
+        long mid = length > 16 ? Long.parseUnsignedLong(hex.substring(Math.max(0, length - 32), length - 16), 16) : 0;
+        long high = length > 32 ? Long.parseUnsignedLong(hex.substring(0, length - 32), 16) : 0;
+        return new Key(high, mid, low);
+    }
+
+    public static Key random(Random random) {
+        return new Key(random.nextLong(), random.nextLong(), random.nextLong());
+    }
+
+    /**
+     * Gets (this + 2^i) mod 2^BITS
+     */
+    public Key plusPowerOfTwo(int i) {
+        long newLow = low, newMid = mid, newHigh = high;
+
+        if (i < 64) {
+            newLow += 1L << i;
+            if (Long.compareUnsigned(newLow, low) < 0) {
+                newMid++;
+                if (newMid == 0) {
+                    newHigh++;
+                }
+            }
+        } else if (i < 128) {
+            newMid += 1L << (i - 64);
+            if (Long.compareUnsigned(newMid, mid) < 0) {
+                newHigh++;
+            }
+        } else {
+            newHigh += 1L << (i - 128);
+        }
+
+        return new Key(newHigh, newMid, newLow);
+    }
+
+    @Override
+    public int compareTo(Key other) {
+        if (high != other.high) {
+            return Long.compare(high, other.high);
+        }
+        if (mid != other.mid) {
+            return Long.compareUnsigned(mid, other.mid);
+        }
+        return Long.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Key))
+            return false;
+        Key other = (Key) o;
+        return high == other.high && mid == other.mid && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high ^ mid ^ low);
+    }
+
+    /**
+     * Hexadecimal, with no leading zeros
+     */
+    @Override
+    public String toString() {
+        if (high != 0) {
+            return Long.toHexString(high) + pad(mid) + pad(low);
+        }
+        if (mid != 0) {
+            return Long.toHexString(mid) + pad(low);
+        }
+        return Long.toHexString(low);
+    }
+
+    /**
+     * Big-endian, BITS / 8 bytes long, read back with of
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[BITS / 8];
+        int end = bytes.length;
+        putLong(bytes, end - 24, high);
+        putLong(bytes, end - 16, mid);
+        putLong(bytes, end - 8, low);
+        return bytes;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = offset + 7; i >= offset && i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static String pad(long value) {
+        String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = Math.max(0, offset); i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+}
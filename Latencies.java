@@ -0,0 +1,54 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reply times of the last requests of each kind this peer sent, to tell a
+ * late reply from a usual one
+ */
+public class Latencies {
+    private static final int SAMPLES = 256;
+    private static final int MIN_SAMPLES = 10;
+
+    private final ConcurrentHashMap<String, Samples> latencies = new ConcurrentHashMap<String, Samples>();
+
+    /**
+     * Reply times of a single kind of request
+     */
+    private static class Samples {
+        private final long[] samples = new long[SAMPLES];
+        private long count;
+    }
+
+    /**
+     * Records how long a request took to be answered
+     */
+    public void record(String command, long millis) {
+        Samples times = latencies.computeIfAbsent(command, key -> new Samples());
+        synchronized (times) {
+            times.samples[(int) (times.count++ % SAMPLES)] = millis;
+        }
+    }
+
+    /**
+     * Gets the reply time the given percentage of the last requests were
+     * answered within
+     *
+     * @return the time in ms, -1 if too few were answered to tell
+     */
+    public long percentile(String command, int percentile) {
+        Samples times = latencies.get(command);
+        if (times == null) {
+            return -1;
+        }
+
+        long[] sorted;
+        synchronized (times) {
+            if (times.count < MIN_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(times.samples, (int) Math.min(times.count, SAMPLES));
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+}
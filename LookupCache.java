@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers which peer owns each key range the peer looked up, so requests for
+ * a key in a known range go straight to its owner. Least recently used ranges
+ * are dropped first.
+ */
+public class LookupCache {
+    private static final int CAPACITY = 256;
+    // Joins far away from this peer are never seen, old ranges are looked up again
+    private static final long MAX_AGE = 60000;
+
+    private static class Range {
+        // The owner's predecessor, the range is (start, owner]
+        private final Key start;
+        private final OutsidePeer owner;
+        private final long created = System.currentTimeMillis();
+
+        private Range(Key start, OutsidePeer owner) {
+            this.start = start;
+            this.owner = owner;
+        }
+
+        private boolean contains(Key key) {
+            return Helper.between(key, start, owner.getId()) || key.equals(owner.getId());
+        }
+    }
+
+    // Ranges by the id of their owner, which is where they end
+    private final TreeMap<Key, Range> ranges = new TreeMap<Key, Range>();
+    private final LinkedHashMap<Key, Range> recentlyUsed = new LinkedHashMap<Key, Range>(16, 0.75f,
+            true);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Gets the owner of key, or null if its range isn't known
+     */
+    public OutsidePeer get(Key key) {
+        lock.lock();
+        try {
+            Range range = find(key);
+            if (range == null) {
+                return null;
+            }
+
+            if (System.currentTimeMillis() - range.created > MAX_AGE) {
+                remove(range);
+                return null;
+            }
+
+            recentlyUsed.get(range.owner.getId());
+            return range.owner;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that owner, whose predecessor is start, owns the keys in
+     * (start, owner]
+     */
+    public void put(Key start, OutsidePeer owner) {
+        Range range = new Range(start, owner);
+
+        lock.lock();
+        try {
+            // Known ranges that overlap this one are out of date
+            for (Range other : new ArrayList<Range>(ranges.values())) {
+                if (range.contains(other.owner.getId()) || other.contains(owner.getId())) {
+                    remove(other);
+                }
+            }
+
+            ranges.put(owner.getId(), range);
+            recentlyUsed.put(owner.getId(), range);
+
+            if (recentlyUsed.size() > CAPACITY) {
+                Iterator<Range> eldest = recentlyUsed.values().iterator();
+                ranges.remove(eldest.next().owner.getId());
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the range that contains id, such as the range of a peer that
+     * failed or one a peer has just joined
+     */
+    public void invalidate(Key id) {
+        lock.lock();
+        try {
+            Range range = find(id);
+            if (range != null) {
+                remove(range);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Range find(Key key) {
+        // Ranges don't overlap, so only the first one ending at or after key can
+        // hold it, or the one that wraps around zero
+        Map.Entry<Key, Range> entry = ranges.ceilingEntry(key);
+        if (entry == null) {
+            entry = ranges.firstEntry();
+        }
+
+        return entry != null && entry.getValue().contains(key) ? entry.getValue() : null;
+    }
+
+    private void remove(Range range) {
+        ranges.remove(range.owner.getId());
+        recentlyUsed.remove(range.owner.getId());
+    }
+}
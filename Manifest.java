@@ -0,0 +1,139 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Chunks a file was split into, in order. It's backed up under the file's id
+ * in place of the file:
+ * SDISCHUNKS <file_length> <chunk_count>
+ * <chunk_key> <chunk_length> (one line per chunk)
+ */
+public class Manifest {
+    private static final String HEADER = "SDISCHUNKS";
+
+    private final long fileLength;
+    private final List<Key> chunks = new ArrayList<Key>();
+    private final List<Integer> lengths = new ArrayList<Integer>();
+
+    public Manifest(long fileLength) {
+        this.fileLength = fileLength;
+    }
+
+    public void add(Key chunkId, int length) {
+        chunks.add(chunkId);
+        lengths.add(length);
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public int size() {
+        return chunks.size();
+    }
+
+    public Key getChunk(int i) {
+        return chunks.get(i);
+    }
+
+    public int getLength(int i) {
+        return lengths.get(i);
+    }
+
+    /**
+     * Gets every chunk once, in the order they first appear
+     */
+    public Set<Key> getDistinctChunks() {
+        return new LinkedHashSet<Key>(chunks);
+    }
+
+    public byte[] toBytes() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(HEADER).append(' ').append(fileLength).append(' ').append(chunks.size()).append('\n');
+        for (int i = 0; i < chunks.size(); i++) {
+            builder.append(chunks.get(i)).append(' ').append(lengths.get(i)).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Gets the manifest in one line, to be sent in a reply:
+     * <file_length> <chunk_count> <chunk_key> <chunk_length> ...
+     */
+    public String toLine() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(fileLength).append(' ').append(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            builder.append(' ').append(chunks.get(i)).append(' ').append(lengths.get(i));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads a manifest sent by toLine, starting at the given field
+     *
+     * @return the manifest, null if the fields aren't a whole manifest
+     */
+    public static Manifest fromLine(String[] fields, int start) {
+        try {
+            Manifest manifest = new Manifest(Long.parseLong(fields[start]));
+            int count = Integer.parseInt(fields[start + 1]);
+            long length = 0;
+
+            for (int i = 0; i < count; i++) {
+                manifest.add(Key.parse(fields[start + 2 + 2 * i]), Integer.parseInt(fields[start + 3 + 2 * i]));
+                length += manifest.getLength(i);
+            }
+
+            return fields.length == start + 2 + 2 * count && length == manifest.fileLength ? manifest : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a manifest from a file
+     *
+     * @return the manifest, null if there is no file or it isn't a whole
+     *         manifest (e.g. a file that was backed up as it is)
+     */
+    public static Manifest read(Path file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.US_ASCII))) {
+            char[] start = new char[HEADER.length() + 1];
+            if (reader.read(start) != start.length || !new String(start).equals(HEADER + " ")) {
+                return null;
+            }
+
+            String[] header = reader.readLine().split(" ");
+            Manifest manifest = new Manifest(Long.parseLong(header[0]));
+            int count = Integer.parseInt(header[1]);
+            long length = 0;
+
+            for (int i = 0; i < count; i++) {
+                String line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+                String[] fields = line.split(" ");
+                manifest.add(Key.parse(fields[0]), Integer.parseInt(fields[1]));
+                length += manifest.getLength(i);
+            }
+
+            return reader.read() == -1 && length == manifest.fileLength ? manifest : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // Not a manifest after all
+            return null;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Peers of the same JVM connected by in-memory pipes, to run a ring without
+ * sockets and TLS. Every direction of a connection is a link that delivers
+ * what's written to it in segments of up to a chunk, each one after the time
+ * it takes to go through the link's bandwidth plus the latency and a random
+ * jitter. A lost segment arrives a retransmission timeout later, as over TCP,
+ * so the stream stays reliable and in order. The n-th connection a peer
+ * opens on a channel to another peer draws the same random delays and losses
+ * for the same segments in every run with the same seed.
+ * <p>
+ * This is not a simulator: the delays are waited for on the wall clock, not on
+ * a simulated one, and every peer runs its own threads (on Java 17 up to 150
+ * platform threads each, see Peer). How the threads are scheduled still
+ * decides what each peer sends when, so two runs with the same seed aren't
+ * the same run. It's meant for rings of tens of peers: 64 ran through the
+ * cluster run, 128 didn't get through it in 10 minutes.
+ */
+public class MemoryTransport extends Transport {
+    private static final long RETRANSMISSION_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(200);
+    // Bytes written and not read yet before writers wait, about what the socket buffers of a
+    // loopback TCP connection hold. Less makes relays of bodies between busy peers wait for each
+    // other where sockets wouldn't.
+    private static final int WINDOW = 64 * Helper.CHUNK_SIZE;
+
+    private final long latency;
+    private final long jitter;
+    private final long bandwidth;
+    private final double loss;
+    private final long seed;
+    private final ConcurrentHashMap<InetSocketAddress, MemoryListener> listeners = new ConcurrentHashMap<InetSocketAddress, MemoryListener>();
+    // Connections opened so far on each channel from a peer to another
+    private final ConcurrentHashMap<String, AtomicInteger> connections = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Transport with the sdis.memory.* settings
+     */
+    public MemoryTransport() {
+        this(Config.MEMORY_LATENCY, Config.MEMORY_JITTER, Config.MEMORY_BANDWIDTH, Config.MEMORY_LOSS,
+                Config.MEMORY_SEED);
+    }
+
+    /**
+     * @param latency   one-way delay, in milliseconds
+     * @param jitter    largest random delay added to the latency, in milliseconds
+     * @param bandwidth KB/s of every direction of a connection, 0 is unlimited
+     * @param loss      percentage of the segments lost
+     * @param seed      seed of the random delays and losses
+     */
+    public MemoryTransport(int latency, int jitter, int bandwidth, double loss, long seed) {
+        this.latency = TimeUnit.MILLISECONDS.toNanos(latency);
+        this.jitter = TimeUnit.MILLISECONDS.toNanos(jitter);
+        this.bandwidth = bandwidth * 1024L;
+        this.loss = loss / 100;
+        this.seed = seed;
+    }
+
+    @Override
+    public Connection connect(InetSocketAddress local, InetSocketAddress address, String channel)
+            throws IOException {
+        MemoryListener listener = listeners.get(address);
+        if (listener == null) {
+            throw new ConnectException("Connection refused: " + address);
+        }
+
+        // Seeded by who connects to whom on which channel, not by which connection got here first, so
+        // the delays don't depend on how the threads were scheduled
+        String name = local + " " + address + " " + channel;
+        int n = connections.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+        long connectionSeed = seed * 31 + Objects.hash(name, n);
+        Link request = new Link(new Random(connectionSeed));
+        Link reply = new Link(new Random(~connectionSeed));
+
+        // The handshake takes a round trip
+        sleep(2 * latency);
+        listener.connections.add(new MemoryConnection(reply, request, String.valueOf(local)));
+        return new MemoryConnection(request, reply, address.toString());
+    }
+
+    @Override
+    public Listener listen(InetSocketAddress address) throws IOException {
+        MemoryListener listener = new MemoryListener(address);
+        if (listeners.putIfAbsent(address, listener) != null) {
+            throw new SocketException("Address already in use: " + address);
+        }
+        return listener;
+    }
+
+    private static void sleep(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private class MemoryListener implements Listener {
+        private final InetSocketAddress address;
+        private final LinkedBlockingQueue<MemoryConnection> connections = new LinkedBlockingQueue<MemoryConnection>();
+        private volatile boolean closed;
+
+        MemoryListener(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            try {
+                MemoryConnection connection = connections.take();
+                if (closed) {
+                    throw new SocketException("Listener closed");
+                }
+                return connection;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            listeners.remove(address, this);
+            // Wakes accept up
+            connections.add(new MemoryConnection(new Link(null), new Link(null), "closed"));
+        }
+    }
+
+    private static class MemoryConnection implements Connection {
+        private final Link out;
+        private final Link in;
+        private final String name;
+
+        MemoryConnection(Link out, Link in, String name) {
+            this.out = out;
+            this.in = in;
+            this.name = name;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in.input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out.output;
+        }
+
+        @Override
+        public void close() {
+            out.closeWriter();
+            in.closeReader();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class Segment {
+        final byte[] data;
+        final long deliveryTime;
+        int position;
+
+        Segment(byte[] data, long deliveryTime) {
+            this.data = data;
+            this.deliveryTime = deliveryTime;
+        }
+    }
+
+    /**
+     * One direction of a connection
+     */
+    private class Link {
+        private final Random random;
+        private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+        // A lock rather than synchronized, so waiting readers and writers don't pin virtual threads
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition arrived = lock.newCondition();
+        private final Condition read = lock.newCondition();
+        private int buffered;
+        private long linkFreeTime;
+        private long lastDeliveryTime;
+        private boolean writerClosed;
+        private boolean readerClosed;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Link.this.read(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int length = Math.min(len, Helper.CHUNK_SIZE);
+                    Link.this.write(b, off, length);
+                    off += length;
+                    len -= length;
+                }
+            }
+
+            @Override
+            public void close() {
+                closeWriter();
+            }
+        };
+
+        Link(Random random) {
+            this.random = random;
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            byte[] data = new byte[len];
+            System.arraycopy(b, off, data, 0, len);
+
+            lock.lock();
+            try {
+                while (buffered >= WINDOW && !readerClosed && !writerClosed) {
+                    read.awaitUninterruptibly();
+                }
+                if (readerClosed || writerClosed) {
+                    throw new SocketException("Connection closed");
+                }
+
+                long now = System.nanoTime();
+                linkFreeTime = Math.max(now, linkFreeTime) + (bandwidth == 0 ? 0 : len * 1_000_000_000L / bandwidth);
+                long deliveryTime = linkFreeTime + latency + (jitter == 0 ? 0 : (long) (random.nextDouble() * jitter));
+                while (loss > 0 && random.nextDouble() < loss) {
+                    deliveryTime += RETRANSMISSION_TIMEOUT;
+                }
+                // A segment can't overtake the ones before it
+                lastDeliveryTime = Math.max(deliveryTime, lastDeliveryTime);
+
+                segments.add(new Segment(data, lastDeliveryTime));
+                buffered += len;
+                arrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            lock.lock();
+            try {
+                while (true) {
+                    if (readerClosed) {
+                        throw new SocketException("Connection closed");
+                    }
+
+                    Segment segment = segments.peek();
+                    if (segment == null) {
+                        if (writerClosed) {
+                            return -1;
+                        }
+                        arrived.await();
+                        continue;
+                    }
+
+                    long wait = segment.deliveryTime - System.nanoTime();
+                    if (wait > 0) {
+                        arrived.awaitNanos(wait);
+                        continue;
+                    }
+
+                    int length = Math.min(len, segment.data.length - segment.position);
+                    System.arraycopy(segment.data, segment.position, b, off, length);
+                    segment.position += length;
+                    if (segment.position == segment.data.length) {
+                        segments.poll();
+                    }
+                    buffered -= length;
+                    read.signalAll();
+                    return length;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * What was written is still delivered, then the reader gets the end of
+         * the stream
+         */
+        void closeWriter() {
+            lock.lock();
+            try {
+                writerClosed = true;
+                arrived.signalAll();
+                read.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * The writer fails from now on
+         */
+        void closeReader() {
+            lock.lock();
+            try {
+                readerClosed = true;
+                segments.clear();
+                buffered = 0;
+                arrived.signalAll();
+                read.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
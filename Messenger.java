@@ -1,82 +1,55 @@
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.InetSocketAddress;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
+import java.util.concurrent.CompletableFuture;
 
 public class Messenger {
-    public static SSLSocket sendMessage(String message, InetSocketAddress socket) {
-        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        SSLSocket sslSocket = null;
+    public static CompletableFuture<String> sendMessage(ConnectionPool pool, String message, InetSocketAddress socket) {
         try {
-            sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket.getAddress().getHostAddress(),
-                    socket.getPort());
-
-            DataOutputStream out = new DataOutputStream(sslSocket.getOutputStream());
-            out.writeBytes(message);
-            out.flush();
+            return pool.send(socket, message);
         } catch (IOException e) {
+            CompletableFuture<String> reply = new CompletableFuture<String>();
+            reply.completeExceptionally(e);
+            return reply;
         }
-        return sslSocket;
     }
 
-    public static void sendUpdatePosition(String predecessorIp, int predecessorPort, String successorIp,
+    public static void sendUpdatePosition(ConnectionPool pool, String predecessorIp, int predecessorPort, String successorIp,
             int successorPort, InetSocketAddress address) {
         String message = "UPDATEPOSITION " + predecessorIp + " " + predecessorPort + " " + successorIp + " "
                 + successorPort + "\n";
-        SSLSocket sslSocket = null;
         try {
-            sslSocket = sendMessage(message, address);
+            sendMessage(pool, message, address);
         } catch (Exception e) {
         }
     }
 
-    public static void sendFindSuccessor(BigInteger peerKey, String newPeerIp, int newPeerPort,
-            InetSocketAddress address) {
-
-        String message = "FINDSUCCESSOR " + peerKey + " " + newPeerIp + " " + newPeerPort + "\n";
-        SSLSocket sslSocket = null;
-
-        try {
-            sslSocket = sendMessage(message, address);
-        } catch (Exception e) {
-        }
-    }
-
-    public static void sendFindFinger(InetSocketAddress ipAddress, InetSocketAddress entryAddress, int index,
-            BigInteger key) {
+    public static void sendFindFinger(ConnectionPool pool, InetSocketAddress ipAddress, InetSocketAddress entryAddress,
+            int index, Key key) {
         String message = "MARCO " + index + " " + ipAddress.getAddress().getHostAddress() + " " + ipAddress.getPort()
                 + " " + key + "\n";
-        SSLSocket sslSocket = null;
-
         try {
-            sslSocket = sendMessage(message, entryAddress);
+            sendMessage(pool, message, entryAddress);
         } catch (Exception e) {
         }
     }
 
-    public static void sendUpdateFinger(InetSocketAddress entryAddress, InetSocketAddress destinationIpAddress,
-            int index) {
+    public static void sendUpdateFinger(ConnectionPool pool, InetSocketAddress entryAddress,
+            InetSocketAddress destinationIpAddress, int index) {
         String message = "UPDATEFINGER " + entryAddress.getAddress().getHostAddress() + " " + entryAddress.getPort()
                 + " " + index + "\n";
-        SSLSocket sslSocket = null;
-
         try {
-            sslSocket = sendMessage(message, destinationIpAddress);
+            sendMessage(pool, message, destinationIpAddress);
         } catch (Exception e) {
         }
     }
 
-    public static void sendStored(BigInteger fileKey, String myIpAddress, int myPort, InetSocketAddress socket) {
+    public static void sendStored(ConnectionPool pool, Key fileKey, String myIpAddress, int myPort, InetSocketAddress socket) {
         String message = "STORED " + fileKey + " " + myIpAddress + " " + myPort + "\n";
 
-        SSLSocket sslSocket = null;
-
         try {
-            sslSocket = sendMessage(message, socket);
+            sendMessage(pool, message, socket);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
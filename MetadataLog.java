@@ -0,0 +1,522 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the changes to a peer's Storage, so its files and
+ * location table survive a restart without asking the other peers.
+ *
+ * Every change is appended to the current log segment as a record:
+ * <length> <crc32> <type> <fields>. Once a segment is big enough a new one is
+ * started and a snapshot of the whole Storage replaces the older segments. The
+ * snapshot is taken while changes keep coming, so it may already hold some of
+ * the changes of the segments after it; replaying them again is harmless
+ * because every record sets a value rather than changing it.
+ *
+ * A record that can't be written is written again to a new segment. If that
+ * fails too the log stops, and the Storage is read-only from then on: nothing
+ * stored after that could be found again after a restart.
+ */
+public class MetadataLog {
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String SNAPSHOT = "snapshot";
+    private static final String SEGMENT_PREFIX = "log.";
+    private static final int SNAPSHOT_MAGIC = 0x53444d31; // "SDM1"
+
+    private static final byte STORED = 1;
+    private static final byte UNSTORED = 2;
+    private static final byte ASKED = 3;
+    private static final byte UNASKED = 4;
+    private static final byte LOCATIONS = 5;
+    private static final byte LOCATION = 6;
+    private static final byte UNLOCATION = 7;
+    private static final byte NO_LOCATIONS = 8;
+    private static final byte CLEAR_LOCATIONS = 9;
+    private static final byte SPACE = 10;
+    private static final byte REFERENCES = 11;
+    private static final byte STORED_TYPED = 12;
+
+    private final Path directory;
+    private final Storage storage;
+    // Appends and segment changes, a lock so waiting writers don't pin virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // Peers of the records being loaded, most files are held by the same few
+    private final Map<String, OutsidePeer> peers = new HashMap<String, OutsidePeer>();
+    private FileChannel segment;
+    private long segmentNumber;
+    private volatile IOException failure;
+
+    private MetadataLog(Path directory, Storage storage) {
+        this.directory = directory;
+        this.storage = storage;
+    }
+
+    /**
+     * Loads the Storage saved in a directory, then logs its changes there
+     */
+    public static MetadataLog open(Path directory, Storage storage) throws IOException {
+        Files.createDirectories(directory);
+        MetadataLog log = new MetadataLog(directory, storage);
+
+        long start = System.currentTimeMillis();
+        long firstSegment = log.readSnapshot();
+        TreeMap<Long, Path> segments = log.listSegments();
+        int records = 0;
+        for (Map.Entry<Long, Path> entry : segments.entrySet()) {
+            if (entry.getKey() >= firstSegment) {
+                records += log.replay(entry.getValue());
+            }
+        }
+        System.out.println("Loaded " + storage.getStoredFiles().size() + " stored files and "
+                + storage.getFileLocations().size() + " file locations (" + records + " log records) in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        log.peers.clear();
+
+        // A torn record may end the last segment, new records go to a new one
+        log.startSegment(segments.isEmpty() ? firstSegment : Math.max(firstSegment, segments.lastKey() + 1));
+        return log;
+    }
+
+    public void stored(Key fileId, long size, int type) {
+        append(encode(type == BodyType.PLAIN ? STORED : STORED_TYPED, fileId, null, size, type));
+    }
+
+    public void unstored(Key fileId) {
+        append(UNSTORED, fileId, null, 0);
+    }
+
+    public void asked(Key fileId) {
+        append(ASKED, fileId, null, 0);
+    }
+
+    public void unasked(Key fileId) {
+        append(UNASKED, fileId, null, 0);
+    }
+
+    public void locations(Key fileId) {
+        append(LOCATIONS, fileId, null, 0);
+    }
+
+    public void location(Key fileId, OutsidePeer peer) {
+        append(LOCATION, fileId, peer.getInetSocketAddress(), 0);
+    }
+
+    public void unlocation(Key fileId, InetSocketAddress address) {
+        append(UNLOCATION, fileId, address, 0);
+    }
+
+    public void noLocations(Key fileId) {
+        append(NO_LOCATIONS, fileId, null, 0);
+    }
+
+    public void clearLocations() {
+        append(CLEAR_LOCATIONS, null, null, 0);
+    }
+
+    public void space(long availableSpace) {
+        append(SPACE, null, null, availableSpace);
+    }
+
+    public void references(Key chunkId, int references) {
+        append(REFERENCES, chunkId, null, references);
+    }
+
+    /**
+     * Tells if the log stopped, as a record couldn't be written
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Makes sure the records appended so far survive a power loss, not only a
+     * crash of the peer
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            if (failure == null) {
+                segment.force(false);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(byte type, Key fileId, InetSocketAddress address, long value) {
+        append(encode(type, fileId, address, value));
+    }
+
+    private void append(ByteBuffer record) {
+        boolean full;
+
+        lock.lock();
+        try {
+            if (failure != null) {
+                return;
+            }
+            try {
+                write(record);
+            } catch (IOException e) {
+                // A torn record only ends the replay of its own segment
+                e.printStackTrace();
+                record.rewind();
+                try {
+                    segment.close();
+                } catch (IOException closing) {
+                }
+                startSegment(segmentNumber + 1);
+                write(record);
+            }
+            full = segment.position() >= MAX_SEGMENT_SIZE;
+        } catch (IOException e) {
+            fail(e);
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        if (full && compacting.compareAndSet(false, true)) {
+            Threads.start(this::compact, "MetadataLog-compaction");
+        }
+    }
+
+    private void write(ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            segment.write(record);
+        }
+    }
+
+    /**
+     * Stops the log, called with the lock held
+     */
+    private void fail(IOException e) {
+        failure = e;
+        System.out.println("The metadata log in " + directory + " failed, no more files are stored: " + e);
+        e.printStackTrace();
+    }
+
+    /**
+     * Starts a new segment and replaces the older ones with a snapshot
+     */
+    private void compact() {
+        try {
+            long firstSegment;
+            lock.lock();
+            try {
+                if (failure != null) {
+                    return;
+                }
+                // The new segment is open before the old one is closed, records always have somewhere to go
+                FileChannel previous = segment;
+                startSegment(segmentNumber + 1);
+                firstSegment = segmentNumber;
+                try {
+                    previous.force(false);
+                    previous.close();
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            writeSnapshot(firstSegment);
+            for (Map.Entry<Long, Path> entry : listSegments().headMap(firstSegment).entrySet()) {
+                Files.delete(entry.getValue());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private void startSegment(long number) throws IOException {
+        segment = FileChannel.open(directory.resolve(SEGMENT_PREFIX + number), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentNumber = number;
+    }
+
+    /**
+     * Writes every entry of the Storage as records, next to the number of the
+     * first segment that isn't in it
+     */
+    private void writeSnapshot(long firstSegment) throws IOException {
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, Helper.CHUNK_SIZE))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(firstSegment);
+
+            writeRecord(out, encode(SPACE, null, null, storage.getAvailableSpace()));
+            for (Key fileId : storage.getStoredFiles()) {
+                long size = storage.getStoredFileSize(fileId);
+                int type = storage.getStoredType(fileId);
+                if (size != -1) {
+                    writeRecord(out, encode(type == BodyType.PLAIN ? STORED : STORED_TYPED, fileId, null, size, type));
+                }
+            }
+            for (Key fileId : storage.getmyAskedFiles()) {
+                writeRecord(out, encode(ASKED, fileId, null, 0));
+            }
+            for (Map.Entry<Key, Integer> entry : storage.getChunkReferences().entrySet()) {
+                writeRecord(out, encode(REFERENCES, entry.getKey(), null, entry.getValue()));
+            }
+            for (Map.Entry<Key, List<OutsidePeer>> entry : storage.getFileLocations().entrySet()) {
+                writeRecord(out, encode(LOCATIONS, entry.getKey(), null, 0));
+                for (OutsidePeer peer : new ArrayList<OutsidePeer>(entry.getValue())) {
+                    writeRecord(out, encode(LOCATION, entry.getKey(), peer.getInetSocketAddress(), 0));
+                }
+            }
+
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeRecord(OutputStream out, ByteBuffer record) throws IOException {
+        out.write(record.array(), 0, record.limit());
+    }
+
+    /**
+     * Loads the snapshot, if there is one, returning the number of the first
+     * segment to replay after it
+     */
+    private long readSnapshot() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.notExists(snapshot)) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Bad metadata snapshot " + snapshot);
+            }
+            long firstSegment = buffer.getLong();
+            apply(buffer);
+            return firstSegment;
+        }
+    }
+
+    private int replay(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            return apply(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Applies the records of a mapped file to the Storage, up to the end or to
+     * the first torn record, returning how many were applied
+     */
+    private int apply(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        int records = 0;
+
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            buffer.position(buffer.position() + length);
+
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            try {
+                decode(payload);
+                records++;
+            } catch (BufferUnderflowException | IllegalArgumentException | UnknownHostException e) {
+                break;
+            }
+        }
+
+        return records;
+    }
+
+    private static ByteBuffer encode(byte type, Key fileId, InetSocketAddress address, long value) {
+        return encode(type, fileId, address, value, BodyType.PLAIN);
+    }
+
+    /**
+     * Record: <length> <crc32> <type> [<file_key>] [<ip_address> <port>] [<value>] [<body_type>]
+     */
+    private static ByteBuffer encode(byte type, Key fileId, InetSocketAddress address, long value, int bodyType) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(0); // room for the length and the crc
+            out.writeByte(type);
+            if (fileId != null) {
+                writeBytes(out, fileId.toBytes());
+            }
+            if (address != null) {
+                writeBytes(out, address.getAddress().getAddress());
+                out.writeInt(address.getPort());
+            }
+            if (type == STORED || type == STORED_TYPED || type == SPACE || type == REFERENCES) {
+                out.writeLong(value);
+            }
+            if (type == STORED_TYPED) {
+                out.writeByte(bodyType);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.limit() - 8);
+        record.putInt(0, record.limit() - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    private void decode(ByteBuffer payload) throws UnknownHostException {
+        byte type = payload.get();
+
+        switch (type) {
+            case STORED:
+                storage.addStoredFile(readKey(payload), payload.getLong());
+                break;
+            case STORED_TYPED: {
+                Key fileId = readKey(payload);
+                long size = payload.getLong();
+                storage.addStoredFile(fileId, size, payload.get());
+                break;
+            }
+            case UNSTORED:
+                storage.removeStoredFile(readKey(payload));
+                break;
+            case ASKED:
+                storage.addAskedFile(readKey(payload));
+                break;
+            case UNASKED:
+                storage.removeAskedFile(readKey(payload));
+                break;
+            case LOCATIONS:
+                storage.initializeFileLocation(readKey(payload));
+                break;
+            case LOCATION:
+                storage.addFileLocation(readKey(payload), readPeer(payload));
+                break;
+            case UNLOCATION: {
+                Key fileId = readKey(payload);
+                InetSocketAddress address = readPeer(payload).getInetSocketAddress();
+                storage.removePeerLocation(fileId, address.getHostString(), address.getPort());
+                break;
+            }
+            case NO_LOCATIONS:
+                storage.removeFileLocation(readKey(payload));
+                break;
+            case CLEAR_LOCATIONS:
+                storage.clearFileLocation();
+                break;
+            case SPACE:
+                storage.setAvailableSpace(payload.getLong());
+                break;
+            case REFERENCES: {
+                Key chunkId = readKey(payload);
+                storage.setChunkReferences(chunkId, (int) payload.getLong());
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown metadata record " + type);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.get() & 0xff];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static Key readKey(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        if (bytes.length < 8) {
+            throw new IllegalArgumentException("Bad key in metadata record");
+        }
+        return Key.of(bytes);
+    }
+
+    /**
+     * Reads a peer's address, making each peer (and hashing its id) only once
+     */
+    private OutsidePeer readPeer(ByteBuffer buffer) throws UnknownHostException {
+        byte[] ipAddress = readBytes(buffer);
+        int port = buffer.getInt();
+        String name = Arrays.toString(ipAddress) + port;
+
+        OutsidePeer peer = peers.get(name);
+        if (peer == null) {
+            peer = new OutsidePeer(new InetSocketAddress(InetAddress.getByAddress(ipAddress), port));
+            peers.put(name, peer);
+        }
+        return peer;
+    }
+
+    private TreeMap<Long, Path> listSegments() {
+        TreeMap<Long, Path> segments = new TreeMap<Long, Path>();
+        File[] files = directory.toFile().listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length())), file.toPath());
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        }
+
+        return segments;
+    }
+}
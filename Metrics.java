@@ -0,0 +1,322 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Latency, byte and connection counts of the requests a peer handles, kept
+ * per command and published as MBeans, e.g. for jconsole or a JMX exporter.
+ * Updating them is a few atomic adds per request.
+ */
+public class Metrics implements PeerMetricsMBean {
+    // A peer sending garbage can't make MBeans without end, commands past these count as one
+    private static final int MAX_COMMANDS = 64;
+    private static final String OTHER = "OTHER";
+
+    private final Peer peer;
+    private final long start = System.nanoTime();
+    private final ConcurrentHashMap<String, Command> commands = new ConcurrentHashMap<String, Command>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final Histogram queueWait = new Histogram();
+    private final AtomicInteger incomingConnections = new AtomicInteger();
+    private String objectNamePrefix;
+
+    private class Command implements CommandMetricsMBean {
+        final Histogram latency = new Histogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        public double getThroughput() {
+            return latency.getCount() * 1e9 / Math.max(1, System.nanoTime() - start);
+        }
+
+        public double getMeanMicros() {
+            return latency.getMean();
+        }
+
+        public long getMaxMicros() {
+            return latency.getMax();
+        }
+
+        public long getP50Micros() {
+            return latency.percentile(50);
+        }
+
+        public long getP90Micros() {
+            return latency.percentile(90);
+        }
+
+        public long getP99Micros() {
+            return latency.percentile(99);
+        }
+
+        public long getP999Micros() {
+            return latency.percentile(99.9);
+        }
+    }
+
+    public Metrics(Peer peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Publishes the peer's MBeans, named after its id, before it handles any
+     * request. Metrics are kept even if they can't be published.
+     */
+    public void register(Key id) {
+        objectNamePrefix = "sdis:peer=" + id + ",";
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, PeerMetricsMBean.class),
+                    new ObjectName("sdis:type=Peer,id=" + id));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void register(String name, Command command) {
+        if (objectNamePrefix == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(command, CommandMetricsMBean.class),
+                    new ObjectName(objectNamePrefix + "type=Command,name="
+                            + (name.matches("[A-Za-z0-9_]+") ? name : ObjectName.quote(name))));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Unpublishes the peer's MBeans
+     */
+    public void unregister() {
+        if (objectNamePrefix == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : server.queryNames(new ObjectName(objectNamePrefix + "*"), null)) {
+                server.unregisterMBean(name);
+            }
+            server.unregisterMBean(new ObjectName("sdis:type=Peer,id=" + peer.getId()));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectNamePrefix = null;
+    }
+
+    private Command command(String name) {
+        Command command = commands.get(name);
+        if (command != null) {
+            return command;
+        }
+
+        if (commands.size() >= MAX_COMMANDS) {
+            name = OTHER;
+        }
+        Command created = new Command();
+        command = commands.putIfAbsent(name, created);
+        if (command != null) {
+            return command;
+        }
+        register(name, created);
+        return created;
+    }
+
+    /**
+     * Counts a request waiting for a thread
+     *
+     * @return when it started waiting, for dequeued
+     */
+    public long queued() {
+        int depth = queued.incrementAndGet();
+        if (depth > maxQueued.get()) {
+            maxQueued.accumulateAndGet(depth, Math::max);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts a request that got a thread
+     */
+    public void dequeued(long queuedAt) {
+        queued.decrementAndGet();
+        queueWait.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - queuedAt));
+    }
+
+    /**
+     * Counts a request whose handler is starting
+     *
+     * @return when it started, for handled
+     */
+    public long handling() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts a request that was handled
+     */
+    public void handled(String name, long startedAt, long bodyLength, String response) {
+        long elapsed = System.nanoTime() - startedAt;
+        inFlight.decrementAndGet();
+
+        Command command = command(name);
+        command.latency.record(TimeUnit.NANOSECONDS.toMicros(elapsed));
+        command.bytesReceived.add(bodyLength);
+        command.bytesSent.add(response.length());
+        if (response.startsWith("ERROR")) {
+            command.errors.increment();
+        }
+    }
+
+    public void connectionOpened() {
+        incomingConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        incomingConnections.decrementAndGet();
+    }
+
+    @Override
+    public long getRequests() {
+        long requests = 0;
+        for (Command command : commands.values()) {
+            requests += command.getCount();
+        }
+        return requests;
+    }
+
+    @Override
+    public long getErrors() {
+        long errors = 0;
+        for (Command command : commands.values()) {
+            errors += command.getErrors();
+        }
+        return errors;
+    }
+
+    @Override
+    public int getRequestsInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    @Override
+    public long getQueueWaitP99Micros() {
+        return queueWait.percentile(99);
+    }
+
+    @Override
+    public long getBytesReceived() {
+        long bytes = 0;
+        for (Command command : commands.values()) {
+            bytes += command.getBytesReceived();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesSent() {
+        long bytes = 0;
+        for (Command command : commands.values()) {
+            bytes += command.getBytesSent();
+        }
+        return bytes;
+    }
+
+    @Override
+    public int getIncomingConnections() {
+        return incomingConnections.get();
+    }
+
+    @Override
+    public int getOutgoingConnections() {
+        return peer.getConnectionPool().getOpenConnections();
+    }
+
+    @Override
+    public long getOutgoingBytes() {
+        return peer.getConnectionPool().getBytesSent();
+    }
+
+    @Override
+    public int getStoredFiles() {
+        return peer.getStorage().getStoredFiles().size();
+    }
+
+    @Override
+    public long getSpaceOccupied() {
+        return peer.getStorage().spaceOccupied();
+    }
+
+    @Override
+    public String[] getSummary() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Command> entry : new TreeMap<String, Command>(commands).entrySet()) {
+            lines.add(summary(entry.getKey(), entry.getValue()));
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getNeighbours() {
+        List<String> lines = new ArrayList<String>();
+        for (OutsidePeer successor : peer.getSuccessorList()) {
+            lines.add(neighbour("successor", successor));
+        }
+        if (peer.getPredecessor() != null) {
+            lines.add(neighbour("predecessor", peer.getPredecessor()));
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    private String neighbour(String role, OutsidePeer neighbour) {
+        return String.format("%-11s %s %s  phi %.2f", role, neighbour.getId(), neighbour.getInetSocketAddress(),
+                peer.getFailureDetector().phi(neighbour));
+    }
+
+    private static String summary(String name, Command command) {
+        return String.format("%-16s %9d requests %6d errors  p50 %7d us  p99 %8d us  max %8d us", name,
+                command.getCount(), command.getErrors(), command.getP50Micros(), command.getP99Micros(),
+                command.getMaxMicros());
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a piece of code in a loop the way JMH does: warmup iterations first,
+ * then timed iterations on every thread at once, and reports the mean of the
+ * iterations with a 99.9% confidence interval, so two runs can be told apart
+ * from noise.
+ */
+public class MicroBenchmark {
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("sdis.bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("sdis.bench.iterations", 5);
+    private static final long ITERATION_MILLIS = Long.getLong("sdis.bench.millis", 1000);
+    // Student's t for 99.9% two-sided, by degrees of freedom
+    private static final double[] T_999 = { 0, 636.62, 31.60, 12.92, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781,
+            4.587 };
+
+    // Results are compared to this, so the JIT can't drop the code that makes them
+    private static Object marker = new Object();
+    private static volatile Object sink;
+
+    // Read on every call, volatile so the workers see when the iteration ends
+    private static class Control {
+        volatile boolean running = true;
+    }
+
+    public interface Body {
+        Object run(int i) throws Exception;
+    }
+
+    public static void header() {
+        System.out.println(String.format("%-36s %7s %6s %4s %12s    %9s  %s", "Benchmark", "Threads", "Mode", "Cnt",
+                "Score", "Error", "Units"));
+    }
+
+    /**
+     * Measures the time a call takes on each thread, in ns/op
+     */
+    public static void time(String name, int threads, Body body) throws Exception {
+        double[] scores = iterations(threads, body);
+        for (int i = 0; i < scores.length; i++) {
+            // ops/s of all the threads to ns per call on one thread
+            scores[i] = threads * 1e9 / scores[i];
+        }
+        print(name, threads, "avgt", scores, "ns/op");
+    }
+
+    /**
+     * Measures the time a call takes on one thread, without printing it
+     *
+     * @return ns per call, the mean of the timed iterations
+     */
+    public static double nanosPerCall(Body body) throws Exception {
+        double mean = 0;
+        for (double score : iterations(1, body)) {
+            mean += 1e9 / score;
+        }
+        return mean / ITERATIONS;
+    }
+
+    /**
+     * Measures the bytes all the threads move per second, each call moving
+     * bytesPerCall
+     */
+    public static void throughput(String name, int threads, long bytesPerCall, Body body) throws Exception {
+        double[] scores = iterations(threads, body);
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = scores[i] * bytesPerCall / (1024 * 1024);
+        }
+        print(name, threads, "thrpt", scores, "MB/s");
+    }
+
+    /**
+     * Runs the warmup and the timed iterations
+     *
+     * @return calls per second of every timed iteration
+     */
+    private static double[] iterations(int threads, Body body) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(threads, body);
+        }
+        double[] scores = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            scores[i] = iteration(threads, body);
+        }
+        return scores;
+    }
+
+    /**
+     * Calls the body on every thread until the iteration's time is up
+     *
+     * @return calls per second, of all the threads
+     */
+    private static double iteration(int threads, Body body) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        AtomicLong calls = new AtomicLong();
+        List<Exception> failures = new ArrayList<Exception>();
+        Control control = new Control();
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            int offset = t * 1000003;
+            workers[t] = new Thread(() -> {
+                int i = offset;
+                try {
+                    start.await();
+                    while (control.running) {
+                        Object value = body.run(i++);
+                        if (value == marker) {
+                            sink = value;
+                        }
+                    }
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+                calls.addAndGet(i - offset);
+            });
+            workers[t].start();
+        }
+
+        start.await();
+        long begin = System.nanoTime();
+        Thread.sleep(ITERATION_MILLIS);
+        control.running = false;
+        long elapsed = System.nanoTime() - begin;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        return calls.get() * 1e9 / elapsed;
+    }
+
+    private static void print(String name, int threads, String mode, double[] scores, String units) {
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        int degrees = scores.length - 1;
+        double error = degrees == 0 ? Double.NaN
+                : T_999[Math.min(degrees, T_999.length - 1)] * Math.sqrt(variance / degrees / scores.length);
+
+        System.out.println(String.format("%-36s %7d %6s %4d %12.1f +- %9.1f  %s", name, threads, mode, scores.length,
+                mean, error, units));
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * Server side of a peer connection driven by an EventLoop. Decrypts what
+ * arrives, splits it into requests and queues the encrypted replies.
+ */
+class NioConnection {
+    private static final int MAX_HEADER_LENGTH = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final EventLoop eventLoop;
+    private final Peer peer;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final RequestHandler requestHandler;
+    private final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+    private SelectionKey key;
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+
+    // Request being decoded
+    private StringBuilder header = new StringBuilder();
+    private BodyPipe body;
+    private boolean paused;
+    private boolean closed;
+
+    public NioConnection(EventLoop eventLoop, Peer peer, SocketChannel channel, SSLEngine engine) {
+        this.eventLoop = eventLoop;
+        this.peer = peer;
+        this.channel = channel;
+        this.engine = engine;
+        this.requestHandler = new RequestHandler(peer);
+        this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    }
+
+    public void open(Selector selector) throws IOException {
+        peer.getMetrics().connectionOpened();
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        engine.beginHandshake();
+    }
+
+    public void read() throws IOException {
+        if (channel.read(netIn) == -1) {
+            close();
+            return;
+        }
+
+        unwrap();
+    }
+
+    /**
+     * Goes back to reading once the handler of the current body made room for
+     * more of it
+     */
+    public void resume() throws IOException {
+        paused = false;
+        decode();
+
+        if (!paused) {
+            unwrap();
+        }
+        if (!paused && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (!paused) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                runDelegatedTasks();
+
+                if (result.getStatus() == Status.CLOSED) {
+                    close();
+                    return;
+                }
+                if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                }
+
+                decode();
+
+                if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    flush();
+                }
+                if (result.getStatus() == Status.BUFFER_UNDERFLOW || !netIn.hasRemaining()
+                        || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                    return;
+                }
+            }
+        } finally {
+            netIn.compact();
+            if (!netIn.hasRemaining()) {
+                netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+            }
+        }
+    }
+
+    /**
+     * Splits the decrypted bytes into requests. Each request goes to the
+     * executor as soon as its header is complete and its body is passed on as
+     * it arrives. Reading stops while the handler is behind on the body.
+     */
+    private void decode() throws IOException {
+        appIn.flip();
+
+        while (appIn.hasRemaining()) {
+            if (body != null) {
+                body.offer(appIn);
+
+                if (body.getMissing() == 0) {
+                    body = null;
+                } else if (appIn.hasRemaining()) {
+                    paused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+            } else {
+                char c = (char) appIn.get();
+                if (c == '\n') {
+                    startRequest(header.toString());
+                    header.setLength(0);
+                } else if (c != '\r') {
+                    header.append(c);
+                    if (header.length() > MAX_HEADER_LENGTH) {
+                        throw new IOException("Request header too long");
+                    }
+                }
+            }
+        }
+
+        appIn.compact();
+    }
+
+    private void startRequest(String line) {
+        // <request_id> <body_length> <message>
+        String[] frame = line.split(" ", 3);
+        final long requestId = Long.parseLong(frame[0]);
+        final long length = Long.parseLong(frame[1]);
+        final String[] request = frame[2].split(" ");
+        final BodyPipe body = new BodyPipe(length, () -> eventLoop.requestResume(this));
+
+        if (length > 0) {
+            this.body = body;
+        }
+
+        Metrics metrics = peer.getMetrics();
+        long queuedAt = metrics.queued();
+        peer.getRequestExecutor().execute(() -> {
+            metrics.dequeued(queuedAt);
+            String response = requestHandler.handle(request, body, length);
+            body.close();
+            send(requestId + " " + response.trim() + "\n");
+        });
+    }
+
+    /**
+     * Queues a reply, to be written by the event loop
+     */
+    public void send(String reply) {
+        outgoing.add(ByteBuffer.wrap(reply.getBytes()));
+        eventLoop.requestFlush(this);
+    }
+
+    /**
+     * Encrypts and writes as much as the socket takes, waiting for OP_WRITE if
+     * it doesn't take everything
+     */
+    public void flush() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+
+        while (true) {
+            if (netOut.position() > 0) {
+                netOut.flip();
+                channel.write(netOut);
+                netOut.compact();
+                if (netOut.position() > 0) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            ByteBuffer data = outgoing.peek();
+            if (data == null && engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+                break;
+            }
+
+            SSLEngineResult result = engine.wrap(data == null ? EMPTY : data, netOut);
+            runDelegatedTasks();
+
+            if (result.getStatus() == Status.CLOSED) {
+                close();
+                return;
+            }
+            if (result.getStatus() == Status.BUFFER_OVERFLOW && netOut.position() == 0) {
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+            }
+            if (data != null && !data.hasRemaining()) {
+                outgoing.poll();
+            }
+            if (result.getStatus() == Status.OK && result.bytesProduced() == 0 && result.bytesConsumed() == 0) {
+                break;
+            }
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer enlarged = ByteBuffer.allocate(buffer.capacity() + size);
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+
+    public void close() {
+        // Called by the event loop only, maybe more than once
+        if (closed) {
+            return;
+        }
+        closed = true;
+        peer.getMetrics().connectionClosed();
+
+        if (body != null) {
+            body.fail();
+        }
+
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            engine.closeOutbound();
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking counterpart of RequestListener. Accepted connections are spread
+ * over a few event loops, so a slow or stalled sender doesn't hold a thread.
+ */
+class NioRequestListener implements Runnable {
+    private final Peer peer;
+    private final EventLoop[] eventLoops;
+
+    public NioRequestListener(final Peer peer) {
+        this.peer = peer;
+        this.eventLoops = new EventLoop[Config.EVENT_LOOPS];
+    }
+
+    @Override
+    public void run() {
+        ServerSocketChannel serverChannel = null;
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(peer.getPort()));
+
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(peer);
+                Thread thread = new Thread(eventLoops[i], "EventLoop-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
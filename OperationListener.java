@@ -0,0 +1,12 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Client side of a subscription to an operation, called back by the peer as
+ * the operation makes progress and once it's finished
+ */
+public interface OperationListener extends Remote {
+
+    void changed(OperationStatus status) throws RemoteException;
+
+}
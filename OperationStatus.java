@@ -0,0 +1,86 @@
+import java.io.Serializable;
+
+/**
+ * State of an operation a peer runs for a client, as it was when asked for
+ */
+public class OperationStatus implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String RUNNING = "RUNNING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+
+    private final String id;
+    private final String fileName;
+    private final String state;
+    private final long bytesTransferred;
+    private final long expectedBytes;
+    private final long elapsedMillis;
+    private final String error;
+
+    public OperationStatus(String id, String fileName, String state, long bytesTransferred, long expectedBytes,
+            long elapsedMillis, String error) {
+        this.id = id;
+        this.fileName = fileName;
+        this.state = state;
+        this.bytesTransferred = bytesTransferred;
+        this.expectedBytes = expectedBytes;
+        this.elapsedMillis = elapsedMillis;
+        this.error = error;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * RUNNING, DONE or FAILED
+     */
+    public String getState() {
+        return state;
+    }
+
+    public boolean isFinished() {
+        return !state.equals(RUNNING);
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * Gets the bytes the peer expects to receive, -1 until it knows
+     */
+    public long getExpectedBytes() {
+        return expectedBytes;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Gets the bytes received per second so far
+     */
+    public double getThroughput() {
+        return bytesTransferred * 1000.0 / Math.max(1, elapsedMillis);
+    }
+
+    /**
+     * Gets why the operation failed, null if it didn't
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "Operation " + id + " (" + fileName + "): " + state + ", " + bytesTransferred
+                + (expectedBytes >= 0 ? " of " + expectedBytes : "") + " bytes in " + elapsedMillis + " ms, "
+                + String.format("%.1f", getThroughput() / (1024 * 1024)) + " MB/s" + (error != null ? ", " + error : "");
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Restores this peer runs for its clients, which get an id for each and can
+ * ask for its state, wait for it or be told as it changes. Every byte received
+ * for the file, or its chunks and fragments, counts as progress.
+ */
+public class Operations {
+    // A restore nothing arrives for in this long is given up
+    private static final long STALL_TIMEOUT = 2 * ConnectionPool.REQUEST_TIMEOUT;
+    private static final long PROGRESS_INTERVAL = 500;
+    private static final int MAX_OPERATIONS = 1000;
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+    // Running operations by the key of the file, or of a chunk of it
+    private final Map<Key, Operation> running = new HashMap<Key, Operation>();
+    // Listeners are called one at a time, never from a request handler
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "OperationListeners");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Operation {
+        final String id;
+        final String fileName;
+        final Key fileId;
+        final long start = System.currentTimeMillis();
+        final List<OperationListener> listeners = new ArrayList<OperationListener>();
+        String state = OperationStatus.RUNNING;
+        long bytesTransferred;
+        long expectedBytes = -1;
+        long lastProgress = start;
+        long lastNotified;
+        long end;
+        String error;
+
+        Operation(String id, String fileName, Key fileId) {
+            this.id = id;
+            this.fileName = fileName;
+            this.fileId = fileId;
+        }
+
+        OperationStatus status() {
+            long elapsed = (end != 0 ? end : System.currentTimeMillis()) - start;
+            return new OperationStatus(id, fileName, state, bytesTransferred, expectedBytes, elapsed, error);
+        }
+    }
+
+    /**
+     * Gets the id of the restore of a file, if one is running. A stalled one
+     * is failed here, so it doesn't keep the file from being restored again.
+     */
+    public synchronized String running(Key fileId) {
+        Operation operation = running.get(fileId);
+        if (operation == null || !operation.fileId.equals(fileId)) {
+            return null;
+        }
+        return checkStalled(operation).equals(OperationStatus.RUNNING) ? operation.id : null;
+    }
+
+    /**
+     * Starts a restore of a file, unless one is already running: checked and
+     * started at once, so two clients can't both start one
+     *
+     * @return its id, null if one is running
+     */
+    public synchronized String startIfIdle(String fileName, Key fileId) {
+        if (running(fileId) != null) {
+            return null;
+        }
+
+        if (operations.size() >= MAX_OPERATIONS) {
+            Iterator<Operation> oldest = operations.values().iterator();
+            while (oldest.hasNext() && operations.size() >= MAX_OPERATIONS) {
+                if (!oldest.next().state.equals(OperationStatus.RUNNING)) {
+                    oldest.remove();
+                }
+            }
+        }
+
+        Operation operation = new Operation(Long.toString(nextId.getAndIncrement()), fileName, fileId);
+        operations.put(operation.id, operation);
+        running.put(fileId, operation);
+        return operation.id;
+    }
+
+    /**
+     * Counts the chunk's bytes as the file's
+     */
+    public synchronized void addChunk(Key fileId, Key chunkId) {
+        Operation operation = running.get(fileId);
+        if (operation != null && !running.containsKey(chunkId)) {
+            running.put(chunkId, operation);
+        }
+    }
+
+    /**
+     * Sets the bytes the restore of a file should receive, if not set yet
+     */
+    public synchronized void expect(Key fileId, long bytes) {
+        Operation operation = running.get(fileId);
+        if (operation != null && operation.fileId.equals(fileId) && operation.expectedBytes < 0) {
+            operation.expectedBytes = bytes;
+        }
+    }
+
+    /**
+     * Adds to the bytes the restore of a file should receive, as a manifest
+     * says what chunks come after it
+     */
+    public synchronized void expectMore(Key fileId, long bytes) {
+        Operation operation = running.get(fileId);
+        if (operation != null && operation.fileId.equals(fileId)) {
+            operation.expectedBytes = Math.max(0, operation.expectedBytes) + bytes;
+        }
+    }
+
+    public void progress(Key key, long bytes) {
+        Operation operation;
+        synchronized (this) {
+            operation = running.get(key);
+            if (operation == null) {
+                return;
+            }
+            operation.bytesTransferred += bytes;
+            operation.lastProgress = System.currentTimeMillis();
+            if (operation.lastProgress - operation.lastNotified < PROGRESS_INTERVAL) {
+                return;
+            }
+            operation.lastNotified = operation.lastProgress;
+        }
+        notifyListeners(operation);
+    }
+
+    /**
+     * Wraps a stream the bytes of a key are written to, counting them as they
+     * are
+     */
+    public OutputStream track(Key key, OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                progress(key, len);
+            }
+        };
+    }
+
+    public void completed(Key fileId) {
+        finish(fileId, OperationStatus.DONE, null);
+    }
+
+    public void failed(Key fileId, String error) {
+        finish(fileId, OperationStatus.FAILED, error);
+    }
+
+    private void finish(Key fileId, String state, String error) {
+        Operation operation;
+        synchronized (this) {
+            operation = running.get(fileId);
+            if (operation == null || !operation.fileId.equals(fileId)) {
+                return;
+            }
+            finish(operation, state, error);
+        }
+        System.out.println(operation.status());
+        notifyListeners(operation);
+    }
+
+    private void finish(Operation operation, String state, String error) {
+        operation.state = state;
+        operation.error = error;
+        operation.end = System.currentTimeMillis();
+        running.values().removeIf(value -> value == operation);
+        notifyAll();
+    }
+
+    /**
+     * Gets the state of an operation
+     *
+     * @return the state, null if there's no operation with that id
+     */
+    public synchronized OperationStatus status(String id) {
+        Operation operation = operations.get(id);
+        if (operation == null) {
+            return null;
+        }
+        checkStalled(operation);
+        return operation.status();
+    }
+
+    /**
+     * Waits for an operation to finish, for up to timeout ms
+     *
+     * @return its state when it finished or the time ran out, null if there's
+     *         no operation with that id
+     */
+    public synchronized OperationStatus await(String id, long timeout) throws InterruptedException {
+        Operation operation = operations.get(id);
+        if (operation == null) {
+            return null;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        while (checkStalled(operation).equals(OperationStatus.RUNNING)) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                break;
+            }
+            wait(Math.min(deadline, operation.lastProgress + STALL_TIMEOUT) - now + 1);
+        }
+        return operation.status();
+    }
+
+    /**
+     * Calls the listener back as the operation changes, and right away with
+     * its current state
+     *
+     * @return false if there's no operation with that id
+     */
+    public boolean subscribe(String id, OperationListener listener) {
+        Operation operation;
+        synchronized (this) {
+            operation = operations.get(id);
+            if (operation == null) {
+                return false;
+            }
+            checkStalled(operation);
+            operation.listeners.add(listener);
+        }
+        notifyListeners(operation);
+        return true;
+    }
+
+    private String checkStalled(Operation operation) {
+        if (operation.state.equals(OperationStatus.RUNNING)
+                && System.currentTimeMillis() - operation.lastProgress > STALL_TIMEOUT) {
+            finish(operation, OperationStatus.FAILED, "Nothing received for " + STALL_TIMEOUT + " ms");
+            notifyListeners(operation);
+        }
+        return operation.state;
+    }
+
+    private void notifyListeners(Operation operation) {
+        notifier.execute(() -> {
+            OperationStatus status;
+            List<OperationListener> listeners;
+            synchronized (this) {
+                status = operation.status();
+                listeners = new ArrayList<OperationListener>(operation.listeners);
+                if (status.isFinished()) {
+                    operation.listeners.clear();
+                }
+            }
+
+            for (OperationListener listener : listeners) {
+                try {
+                    listener.changed(status);
+                } catch (RemoteException e) {
+                    // The client is gone
+                    synchronized (this) {
+                        operation.listeners.remove(listener);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -1,19 +1,13 @@
-import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.io.InputStreamReader;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.util.List;
 import java.io.IOException;
-import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 public class OutsidePeer {
-    private BigInteger id;
+    private Key id;
     private InetSocketAddress inetSocketAddress;
 
     public OutsidePeer(InetSocketAddress inetSocketAddress) {
@@ -21,7 +15,7 @@ public class OutsidePeer {
         this.inetSocketAddress = inetSocketAddress;
     }
 
-    public BigInteger getId() {
+    public Key getId() {
         return id;
     }
 
@@ -29,66 +23,38 @@ public class OutsidePeer {
         return inetSocketAddress;
     }
 
-    public void findSuccessor(BigInteger peerKey, InetSocketAddress peerInetSocketAddress)
+    public void findSuccessor(ConnectionPool pool, Key peerKey, InetSocketAddress peerInetSocketAddress)
             throws UnknownHostException, IOException {
-        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(inetSocketAddress.getAddress().getHostAddress(),
-                inetSocketAddress.getPort());
-
         // FINDSUCCESSOR <peer_key> <ip_address> <port>
         String message = "FINDSUCCESSOR " + peerKey + " " + peerInetSocketAddress.getAddress().getHostAddress() + " "
                 + peerInetSocketAddress.getPort() + "\n";
 
-        DataOutputStream out = new DataOutputStream(sslSocket.getOutputStream());
-        out.writeBytes(message);
-        out.close();
-
+        pool.send(inetSocketAddress, message);
     }
 
-    public void notifySuccessor(InetSocketAddress peerSocketAddress, InetSocketAddress successorSocketAddress)
+    public void notifySuccessor(ConnectionPool pool, InetSocketAddress peerSocketAddress,
+            InetSocketAddress successorSocketAddress)
             throws UnknownHostException, IOException {
         // UPDATEPREDECESSOR <ip_address> <port>
         String message = "UPDATEPREDECESSOR " + peerSocketAddress.getAddress().getHostAddress() + " "
                 + peerSocketAddress.getPort() + "\n";
-        SSLSocket sslSocket = Messenger.sendMessage(message, successorSocketAddress);
+        Messenger.sendMessage(pool, message, successorSocketAddress);
     }
 
-    public boolean testSuccessor() {
-        try {
-            SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            SSLSocket sslSocket = (SSLSocket) sslSocketFactory
-                    .createSocket(inetSocketAddress.getAddress().getHostAddress(), inetSocketAddress.getPort());
-            sslSocket.setSoTimeout(1000);
-            DataOutputStream out = new DataOutputStream(sslSocket.getOutputStream());
-            BufferedReader in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
-            String message = "TEST\n";
-            out.writeBytes(message);
-            return false;
-        } catch (SocketTimeoutException e) {
-            return true;
-        } catch (ConnectException e) {
-            return true;
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return true;
+    /**
+     * Asks the peer if it would store a replica of the file
+     */
+    public boolean canStore(ConnectionPool pool, Key fileKey, long length) throws IOException {
+        // CANSTORE <file_key> <body_length>
+        String message = "CANSTORE " + fileKey + " " + length + "\n";
+        return pool.request(inetSocketAddress, message, ConnectionPool.REQUEST_TIMEOUT).equals("YES");
     }
 
-    public OutsidePeer getPredecessor(InetSocketAddress peerSocketAddress) throws IOException {
+    public OutsidePeer getPredecessor(ConnectionPool pool, InetSocketAddress peerSocketAddress) throws IOException {
         // FINDPREDECESSOR <ip_address> <port>
         String message = "FINDPREDECESSOR " + peerSocketAddress.getAddress().getHostAddress() + " "
                 + peerSocketAddress.getPort() + "\n";
-        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(inetSocketAddress.getAddress().getHostAddress(),
-                inetSocketAddress.getPort());
-        DataOutputStream out = new DataOutputStream(sslSocket.getOutputStream());
-        BufferedReader in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
-        out.writeBytes(message);
-        String response = in.readLine();
-        in.close();
-        out.close();
+        String response = pool.request(inetSocketAddress, message, ConnectionPool.REQUEST_TIMEOUT);
         // PREDECESSOR <ip_address> <port>
         String[] splitMessage = response.split(" ");
         InetAddress inetAddress = InetAddress.getByName(splitMessage[1]);
@@ -96,32 +62,32 @@ public class OutsidePeer {
         return new OutsidePeer(socketAddress);
     }
 
-    public void forwardBackupMessage(String[] string) throws UnknownHostException, IOException {
-        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(inetSocketAddress.getAddress().getHostAddress(),
-                inetSocketAddress.getPort());
-
-        DataOutputStream out = new DataOutputStream(sslSocket.getOutputStream());
-        BufferedReader in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
-
-        out.writeBytes(Arrays.toString(string));
-        String response = in.readLine();
+    public void forwardBackupMessage(ConnectionPool pool, String[] string) throws UnknownHostException, IOException {
+        pool.request(inetSocketAddress, Arrays.toString(string), ConnectionPool.REQUEST_TIMEOUT);
     }
 
-    public OutsidePeer getNextSuccessor() throws UnknownHostException, IOException {
-        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(inetSocketAddress.getAddress().getHostAddress(),
-                inetSocketAddress.getPort());
-
-        DataOutputStream out = new DataOutputStream(sslSocket.getOutputStream());
-        BufferedReader in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
-
+    public OutsidePeer getNextSuccessor(ConnectionPool pool) throws UnknownHostException, IOException {
         String message = "NEXTSUCCESSOR\n";
-        out.writeBytes(message);
-        String[] response = in.readLine().split(" ");
+        String[] response = pool.request(inetSocketAddress, message, ConnectionPool.REQUEST_TIMEOUT)
+                .split(" ");
         return new OutsidePeer(new InetSocketAddress(response[1], Integer.parseInt(response[2])));
     }
 
+    /**
+     * Gets the peer's successor list, its successor first
+     */
+    public List<OutsidePeer> getSuccessors(ConnectionPool pool) throws IOException {
+        String message = "SUCCESSORS\n";
+        // OK [<ip_address> <port>]...
+        String[] response = pool.request(inetSocketAddress, message, ConnectionPool.REQUEST_TIMEOUT)
+                .split(" ");
+        List<OutsidePeer> successors = new ArrayList<OutsidePeer>();
+        for (int i = 1; i + 1 < response.length; i += 2) {
+            successors.add(new OutsidePeer(new InetSocketAddress(response[i], Integer.parseInt(response[i + 1]))));
+        }
+        return successors;
+    }
+
     @Override
     public boolean equals(Object o) {
         // self check
@@ -137,4 +103,4 @@ public class OutsidePeer {
         // field comparison
         return (id.compareTo(otherPeer.getId()) == 0);
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,17 +1,28 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
@@ -19,19 +30,45 @@ import java.rmi.server.UnicastRemoteObject;
 
 
 public class Peer implements RmiRemote {
-    private BigInteger id;
-    private static InetSocketAddress address;
+    private static final int SCHEDULER_THREADS = 2;
+    // A range of a stored file is given in requests of up to this many bytes, a cancel stops it between two
+    private static final long RANGE_PIECE = 16 * Helper.CHUNK_SIZE;
+    private Key id;
+    private InetSocketAddress address;
     private int port;
     private OutsidePeer predecessor;
-    private static OutsidePeer successor;
-    private OutsidePeer nextSuccessor;
-    private static FingerTable fingerTable;
-    private RequestListener listener;
+    private OutsidePeer successor;
+    // Successors of the successor, as it gave them last
+    private volatile List<OutsidePeer> successorsOfSuccessor = Collections.emptyList();
+    private FingerTable fingerTable;
+    private Runnable listener;
     private ScheduledThreadPoolExecutor executor;
-    private static String storageDirPath;
-    private static String backupDirPath;
-    private static String restoreDirPath;
-    private static Storage storage = new Storage();
+    private ExecutorService requestExecutor;
+    private String storageDirPath;
+    private String backupDirPath;
+    private String restoreDirPath;
+    // Connections to other peers, and the hops the requests routed here took
+    private final ConnectionPool connectionPool;
+    private final RoutingStats routingStats = new RoutingStats();
+    private final Storage storage;
+    private final LookupCache lookupCache = new LookupCache();
+    private final ChunkedRestores chunkedRestores = new ChunkedRestores(this);
+    private final Operations operations = new Operations();
+    private final Metrics metrics = new Metrics(this);
+    private final FailureDetector failureDetector = new FailureDetector(Config.HEARTBEAT_INTERVAL,
+            Config.PHI_THRESHOLD);
+    private final Heartbeats heartbeats = new Heartbeats(this);
+    // Replies to the requests this peer routed, by tag, which their owners send straight here
+    private final ConcurrentHashMap<Long, CompletableFuture<String>> routedReplies = new ConcurrentHashMap<Long, CompletableFuture<String>>();
+    private final AtomicLong nextTag = new AtomicLong();
+    // Parts of stored files being given, and whether they were cancelled
+    private final ConcurrentHashMap<String, AtomicBoolean> gives = new ConcurrentHashMap<String, AtomicBoolean>();
+    // Version of the location table the successor acknowledged last, with the neighbours it was sent with
+    private long syncedVersion;
+    private OutsidePeer syncedSuccessor;
+    private OutsidePeer syncedPredecessor;
+    // Version of the table of each predecessor applied here
+    private final ConcurrentHashMap<InetSocketAddress, Long> tableVersions = new ConcurrentHashMap<InetSocketAddress, Long>();
 
     // private FixFingers checkFingers;
     private Stabilizer stabilizer;
@@ -40,6 +77,8 @@ public class Peer implements RmiRemote {
             throws UnknownHostException, IOException {
 
         setJSSEProperties();
+        this.connectionPool = new ConnectionPool(new InetSocketAddress(address, port));
+        this.storage = new Storage(connectionPool);
         // Find IP Address
         String ipAddress = new String();
 
@@ -51,33 +90,68 @@ public class Peer implements RmiRemote {
         ipAddress = address;
         this.id = Helper.getPeerId(ipAddress, port); // chord.hashSocketAddress(address);
         this.port = port;
-        this.listener = new RequestListener(this);
-        executor = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(150);
-        executor.execute(this.listener);
+        metrics.register(this.id);
+        // The non-blocking server reads TLS off real sockets
+        if (Config.isNioServer() && !Transport.get().isSocketBased()) {
+            System.out.println("The nio server needs the tls transport, using the blocking one");
+        }
+        this.listener = Config.isNioServer() && Transport.get().isSocketBased() ? new NioRequestListener(this)
+                : new RequestListener(this);
         this.stabilizer = new Stabilizer(this);
-        executor.scheduleAtFixedRate(stabilizer, 2, 2, TimeUnit.SECONDS);
 
-        // Initialize finger table
+        // The saved state is loaded before any request can change it
+        storageDirPath = "node" + "_" + this.id;
+        backupDirPath = storageDirPath + "/Backup";
+        restoreDirPath = storageDirPath + "/Restore";
+        readFile();
+
+        // Initialize finger table, before any request can read it
         fingerTable = new FingerTable(Helper.getNumberOfNodes(), new OutsidePeer(new InetSocketAddress(address, port)));
+        fingerTable.print();
 
         InetAddress inetAddress = InetAddress.getByName(ipAddress);
         this.address = new InetSocketAddress(inetAddress, port);
 
-        storageDirPath = "node" + "_" + this.id;
-        backupDirPath = storageDirPath + "/Backup";
-        restoreDirPath = storageDirPath + "/Restore";
-        readFile();
+        if (Threads.isVirtual()) {
+            // The scheduler only starts the periodic tasks, their blocking calls run on virtual threads
+            executor = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(SCHEDULER_THREADS);
+            requestExecutor = Threads.newVirtualExecutor();
+            executor.scheduleAtFixedRate(() -> requestExecutor.execute(stabilizer), 2, 2, TimeUnit.SECONDS);
+            executor.scheduleAtFixedRate(() -> requestExecutor.execute(heartbeats), Config.HEARTBEAT_INTERVAL,
+                    Config.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            if (Config.isVirtualThreads()) {
+                System.out.println("Virtual threads need Java 21, using platform threads");
+            }
+            executor = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(150);
+            requestExecutor = executor;
+            executor.scheduleAtFixedRate(stabilizer, 2, 2, TimeUnit.SECONDS);
+            executor.scheduleAtFixedRate(heartbeats, Config.HEARTBEAT_INTERVAL, Config.HEARTBEAT_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        }
+        Threads.start(this.listener, "RequestListener");
+
         if (otherPort != -1) {
             InetAddress otherAddress = InetAddress.getByName(otherIpAddress);
             this.successor = new OutsidePeer(new InetSocketAddress(otherAddress, otherPort));
             // this.predecessor = this.successor;
-            this.successor.findSuccessor(this.id, this.address);
+            this.successor.findSuccessor(connectionPool, this.id, this.address);
             fingerTable.setAllEntries(this.successor);
         }
 
         System.out.println("peerID: " + this.id);
     }
 
+    /**
+     * Stops the stabilization rounds and the requests waiting to run, and
+     * syncs the metadata log
+     */
+    public void stop() {
+        executor.shutdownNow();
+        requestExecutor.shutdownNow();
+        storage.sync();
+    }
+
     public ScheduledThreadPoolExecutor getExecutor() {
         return executor;
     }
@@ -86,11 +160,18 @@ public class Peer implements RmiRemote {
         this.executor = executor;
     }
 
-    public BigInteger getId() {
+    /**
+     * Gets the executor that runs requests and other blocking work
+     */
+    public ExecutorService getRequestExecutor() {
+        return requestExecutor;
+    }
+
+    public Key getId() {
         return id;
     }
 
-    public static InetSocketAddress getAddress() {
+    public InetSocketAddress getAddress() {
         return address;
     }
 
@@ -98,7 +179,7 @@ public class Peer implements RmiRemote {
         return port;
     }
 
-    public static OutsidePeer getSuccessor() {
+    public OutsidePeer getSuccessor() {
         return successor;
     }
 
@@ -106,12 +187,56 @@ public class Peer implements RmiRemote {
         this.successor = successor;
     }
 
-    public void setNextSuccessor(OutsidePeer successor) {
-        this.nextSuccessor = successor;
+    public void setSuccessorsOfSuccessor(List<OutsidePeer> successors) {
+        this.successorsOfSuccessor = successors;
     }
 
+    /**
+     * Gets the first Config.SUCCESSORS peers after this one around the ring,
+     * the successor first, as far as this peer knows
+     */
+    public List<OutsidePeer> getSuccessorList() {
+        OutsidePeer successor = this.successor;
+        List<OutsidePeer> successors = new ArrayList<OutsidePeer>();
+        if (successor == null) {
+            return successors;
+        }
+
+        successors.add(successor);
+        for (OutsidePeer next : successorsOfSuccessor) {
+            if (successors.size() == Config.SUCCESSORS) {
+                break;
+            }
+            if (!next.getId().equals(id) && !successors.contains(next)) {
+                successors.add(next);
+            }
+        }
+        return successors;
+    }
+
+    /**
+     * Gets the successor's successor, or null if there is none
+     */
     public OutsidePeer getNextSuccessor() {
-        return nextSuccessor;
+        List<OutsidePeer> successors = getSuccessorList();
+        return successors.size() > 1 ? successors.get(1) : null;
+    }
+
+    /**
+     * Gets the first successor the failure detector doesn't suspect, the
+     * successor if it suspects them all
+     */
+    public OutsidePeer getLiveSuccessor() {
+        for (OutsidePeer next : getSuccessorList()) {
+            if (failureDetector.isAvailable(next)) {
+                return next;
+            }
+        }
+        return successor;
+    }
+
+    public FailureDetector getFailureDetector() {
+        return failureDetector;
     }
 
     public OutsidePeer getPredecessor() {
@@ -122,7 +247,7 @@ public class Peer implements RmiRemote {
         this.predecessor = predecessor;
     }
 
-    public static FingerTable getFingerTable() {
+    public FingerTable getFingerTable() {
         return fingerTable;
     }
 
@@ -130,13 +255,25 @@ public class Peer implements RmiRemote {
         return storageDirPath;
     }
 
-    public boolean updateToNextPeer() {
-        setSuccessor(nextSuccessor);
-        System.out.println("updateNextPeer" + this.successor.getId());
-        return this.nextSuccessor == null;
+    /**
+     * Replaces the successor, suspected to be down, with the first of the next
+     * successors that isn't
+     *
+     * @return false if they're all suspected
+     */
+    public boolean failOverSuccessor() {
+        for (OutsidePeer next : getSuccessorList()) {
+            if (!next.equals(successor) && failureDetector.isAvailable(next)) {
+                System.out.println("Successor " + successor.getId() + " is down, now " + next.getId());
+                setSuccessor(next);
+                fingerTable.add(next, 0);
+                return true;
+            }
+        }
+        return false;
     }
 
-    public static String getBackupDirPath() {
+    public String getBackupDirPath() {
         return backupDirPath;
     }
 
@@ -148,10 +285,34 @@ public class Peer implements RmiRemote {
         return storage;
     }
 
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public RoutingStats getRoutingStats() {
+        return routingStats;
+    }
+
+    public LookupCache getLookupCache() {
+        return lookupCache;
+    }
+
+    public ChunkedRestores getChunkedRestores() {
+        return chunkedRestores;
+    }
+
+    public Operations getOperations() {
+        return operations;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Set JSSE Properties
      */
-    private static void setJSSEProperties() {
+    static void setJSSEProperties() {
         System.setProperty("javax.net.ssl.keyStore", "keystore");
         System.setProperty("javax.net.ssl.keyStorePassword", "qwerty123");
         System.setProperty("javax.net.ssl.trustStore", "trustStore");
@@ -161,7 +322,7 @@ public class Peer implements RmiRemote {
     public void stabilize() throws IOException {
         System.out.println("Stabilizing...");
         if (successor != null) {
-            OutsidePeer predecessorPeer = successor.getPredecessor(address);
+            OutsidePeer predecessorPeer = successor.getPredecessor(connectionPool, address);
 
             if (predecessorPeer != null && id.compareTo(predecessorPeer.getId()) != 0
                     && (Helper.middlePeer(predecessorPeer.getId(), id, successor.getId())
@@ -172,21 +333,86 @@ public class Peer implements RmiRemote {
         }
     }
 
-    public void updateTable() {
-        getStorage().getFileLocations().forEach((key, list) -> {
-            if (Helper.middlePeer(key, predecessor.getId(), id) || id.compareTo(key) == 0) {
-                list.forEach((outsidePeer) -> {
-                    String message = "UPDATETABLE " + key + " "
-                            + outsidePeer.getInetSocketAddress().getAddress().getHostName() + " "
-                            + outsidePeer.getInetSocketAddress().getPort() + "\n";
-                    try {
-                        sendMessage(message, this.successor.getInetSocketAddress());
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
+    /**
+     * Sends the successor the entries of the location table this peer owns
+     * that changed since it last acknowledged them, all in one message. A new
+     * successor or predecessor, which changes the entries owned, gets all of
+     * them, and so does a successor that doesn't have the changes the message
+     * follows from (RESYNC), e.g. after a restart.
+     */
+    public void updateTable() throws IOException {
+        OutsidePeer successor = this.successor;
+        OutsidePeer predecessor = this.predecessor;
+        // Until its predecessor is known this peer doesn't know which entries it owns
+        if (predecessor == null) {
+            return;
+        }
+        if (!successor.equals(syncedSuccessor) || !predecessor.equals(syncedPredecessor)) {
+            syncedVersion = 0;
+        }
+
+        long version = storage.getLocationVersion();
+        Set<Key> keys = syncedVersion == 0 ? storage.getFileLocations().keySet()
+                : storage.getChangedLocations().keySet();
+        StringBuilder body = new StringBuilder();
+        int entries = 0;
+        for (Key key : keys) {
+            if (!Helper.middlePeer(key, predecessor.getId(), id) && id.compareTo(key) != 0) {
+                continue;
             }
-        });
+
+            // <file_key> <chunk_references> [<ip_address> <port>]... or <file_key> - once removed
+            body.append(key);
+            List<OutsidePeer> holders = storage.getFileLocations().get(key);
+            if (holders == null) {
+                body.append(" -");
+            } else {
+                body.append(' ').append(storage.getChunkReferences(key));
+                for (OutsidePeer holder : new ArrayList<OutsidePeer>(holders)) {
+                    body.append(' ').append(holder.getInetSocketAddress().getAddress().getHostAddress()).append(' ')
+                            .append(holder.getInetSocketAddress().getPort());
+                }
+            }
+            body.append('\n');
+            entries++;
+        }
+
+        // Nothing this peer owns changed, the successor is still up to date
+        if (entries == 0 && syncedVersion != 0) {
+            storage.acknowledgeLocations(version);
+            return;
+        }
+
+        // SYNCTABLE <ip_address> <port> <from_version> <to_version> <body>
+        String message = "SYNCTABLE " + address.getAddress().getHostAddress() + " " + address.getPort() + " "
+                + syncedVersion + " " + version + "\n";
+        byte[] bytes = body.toString().getBytes(StandardCharsets.US_ASCII);
+        String reply = ConnectionPool.await(connectionPool.send(successor.getInetSocketAddress(), message, bytes),
+                ConnectionPool.REQUEST_TIMEOUT);
+
+        if (reply.equals("OK")) {
+            syncedVersion = version;
+            syncedSuccessor = successor;
+            syncedPredecessor = predecessor;
+            storage.acknowledgeLocations(version);
+        } else {
+            syncedVersion = 0;
+        }
+    }
+
+    /**
+     * Checks that a sync of the location table from the predecessor follows
+     * the last one applied here, a sync from version 0 follows any
+     */
+    public boolean isTableSyncExpected(InetSocketAddress sender, long fromVersion) {
+        return fromVersion == 0 || tableVersions.getOrDefault(sender, -1L) == fromVersion;
+    }
+
+    /**
+     * Records the version of the predecessor's table applied here
+     */
+    public void tableSynced(InetSocketAddress sender, long version) {
+        tableVersions.put(sender, version);
     }
 
     public void updatePredecessorTable() {
@@ -194,10 +420,10 @@ public class Peer implements RmiRemote {
             //
             if (!Helper.middlePeer(key, predecessor.getId(), id)) {
                 // if(key.compareTo(predecessor.getId()) == -1){
-                list.forEach((outsidePeer) -> {
+                new ArrayList<OutsidePeer>(list).forEach((outsidePeer) -> {
                     String message = "UPDATETABLE " + key + " "
                             + outsidePeer.getInetSocketAddress().getAddress().getHostName() + " "
-                            + outsidePeer.getInetSocketAddress().getPort() + "\n";
+                            + outsidePeer.getInetSocketAddress().getPort() + getChunkReferencesField(key) + "\n";
 
                     try {
                         sendMessage(message, this.predecessor.getInetSocketAddress());
@@ -214,6 +440,20 @@ public class Peer implements RmiRemote {
         });
     }
 
+    /**
+     * The references to a chunk go with its entry of the location table
+     */
+    private String getChunkReferencesField(Key key) {
+        int references = storage.getChunkReferences(key);
+        return references > 0 ? " " + references : "";
+    }
+
+    /**
+     * Backs up a file
+     *
+     * @return OK and the number of replicas, or fragments, stored, or ERROR and
+     *         why
+     */
     @Override
     public String backup(String fileName, int replicationDegree) {
 
@@ -222,8 +462,7 @@ public class Peer implements RmiRemote {
             return "ERROR";
         }
 
-        BigInteger fileId = Helper.getFileId(fileName);
-        OutsidePeer receiverPeer = fingerTable.getNearestPeer(fileId);
+        Key fileId = Helper.getFileId(fileName);
         this.storage.addAskedFile(fileId);
 
         File file = new File(fileName);
@@ -231,54 +470,289 @@ public class Peer implements RmiRemote {
             return "ERROR file not found";
         }
 
-        byte[] body = new byte[(int) file.length()];
-
-        try {
-            Files.newInputStream(file.toPath(), StandardOpenOption.READ).read(body);
+        // The file is streamed chunk by chunk, it's never held in memory
+        int copies;
+        try (InputStream body = new FileInputStream(file)) {
+            if (Config.isContentDefinedChunking()) {
+                copies = backupChunks(fileId, replicationDegree, body, file.length());
+            } else if (Config.isCompressed()) {
+                copies = backupCompressed(fileId, replicationDegree, file);
+            } else {
+                copies = backup(fileId, replicationDegree, body, file.length(), BodyType.PLAIN);
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            return "ERROR " + e;
         }
 
+        System.out.println("end Backup");
+        return copies > 0 ? "OK " + copies : "ERROR no peer stored the file";
+    }
+
+    @Override
+    public Map<String, String> backupDirectory(String directory, int replicationDegree) {
+        if (fingerTable.getSize() == 0 || !Files.isDirectory(Paths.get(directory))) {
+            return Collections.singletonMap(directory, "ERROR");
+        }
+        return new BulkBackup(this, replicationDegree).backupDirectory(Paths.get(directory));
+    }
+
+    @Override
+    public Map<String, String> backupFiles(List<String> fileNames, int replicationDegree) {
+        if (fingerTable.getSize() == 0) {
+            return Collections.singletonMap("", "ERROR");
+        }
+        return new BulkBackup(this, replicationDegree).backupFiles(fileNames);
+    }
+
+    /**
+     * Backs up a body of the given BodyType under a key, through the key's
+     * owner
+     *
+     * @return number of replicas, or fragments, stored
+     */
+    private int backup(Key fileId, int replicationDegree, InputStream body, long bodyLength, int type)
+            throws IOException {
+        OutsidePeer receiverPeer = nextHop(fileId);
         String message = "";
+        int copies;
 
         // FORWARD <file_key> <rep_degree> <InetAddress> <port> <body>
 
-        if (body != null) {
+        // Between this peer and its predecessor, a manifest is never cut into fragments
+        if (Helper.middlePeer(fileId, this.predecessor.getId(), id) && Config.isErasureCoded()
+                && !BodyType.isManifest(type)) {
+            storage.initializeFileLocation(fileId);
+            copies = placeFragments(fileId, body, bodyLength, type);
+        } else if (Helper.middlePeer(fileId, this.predecessor.getId(), id) && Config.isFanOut()) {
+            storage.initializeFileLocation(fileId);
+            copies = placeReplicas(fileId, replicationDegree, body, bodyLength, type);
+        } else if (Helper.middlePeer(fileId, this.predecessor.getId(), id)) {
+            storage.initializeFileLocation(fileId);
+            message = "BACKUP " + address.getAddress().getHostAddress() + " " + address.getPort() + " "
+                    + successor.getInetSocketAddress().getAddress().getHostAddress() + " "
+                    + successor.getInetSocketAddress().getPort() + " " + fileId + " " + replicationDegree + " "
+                    + bodyLength + " " + type + "\n";
+
+            System.out.println("Sent message to peer: " + receiverPeer.getId());
+            copies = awaitCopies(sendMessage(message, body, bodyLength, getLiveSuccessor().getInetSocketAddress()));
+        } else {
+            // FORWARD <file_key> <rep_degree> <body_length> <hops> <body_type>
+            message = "FORWARD " + fileId + " " + replicationDegree + " " + bodyLength + " 1 " + type + "\n";
+            copies = awaitCopies(sendToOwner(message, fileId, body, bodyLength));
+        }
+
+        return copies;
+    }
 
-            // Between this peer and its predecessor
-            if (Helper.middlePeer(fileId, this.predecessor.getId(), id)) {
-                storage.initializeFileLocation(fileId);
-                message = "BACKUP " + address.getAddress().getHostAddress() + " " + address.getPort() + " "
-                        + successor.getInetSocketAddress().getAddress().getHostAddress() + " "
-                        + successor.getInetSocketAddress().getPort() + " " + fileId + " " + replicationDegree + " "
-                        + body.length + "\n";
+    /**
+     * Waits for the reply to a BACKUP or FORWARD, which says how many replicas,
+     * or fragments, were stored by the peers it went through
+     *
+     * @return the number stored, 0 if there was no reply
+     */
+    public static int awaitCopies(CompletableFuture<String> reply) {
+        try {
+            // OK <copies>
+            String[] fields = ConnectionPool.await(reply, ConnectionPool.REQUEST_TIMEOUT).split(" ");
+            return fields[0].equals("OK") && fields.length > 1 ? Integer.parseInt(fields[1]) : 0;
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
 
-                try {
-                    System.out.println("Sent message to peer: " + receiverPeer.getId());
-                    if (!successor.testSuccessor()) {
-                        sendMessage(message, body, successor.getInetSocketAddress());
-                    } else {
-                        sendMessage(message, body, nextSuccessor.getInetSocketAddress());
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+    /**
+     * Backs up the compressed body of a file. Its length must be known before
+     * it's sent, so the file is compressed twice: once only to count the bytes,
+     * then block by block as the body is sent. Nothing is written to disk.
+     */
+    private int backupCompressed(Key fileId, int replicationDegree, File file) throws IOException {
+        long length = file.length();
+        long compressedLength;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), Helper.CHUNK_SIZE)) {
+            compressedLength = Compression.compressedLength(in, length);
+        }
+
+        System.out.println("Compressed " + length + " to " + compressedLength + " bytes");
+        try (InputStream in = Compression.compressing(new FileInputStream(file), length)) {
+            return backup(fileId, replicationDegree, in, compressedLength, BodyType.COMPRESSED);
+        }
+    }
+
+    /**
+     * Splits a file into content-defined chunks and backs up the ones the ring
+     * doesn't have yet, each under its hash, then a manifest of the chunks
+     * under the file's id. The manifest is also kept here, in case the ring
+     * can't give it back to a later delete or backup of the file. If a chunk
+     * or the manifest isn't stored anywhere, the references taken so far are
+     * dropped again.
+     *
+     * @return number of replicas, or fragments, of the manifest stored
+     */
+    private int backupChunks(Key fileId, int replicationDegree, InputStream in, long length) throws IOException {
+        Manifest manifest = new Manifest(length);
+        Set<Key> sent = new HashSet<Key>();
+        long sentBytes = 0;
+
+        Chunker chunker = new Chunker(in);
+        int chunkLength;
+        while ((chunkLength = chunker.next()) > 0) {
+            byte[] chunk = chunker.getBuffer();
+            Key chunkId = Key.of(Helper.getSHA1(chunk, 0, chunkLength));
+            manifest.add(chunkId, chunkLength);
+
+            if (referenceChunk(chunkId).equals("NEW") && sent.add(chunkId)) {
+                storage.addAskedFile(chunkId);
+                // Chunks are named after their content, however they're stored
+                int copies;
+                if (Config.isCompressed()) {
+                    byte[] compressed = Compression.compress(chunk, 0, chunkLength);
+                    copies = backup(chunkId, replicationDegree, new ByteArrayInputStream(compressed),
+                            compressed.length, BodyType.COMPRESSED);
+                    sentBytes += compressed.length;
+                } else {
+                    copies = backup(chunkId, replicationDegree, new ByteArrayInputStream(chunk, 0, chunkLength),
+                            chunkLength, BodyType.PLAIN);
+                    sentBytes += chunkLength;
                 }
-            } else {
-                message = "FORWARD " + fileId + " " + replicationDegree + " " + body.length + "\n";
-                try {
-                    System.out.println("Sent message to peer: " + receiverPeer.getId());
-                    sendMessage(message, body, receiverPeer.getInetSocketAddress());
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (copies == 0) {
+                    unreferenceChunks(manifest);
+                    throw new IOException("No peer stored chunk " + chunkId);
                 }
             }
+        }
 
-            System.out.println(message);
+        Path manifestPath = getManifestPath(fileId);
+        Manifest previous = fetchManifest(fileId);
+        byte[] manifestBytes = manifest.toBytes();
+        int copies = backup(fileId, replicationDegree, new ByteArrayInputStream(manifestBytes), manifestBytes.length,
+                BodyType.MANIFEST);
+        if (copies == 0) {
+            unreferenceChunks(manifest);
+            throw new IOException("No peer stored the manifest of " + fileId);
+        }
+        Files.createDirectories(manifestPath.getParent());
+        Files.write(manifestPath, manifestBytes);
 
+        // The old backup of the file is replaced, its chunks are only kept if they're still listed
+        if (previous != null) {
+            unreferenceChunks(previous);
         }
 
-        System.out.println("end Backup");
-        return "OK";
+        System.out.println(manifest.size() + " chunks, " + sent.size() + " new: sent " + sentBytes + " of "
+                + length + " bytes");
+        return copies;
+    }
+
+    /**
+     * Gets the manifest the ring holds for a file, whichever peer backed it
+     * up, or the copy kept here if the ring can't be asked
+     *
+     * @return the manifest, null if the file wasn't backed up in chunks
+     */
+    private Manifest fetchManifest(Key fileId) throws IOException {
+        try {
+            // MANIFEST <file_key> <hops>
+            String message = "MANIFEST " + fileId + " 1\n";
+            String[] reply = (Helper.middlePeer(fileId, predecessor.getId(), id)
+                    ? ConnectionPool.await(connectionPool.send(address, message), ConnectionPool.REQUEST_TIMEOUT)
+                    : sendToOwner(message, fileId)).split(" ");
+            if (reply[0].equals("OK")) {
+                Manifest manifest = Manifest.fromLine(reply, 1);
+                if (manifest != null) {
+                    return manifest;
+                }
+            } else if (reply[0].equals("NOTFOUND")) {
+                return null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return Manifest.read(getManifestPath(fileId));
+    }
+
+    /**
+     * Gets where the manifest of a file this peer backed up in chunks is kept
+     */
+    private Path getManifestPath(Key fileId) {
+        return Paths.get(storageDirPath, "Manifests", fileId.toString());
+    }
+
+    /**
+     * Adds a reference to a chunk at its owner
+     *
+     * @return "HAVE" if the ring already has the chunk, "NEW" if it must be
+     *         backed up
+     */
+    private String referenceChunk(Key chunkId) throws IOException {
+        if (Helper.middlePeer(chunkId, predecessor.getId(), id)) {
+            return addChunkReference(chunkId);
+        }
+        // REF <chunk_key> <hops>
+        return sendToOwner("REF " + chunkId + " 1\n", chunkId);
+    }
+
+    /**
+     * Drops the references of a manifest to its chunks, the chunks no other
+     * manifest lists are deleted
+     */
+    private void unreferenceChunks(Manifest manifest) {
+        for (int i = 0; i < manifest.size(); i++) {
+            Key chunkId = manifest.getChunk(i);
+            try {
+                String reply;
+                if (Helper.middlePeer(chunkId, predecessor.getId(), id)) {
+                    reply = removeChunkReference(chunkId);
+                } else {
+                    // UNREF <chunk_key> <hops>
+                    reply = sendToOwner("UNREF " + chunkId + " 1\n", chunkId);
+                }
+                if (reply.equals("DELETED")) {
+                    storage.removeAskedFile(chunkId);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Counts a reference to a chunk this peer owns. A chunk with an entry in
+     * the location table is backed up, or on its way to be.
+     */
+    public String addChunkReference(Key chunkId) {
+        String reply = storage.addChunkReference(chunkId);
+        sendChunkReferences(chunkId, storage.getChunkReferences(chunkId));
+        return reply;
+    }
+
+    /**
+     * Drops a reference to a chunk this peer owns, deleting the chunk if it was
+     * the last one. A chunk with no references here is kept, its references may
+     * have been lost with a peer.
+     */
+    public String removeChunkReference(Key chunkId) throws IOException {
+        List<OutsidePeer> holders = storage.removeChunkReference(chunkId);
+        sendChunkReferences(chunkId, storage.getChunkReferences(chunkId));
+        if (holders == null) {
+            return "KEPT";
+        }
+
+        // The entry is already gone, a new reference backs the chunk up again
+        storage.sendDelete(chunkId, holders);
+        sendMessage("DELETE " + chunkId + "\n", successor.getInetSocketAddress());
+        return "DELETED";
+    }
+
+    /**
+     * The successor keeps a copy of the references, as it does of the location
+     * table
+     */
+    private void sendChunkReferences(Key chunkId, int references) {
+        // REFERENCES <chunk_key> <references>
+        Messenger.sendMessage(connectionPool, "REFERENCES " + chunkId + " " + references + "\n",
+                successor.getInetSocketAddress());
     }
 
     @Override
@@ -291,32 +765,87 @@ public class Peer implements RmiRemote {
             return "ERROR";
         }
 
-        BigInteger fileId = Helper.getFileId(fileName);
-        OutsidePeer receiverPeer = fingerTable.getNearestPeer(fileId);
+        Key fileId = Helper.getFileId(fileName);
+        // The client follows the restore already running, if there's one. It can end before its id is
+        // read, then this one is started after all.
+        String operationId;
+        while ((operationId = operations.startIfIdle(fileName, fileId)) == null) {
+            String runningId = operations.running(fileId);
+            if (runningId != null) {
+                return runningId;
+            }
+        }
+        chunkedRestores.expect(fileId);
+
+        // RESTORE <file_key> <ip_address> <port> <hops>
+        String message = "RESTORE " + fileId + " " + address.getAddress().getHostAddress() + " " + this.port
+                + " 1\n";
+
+        // The file arrives later, the client follows the operation
+        Threads.start(() -> {
+            try {
+                String reply = sendToOwner(message, fileId);
+                if (!reply.startsWith("OK")) {
+                    operations.failed(fileId, "The owner replied " + reply.trim());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                operations.failed(fileId, e.toString());
+            }
+        }, "Restore-" + fileId);
 
-        String message = "RESTORE " + fileId + " " + address.getAddress().getHostAddress() + " " + this.port + "\n";
+        System.out.println("end restore");
+        return operationId;
+    }
 
+    @Override
+    public OperationStatus getOperation(String operationId) {
+        return operations.status(operationId);
+    }
+
+    @Override
+    public OperationStatus awaitOperation(String operationId, long timeout) throws InterruptedIOException {
         try {
-            sendMessage(message, receiverPeer.getInetSocketAddress());
-        } catch (IOException e) {
-            e.printStackTrace();
+            return operations.await(operationId, timeout);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
         }
+    }
 
-        System.out.println("end restore");
-        return "";
+    @Override
+    public boolean subscribe(String operationId, OperationListener listener) {
+        return operations.subscribe(operationId, listener);
     }
 
     @Override
+    /**
+     * Deletes a file from the peers that store it
+     *
+     * @return "OK" once the owner of the file took the delete, "ERROR ..." if it
+     *         couldn't be reached
+     */
     public String delete(String fileName) {
         System.out.println("delete");
         String message;
+        String result = "OK";
         // String message = "BACKUP 32 1 127.0.0.1 7000 dfasfsdf\n";
         if (fingerTable.getSize() == 0 || this.successor == null) {
             System.out.println("There are no peers available");
             return "ERROR";
         }
 
-        BigInteger fileId = Helper.getFileId(fileName);
+        Key fileId = Helper.getFileId(fileName);
+
+        // A file backed up in chunks only takes its chunks with it if no other file lists them
+        try {
+            Manifest manifest = fetchManifest(fileId);
+            if (manifest != null) {
+                unreferenceChunks(manifest);
+            }
+            Files.deleteIfExists(getManifestPath(fileId));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
         if (storage.hasFileStored(fileId)) {
             storage.removeStoredFile(fileId);
@@ -324,31 +853,33 @@ public class Peer implements RmiRemote {
         }
         this.storage.removeAskedFile(fileId);
 
-        if (Helper.middlePeer(fileId, getPredecessor().getId(), getId())) {
-            message = "DELETE " + fileId + "\n";
-            try {
-                storage.sendDelete(fileId);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } else {
-            message = "DELETE " + fileId + " " + address.getAddress().getHostAddress() + " " + this.port + "\n";
-
-        }
-
         try {
-            sendMessage(message, this.successor.getInetSocketAddress());
+            if (Helper.middlePeer(fileId, getPredecessor().getId(), getId())) {
+                message = "DELETE " + fileId + "\n";
+                try {
+                    storage.sendDelete(fileId);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                sendMessage(message, this.successor.getInetSocketAddress());
+            } else {
+                // DELETE <file_key> <ip_address> <port> <hops>
+                message = "DELETE " + fileId + " " + address.getAddress().getHostAddress() + " " + this.port
+                        + " 1\n";
+                result = sendToOwner(message, fileId);
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            result = "ERROR " + e;
         }
 
         storage.removeFileLocation(fileId);
         System.out.println("end delete");
-        return "";
+        return result;
     }
 
     @Override
-    public String reclaim(int space) {
+    public String reclaim(long space) {
         System.out.println("reclaim");
 
         if (getFingerTable().getSize() == 0 || getSuccessor() == null) {
@@ -359,11 +890,11 @@ public class Peer implements RmiRemote {
         storage.setAvailableSpace(space);
 
         while (true) {
-            if (storage.checkIfOverload(this.backupDirPath)) {
+            if (storage.checkIfOverload()) {
                 break;
             }
 
-            BigInteger fileId = storage.randomFile();
+            Key fileId = storage.randomFile();
             sendRemoved(fileId);
             storage.removeStoredFile(fileId);
             Helper.deleteFile(fileId.toString(), storageDirPath, backupDirPath);
@@ -373,82 +904,657 @@ public class Peer implements RmiRemote {
         return "";
     }
 
-    public static void sendRemoved(BigInteger fileId) {
+    public void sendRemoved(Key fileId) {
         String fileName = getBackupDirPath() + "/" + fileId.toString();
         File file = new File(fileName);
-        byte[] body = new byte[(int) file.length()];
 
+        Key id = new OutsidePeer(getAddress()).getId();
+        OutsidePeer receiverPeer = fingerTable.nextHop(id, getSuccessor(), fileId);
+        // REMOVED <file_key> <ip_address> <port> <body_length> <body_type>
+        String message = "REMOVED " + fileId + " " + getAddress().getAddress().getHostAddress() + " "
+                + getAddress().getPort() + " " + file.length() + " " + storage.getStoredType(fileId) + "\n";
         try {
-            body = Files.readAllBytes(file.toPath());
+
+            sendFile(message, file, receiverPeer.getInetSocketAddress());
+
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    public String sendMessage(String message, InetSocketAddress messageReceiver)
+            throws UnknownHostException, IOException {
+        return connectionPool.request(messageReceiver, message, ConnectionPool.REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Gets the peer a request for key should go to next on its way to the key's
+     * owner
+     */
+    public OutsidePeer nextHop(Key key) {
+        return fingerTable.nextHop(id, successor, key);
+    }
+
+    /**
+     * Finds the owners of many keys, those of the fingers being looked up, in
+     * one request: the keys that take the same next hop are sent on together,
+     * and split from each other where their paths part. Refreshing the fingers
+     * takes O(log N) messages per finger this way, rather than one message per
+     * peer walked along the ring.
+     *
+     * @param keys keys by the index of their finger
+     * @param hops hops the request took so far
+     * @return the owners found by the index of their finger, without those
+     *         whose path failed
+     */
+    public Map<Integer, OutsidePeer> findOwners(Map<Integer, Key> keys, int hops) {
+        Map<Integer, OutsidePeer> owners = new TreeMap<Integer, OutsidePeer>();
+        OutsidePeer successor = this.successor;
+        OutsidePeer predecessor = this.predecessor;
+        if (successor == null || predecessor == null || hops > fingerTable.getSize()) {
+            // Lost during a change of the ring, looked up again in a later round
+            return owners;
+        }
+
+        Map<InetSocketAddress, StringBuilder> batches = new HashMap<InetSocketAddress, StringBuilder>();
+        for (Map.Entry<Integer, Key> entry : keys.entrySet()) {
+            Key key = entry.getValue();
+            if (Helper.middlePeer(key, predecessor.getId(), id)) {
+                owners.put(entry.getKey(), new OutsidePeer(address));
+            } else if (Helper.between(key, id, successor.getId()) || key.equals(successor.getId())) {
+                owners.put(entry.getKey(), successor);
+            } else {
+                batches.computeIfAbsent(nextHop(key).getInetSocketAddress(), hop -> new StringBuilder())
+                        .append(' ').append(entry.getKey()).append(' ').append(key);
+            }
+        }
+        if (!owners.isEmpty()) {
+            System.out.println(routingStats.record("FINDFINGERS", hops));
+        }
+
+        // Every batch is sent before waiting for any
+        Map<InetSocketAddress, CompletableFuture<String>> replies = new HashMap<InetSocketAddress, CompletableFuture<String>>();
+        for (Map.Entry<InetSocketAddress, StringBuilder> batch : batches.entrySet()) {
+            // FINDFINGERS <hops> <index> <key> [<index> <key>]...
+            String message = "FINDFINGERS " + (hops + 1) + batch.getValue() + "\n";
+            try {
+                replies.put(batch.getKey(), connectionPool.send(batch.getKey(), message));
+            } catch (IOException e) {
+                try {
+                    replies.put(batch.getKey(), connectionPool.send(successor.getInetSocketAddress(), message));
+                } catch (IOException e1) {
+                }
+            }
+        }
+
+        for (CompletableFuture<String> reply : replies.values()) {
+            try {
+                // OK [<index> <ip_address> <port>]...
+                String[] response = ConnectionPool.await(reply, ConnectionPool.REQUEST_TIMEOUT).split(" ");
+                for (int i = 1; i + 2 < response.length; i += 3) {
+                    owners.put(Integer.parseInt(response[i]), new OutsidePeer(
+                            new InetSocketAddress(response[i + 1], Integer.parseInt(response[i + 2]))));
+                }
+            } catch (IOException e) {
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * Sends a message one hop closer to the owner of key, without waiting for
+     * the reply. If the finger can't be reached the message goes to the
+     * successor, which is always a correct, if slower, next hop.
+     */
+    public CompletableFuture<String> route(String message, Key key) throws IOException {
+        OutsidePeer hop = nextHop(key);
 
-        OutsidePeer receiverPeer = fingerTable.getNearestPeer(fileId);
-        String message = "REMOVED " + fileId + " " + getAddress().getAddress().getHostAddress() + " "
-                + getAddress().getPort() + " " + body.length + "\n";
         try {
+            return connectionPool.send(hop.getInetSocketAddress(), message);
+        } catch (IOException e) {
+            if (hop.equals(successor)) {
+                throw e;
+            }
+            return connectionPool.send(successor.getInetSocketAddress(), message);
+        }
+    }
 
-            sendMessage(message, body, receiverPeer.getInetSocketAddress());
+    /**
+     * Same as route, for a message with a body
+     */
+    public CompletableFuture<String> route(String message, Key key, InputStream body, long length)
+            throws IOException {
+        OutsidePeer hop = nextHop(key);
+        PeerConnection.RequestBody request;
 
+        try {
+            request = connectionPool.open(hop.getInetSocketAddress(), message, length);
         } catch (IOException e) {
-            e.printStackTrace();
+            if (hop.equals(successor)) {
+                throw e;
+            }
+            request = connectionPool.open(successor.getInetSocketAddress(), message, length);
+        }
+
+        try {
+            Helper.copy(body, request, length);
+        } catch (IOException e) {
+            request.abort();
+            throw e;
         }
+        request.close();
+
+        return request.getReply();
     }
 
-    public String sendMessage(String message, InetSocketAddress messageReceiver)
-            throws UnknownHostException, IOException {
-        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(messageReceiver.getAddress().getHostAddress(),
-                messageReceiver.getPort());
-
-        DataOutputStream out = new DataOutputStream(sslSocket.getOutputStream());
-        BufferedReader in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
-        //System.out.println(message);
-        out.writeBytes(message);
-        String response = in.readLine();
+    /**
+     * Routes a request to the owner of key with this peer as its origin: the
+     * <ip_address> <port> <tag> of the origin are added after its hops. The
+     * peers on the way pass it on without waiting, and the owner replies
+     * straight here rather than back through every hop.
+     */
+    public CompletableFuture<String> routeToOwner(String message, Key key) throws IOException {
+        long tag = nextTag.incrementAndGet();
+        CompletableFuture<String> reply = new CompletableFuture<String>();
+        routedReplies.put(tag, reply);
+        reply.orTimeout(ConnectionPool.REQUEST_TIMEOUT, TimeUnit.MILLISECONDS)
+                .whenComplete((response, e) -> routedReplies.remove(tag));
+
+        String routed = message.trim() + " " + address.getAddress().getHostAddress() + " " + port + " " + tag + "\n";
+        try {
+            // The first hop replies itself if it's the owner, ROUTED if it passed the request on
+            route(routed, key).whenComplete((response, e) -> {
+                if (e != null) {
+                    reply.completeExceptionally(e);
+                } else if (!response.equals("ROUTED")) {
+                    reply.complete(response);
+                }
+            });
+        } catch (IOException e) {
+            routedReplies.remove(tag);
+            throw e;
+        }
+        return reply;
+    }
+
+    /**
+     * Passes a request that isn't for this peer one hop closer to the owner of
+     * key. A request that names its origin isn't waited for, the owner replies
+     * to the origin. One that doesn't is routed with this peer as its origin.
+     *
+     * @param origin <ip_address> <port> <tag> of the origin, null if the
+     *               request names none
+     * @return "ROUTED", or the owner's reply if this peer is the origin
+     */
+    public String routeOn(String message, Key key, String[] origin) throws IOException {
+        if (origin == null) {
+            return ConnectionPool.await(routeToOwner(message, key), ConnectionPool.REQUEST_TIMEOUT);
+        }
+
+        String routed = message.trim() + " " + String.join(" ", origin) + "\n";
+        try {
+            // The origin isn't left waiting for a reply that won't come
+            route(routed, key).whenComplete((response, e) -> {
+                if (e != null) {
+                    replyToOrigin(origin, "ERROR");
+                }
+            });
+        } catch (IOException e) {
+            replyToOrigin(origin, "ERROR");
+        }
+        return "ROUTED";
+    }
+
+    /**
+     * Gives the reply of the owner to a routed request. The origin reads it on
+     * its connection if it sent the request here itself, the first hop, and
+     * gets it sent otherwise.
+     */
+    public String answer(String response, int hops, String[] origin) {
+        if (origin != null && hops > 1) {
+            replyToOrigin(origin, response);
+        }
         return response;
     }
 
-    public static void sendMessage(String message, byte[] body, InetSocketAddress messageReceiver)
+    private void replyToOrigin(String[] origin, String response) {
+        // REPLY <tag> <response>
+        Messenger.sendMessage(connectionPool, "REPLY " + origin[2] + " " + response.trim() + "\n",
+                new InetSocketAddress(origin[0], Integer.parseInt(origin[1])));
+    }
+
+    /**
+     * Completes a request this peer routed with the reply its owner sent
+     */
+    public void routedReply(long tag, String response) {
+        CompletableFuture<String> reply = routedReplies.remove(tag);
+        if (reply != null) {
+            reply.complete(response);
+        }
+    }
+
+    /**
+     * Gets the origin a routed request names, from the field at index on
+     *
+     * @return <ip_address> <port> <tag>, null if it names none
+     */
+    public static String[] getOrigin(String[] request, int index) {
+        return request.length >= index + 3 ? Arrays.copyOfRange(request, index, index + 3) : null;
+    }
+
+    /**
+     * Finds the peer that owns key, in the lookup cache or with a FINDOWNER
+     * lookup whose reply is cached
+     */
+    public OutsidePeer findOwner(Key key) throws IOException {
+        OutsidePeer owner = lookupCache.get(key);
+        if (owner != null) {
+            return owner;
+        }
+
+        // FINDOWNER <key> <hops>
+        String message = "FINDOWNER " + key + " 1\n";
+        String[] reply = ConnectionPool.await(routeToOwner(message, key), ConnectionPool.REQUEST_TIMEOUT).split(" ");
+
+        // OWNER <ip_address> <port> <predecessor ip_address> <predecessor port>
+        owner = new OutsidePeer(new InetSocketAddress(reply[1], Integer.parseInt(reply[2])));
+        OutsidePeer ownerPredecessor = new OutsidePeer(new InetSocketAddress(reply[3], Integer.parseInt(reply[4])));
+        lookupCache.put(ownerPredecessor.getId(), owner);
+        return owner;
+    }
+
+    /**
+     * Sends a message straight to the owner of key and waits for the reply. If
+     * the owner can't be found or reached, it's forgotten and the message is
+     * routed instead.
+     */
+    public String sendToOwner(String message, Key key) throws IOException {
+        OutsidePeer owner = null;
+        CompletableFuture<String> reply;
+
+        try {
+            owner = findOwner(key);
+            reply = connectionPool.send(owner.getInetSocketAddress(), message);
+        } catch (IOException e) {
+            if (owner != null) {
+                lookupCache.invalidate(owner.getId());
+            }
+            reply = routeToOwner(message, key);
+        }
+
+        return ConnectionPool.await(reply, ConnectionPool.REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Same as sendToOwner, for a message with a body, without waiting for the
+     * reply. The message is only routed instead if the owner can't be reached
+     * before any of the body is sent.
+     */
+    public CompletableFuture<String> sendToOwner(String message, Key key, InputStream body, long length)
+            throws IOException {
+        OutsidePeer owner = null;
+        PeerConnection.RequestBody request;
+
+        try {
+            owner = findOwner(key);
+            request = connectionPool.open(owner.getInetSocketAddress(), message, length);
+            System.out.println("Sent message to peer: " + owner.getId());
+        } catch (IOException e) {
+            if (owner != null) {
+                lookupCache.invalidate(owner.getId());
+            }
+            return route(message, key, body, length);
+        }
+
+        try {
+            Helper.copy(body, request, length);
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        }
+        request.close();
+        return request.getReply();
+    }
+
+    /**
+     * Sends a message whose body is streamed from another stream, such as the
+     * body of a request being relayed
+     */
+    public CompletableFuture<String> sendMessage(String message, InputStream body, long length,
+            InetSocketAddress messageReceiver) throws UnknownHostException, IOException {
+        return connectionPool.send(messageReceiver, message, body, length);
+    }
+
+    /**
+     * Sends a message whose body is the content of a file, read chunk by chunk
+     */
+    public CompletableFuture<String> sendFile(String message, File file, InetSocketAddress messageReceiver)
             throws UnknownHostException, IOException {
-        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(messageReceiver.getAddress().getHostAddress(),
-                messageReceiver.getPort());
+        try (InputStream body = new FileInputStream(file)) {
+            return connectionPool.send(messageReceiver, message, body, file.length());
+        }
+    }
+
+    /**
+     * Sends the replicas of a file this peer owns straight to the first
+     * successors that can store it, all at once, and records where they were
+     * stored
+     *
+     * @return number of replicas stored
+     * @throws IOException if the body couldn't be read, no replica is stored
+     */
+    public int placeReplicas(Key fileKey, int replicationDegree, InputStream body, long bodyLength, int type)
+            throws IOException {
+        List<OutsidePeer> targets = findReplicaTargets(fileKey, bodyLength, replicationDegree);
+
+        // REPLICA <ip_address> <port> <successor ip_address> <successor port> <file_key>
+        // <body_length> <body_type> <body>
+        String message = "REPLICA " + address.getAddress().getHostAddress() + " " + address.getPort() + " "
+                + successor.getInetSocketAddress().getAddress().getHostAddress() + " "
+                + successor.getInetSocketAddress().getPort() + " " + fileKey + " " + bodyLength + " " + type + "\n";
+
+        InetSocketAddress[] addresses = new InetSocketAddress[targets.size()];
+        String[] messages = new String[targets.size()];
+        long[] lengths = new long[targets.size()];
+        for (int i = 0; i < targets.size(); i++) {
+            addresses[i] = targets.get(i).getInetSocketAddress();
+            messages[i] = message;
+            lengths[i] = bodyLength;
+        }
+        PeerConnection.RequestBody[] opened = connectionPool.openAll(addresses, messages, lengths);
+
+        List<OutsidePeer> receivers = new ArrayList<OutsidePeer>();
+        List<PeerConnection.RequestBody> replicas = new ArrayList<PeerConnection.RequestBody>();
+        for (int i = 0; i < opened.length; i++) {
+            if (opened[i] != null) {
+                replicas.add(opened[i]);
+                receivers.add(targets.get(i));
+            }
+        }
+
+        // A replica whose body failed on the way was aborted, it isn't counted
+        List<PeerConnection.RequestBody> sent = Helper.copy(body, replicas, bodyLength);
 
-        DataOutputStream out = new DataOutputStream(sslSocket.getOutputStream());
-        DataInputStream in = new DataInputStream(sslSocket.getInputStream());
-        //System.out.println(message);
-        out.writeBytes(message);
-        out.flush();
-        sslSocket.getOutputStream().write(body);
-        sslSocket.getOutputStream().flush();
-        // String response = in.readLine();
-        in.close();
-        out.close();
-        sslSocket.close();
+        int stored = 0;
+        for (int i = 0; i < replicas.size(); i++) {
+            if (!sent.contains(replicas.get(i))) {
+                continue;
+            }
+            try {
+                String reply = ConnectionPool.await(replicas.get(i).getReply(), ConnectionPool.REQUEST_TIMEOUT);
+                if (reply.equals("STORED")) {
+                    storage.addFileLocation(fileKey, receivers.get(i));
+                    stored++;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (stored < replicationDegree) {
+            System.out.println("Only " + stored + " of " + replicationDegree + " replicas were stored");
+        }
+        return stored;
+    }
+
+    /**
+     * Sends the k + m erasure-coded fragments of a file this peer owns to as
+     * many successors that can store one, all at once, and records where they
+     * were stored. Unless k + m such peers are found the file is stored as
+     * m + 1 replicas instead, fewer fragments would survive fewer failures.
+     *
+     * @return number of fragments stored
+     * @throws IOException if fewer than k were stored, the file couldn't be
+     *                     restored from them and they are deleted
+     */
+    public int placeFragments(Key fileKey, InputStream body, long bodyLength, int type) throws IOException {
+        int dataFragments = Config.getDataFragments();
+        Fragments.Header[] headers = Fragments.headers(bodyLength, dataFragments, Config.getParityFragments());
+        List<OutsidePeer> targets = findReplicaTargets(fileKey, headers[0].getFragmentLength(), headers.length);
+        if (targets.size() < headers.length) {
+            System.out.println("Only " + targets.size() + " peers can store a fragment, storing replicas");
+            return placeReplicas(fileKey, Config.getParityFragments() + 1, body, bodyLength, type);
+        }
+
+        InetSocketAddress[] addresses = new InetSocketAddress[headers.length];
+        String[] messages = new String[headers.length];
+        long[] lengths = new long[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            // REPLICA <ip_address> <port> <successor ip_address> <successor port> <file_key>
+            // <body_length> <body_type> <body>
+            addresses[i] = targets.get(i).getInetSocketAddress();
+            messages[i] = "REPLICA " + address.getAddress().getHostAddress() + " " + address.getPort() + " "
+                    + successor.getInetSocketAddress().getAddress().getHostAddress() + " "
+                    + successor.getInetSocketAddress().getPort() + " " + fileKey + " "
+                    + headers[i].getFragmentLength() + " " + (type | BodyType.FRAGMENT) + "\n";
+            lengths[i] = headers[i].getFragmentLength();
+        }
+        PeerConnection.RequestBody[] fragments = connectionPool.openAll(addresses, messages, lengths);
+
+        boolean[] failed;
+        try {
+            failed = Fragments.encode(body, headers, fragments);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed = new boolean[fragments.length];
+            Arrays.fill(failed, true);
+        }
+
+        int stored = 0;
+        for (int i = 0; i < fragments.length; i++) {
+            if (fragments[i] == null) {
+                continue;
+            }
+            if (failed[i]) {
+                fragments[i].abort();
+                continue;
+            }
+
+            try {
+                fragments[i].close();
+                String reply = ConnectionPool.await(fragments[i].getReply(), ConnectionPool.REQUEST_TIMEOUT);
+                if (reply.equals("STORED")) {
+                    storage.addFileLocation(fileKey, targets.get(i));
+                    stored++;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (stored < dataFragments) {
+            storage.sendDelete(fileKey);
+            storage.removeFileLocation(fileKey);
+            throw new IOException("Only " + stored + " of " + headers.length + " fragments of " + fileKey
+                    + " were stored, fewer than the " + dataFragments + " it's restored from");
+        }
+        if (stored < headers.length) {
+            System.out.println("Only " + stored + " of " + headers.length + " fragments were stored");
+        }
+        return stored;
+    }
+
+    /**
+     * Gives a stored file, or fragment, to the peer restoring it
+     *
+     * @return reply for the owner that asked for it:
+     *         SENT <file_key> <bytes> [<fragments_needed>] or FAILED <file_key>
+     */
+    public String giveStoredFile(Key fileKey, InetSocketAddress receiver) throws IOException {
+        File file = new File(getBackupDirPath() + "/" + fileKey);
+        int type = storage.getStoredType(fileKey);
+        Fragments.Header fragment = BodyType.isFragment(type) ? readFragmentHeader(file) : null;
+
+        // GIVEFILE <file_key> <body_length> <body_type> [<fragment_index>]
+        String message = "GIVEFILE " + fileKey + " " + file.length() + " " + type
+                + (fragment != null ? " " + fragment.index : "") + "\n";
+        try {
+            sendFile(message, file, receiver);
+        } catch (IOException e) {
+            // The owner asks another holder
+            e.printStackTrace();
+            return "FAILED " + fileKey + "\n";
+        }
+        return "SENT " + fileKey + " " + file.length() + (fragment != null ? " " + fragment.dataFragments : "")
+                + "\n";
+    }
+
+    /**
+     * Gives part of a stored file to the peer restoring it, the other parts
+     * being given by the other holders at the same time. The file is cut into
+     * as many ranges of whole chunks, so every holder cuts it the same way.
+     * A fragment can't be cut, the first k holders give theirs whole.
+     *
+     * @return reply for the owner that asked for it:
+     *         SENT <file_key> <bytes> [<fragments_needed>], SPARE <file_key> <bytes> <fragments_needed>,
+     *         CANCELLED <file_key> or FAILED <file_key>
+     */
+    public String giveStoredFile(Key fileKey, InetSocketAddress receiver, int part, int parts) throws IOException {
+        File file = new File(getBackupDirPath() + "/" + fileKey);
+        int type = storage.getStoredType(fileKey);
+        if (BodyType.isFragment(type)) {
+            Fragments.Header fragment = readFragmentHeader(file);
+            return part < fragment.dataFragments ? giveStoredFile(fileKey, receiver)
+                    : "SPARE " + fileKey + " " + file.length() + " " + fragment.dataFragments + "\n";
+        }
+
+        long length = file.length();
+        long chunks = (length + Helper.CHUNK_SIZE - 1) / Helper.CHUNK_SIZE;
+        long rangeSize = (chunks + parts - 1) / parts * Helper.CHUNK_SIZE;
+        long offset = Math.min(part * rangeSize, length);
+        long rangeLength = Math.min(rangeSize, length - offset);
+
+        // An empty file still has to be given once
+        if (rangeLength == 0 && part != 0) {
+            return "SENT " + fileKey + " 0\n";
+        }
+
+        // The owner cancels the part if another holder gives it first. The part goes in pieces, the
+        // receiver counts each one as a range of its own, so a cancel only stops sending the next one:
+        // the connection carries other requests, aborting a body would close it.
+        String give = fileKey + " " + receiver + " " + part;
+        AtomicBoolean cancelled = new AtomicBoolean();
+        gives.put(give, cancelled);
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().position(offset);
+            long sent = 0;
+            do {
+                long pieceLength = Math.min(RANGE_PIECE, rangeLength - sent);
+                // GIVERANGE <file_key> <file_length> <offset> <body_length> <body_type>
+                String message = "GIVERANGE " + fileKey + " " + length + " " + (offset + sent) + " " + pieceLength
+                        + " " + type + "\n";
+                connectionPool.send(receiver, message, in, pieceLength);
+                sent += pieceLength;
+            } while (sent < rangeLength && !cancelled.get());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "FAILED " + fileKey + "\n";
+        } finally {
+            gives.remove(give);
+        }
+        return cancelled.get() ? "CANCELLED " + fileKey + "\n" : "SENT " + fileKey + " " + rangeLength + "\n";
+    }
+
+    private static Fragments.Header readFragmentHeader(File file) throws IOException {
+        Fragments.Header fragment = Fragments.readHeader(file.toPath());
+        if (fragment == null) {
+            throw new IOException("Fragment " + file + " has no header");
+        }
+        return fragment;
+    }
+
+    /**
+     * Stops giving a part of a stored file, if it's still being given
+     */
+    public void cancelGive(Key fileKey, InetSocketAddress receiver, int part) {
+        AtomicBoolean cancelled = gives.get(fileKey + " " + receiver + " " + part);
+        if (cancelled != null) {
+            cancelled.set(true);
+            System.out.println("Cancelled part " + part + " of " + fileKey);
+        }
+    }
+
+    /**
+     * Asks the successors in the successor list at once if they can store the
+     * file, then the peers after the last of them, until count peers can or the
+     * ring was walked around. The closest ones that can are picked.
+     */
+    private List<OutsidePeer> findReplicaTargets(Key fileKey, long bodyLength, int count) {
+        List<OutsidePeer> targets = new ArrayList<OutsidePeer>();
+        Set<Key> visited = new HashSet<Key>();
+        visited.add(id);
+
+        // CANSTORE <file_key> <body_length>
+        String message = "CANSTORE " + fileKey + " " + bodyLength + "\n";
+        List<OutsidePeer> candidates = getSuccessorList();
+        while (targets.size() < count && !candidates.isEmpty()) {
+            List<OutsidePeer> asked = new ArrayList<OutsidePeer>();
+            List<CompletableFuture<String>> replies = new ArrayList<CompletableFuture<String>>();
+            for (OutsidePeer candidate : candidates) {
+                if (visited.add(candidate.getId()) && failureDetector.isAvailable(candidate)) {
+                    asked.add(candidate);
+                    replies.add(Messenger.sendMessage(connectionPool, message, candidate.getInetSocketAddress()));
+                }
+            }
+
+            for (int i = 0; i < asked.size(); i++) {
+                try {
+                    if (ConnectionPool.await(replies.get(i), ConnectionPool.REQUEST_TIMEOUT).equals("YES")
+                            && targets.size() < count) {
+                        targets.add(asked.get(i));
+                    }
+                } catch (IOException e) {
+                    // Down, the next ones are asked instead
+                }
+            }
+
+            candidates = targets.size() < count ? successorsAfter(asked) : Collections.<OutsidePeer>emptyList();
+        }
+
+        return targets;
+    }
+
+    /**
+     * Gets the successor list of the last of the peers that answers
+     */
+    private List<OutsidePeer> successorsAfter(List<OutsidePeer> peers) {
+        for (int i = peers.size() - 1; i >= 0; i--) {
+            try {
+                return peers.get(i).getSuccessors(connectionPool);
+            } catch (IOException e) {
+                // Down, the one before it is asked instead
+            }
+        }
+        return Collections.<OutsidePeer>emptyList();
     }
 
     /**
      * Stores Class Records to a file
      */
-    public static void storeFile() {
+    public void storeFile() {
 
         if (getFingerTable().getSize() == 0 || getSuccessor() == null) {
             return;
         }
 
+        // Leaving only hands the files over, the limit is back after a restart
+        long availableSpace = storage.getAvailableSpace();
         storage.setAvailableSpace(0);
 
-        while (true) {
-            if (storage.checkIfOverload(getBackupDirPath())) {
-                break;
-            }
+        try {
+            while (true) {
+                if (storage.checkIfOverload()) {
+                    break;
+                }
 
-            BigInteger fileId = storage.randomFile();
-            sendRemoved(fileId);
-            storage.removeStoredFile(fileId);
-            Helper.deleteFile(fileId.toString(), storageDirPath, backupDirPath);
+                Key fileId = storage.randomFile();
+                sendRemoved(fileId);
+                storage.removeStoredFile(fileId);
+                Helper.deleteFile(fileId.toString(), storageDirPath, backupDirPath);
+            }
+        } finally {
+            storage.setAvailableSpace(availableSpace);
+            storage.sync();
         }
     }
 
@@ -459,10 +1565,13 @@ public class Peer implements RmiRemote {
 
             if (!Files.exists(peerFolderPath)) {
                 Files.createDirectories(peerFolderPath);
-                return;
             }
+
+            // Stored files, asked files and location table, as they were before a restart
+            storage.load(peerFolderPath.resolve("metadata"));
         } catch (IOException e) {
             System.out.println("File not found");
+            e.printStackTrace();
         }
 
     }
@@ -473,6 +1582,12 @@ public class Peer implements RmiRemote {
                     "Usage:\tPeer <rmi_accesspoint> <network_address> <port_number>\n\tPeer <network_address> <port_number> <network_address> <port_number_peer>");
             return;
         }
+        try {
+            Config.check();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
         String accessPoint = args[0];
         String address = args[1];
         int port = Integer.parseInt(args[2]);
@@ -489,6 +1604,8 @@ public class Peer implements RmiRemote {
                 server = new Peer(address, port, "0", -1);
             }
 
+            Runtime.getRuntime().addShutdownHook(new Thread(server::storeFile));
+
             RmiRemote rmiRemote = (RmiRemote) UnicastRemoteObject.exportObject(server, 0);
             Registry registry = LocateRegistry.getRegistry();
             registry.rebind(accessPoint, rmiRemote);
@@ -497,8 +1614,5 @@ public class Peer implements RmiRemote {
             System.err.println("Server exception: " + e.toString());
             e.printStackTrace();
         }
-
-        Runtime.getRuntime().addShutdownHook(new Thread(Peer::storeFile));
-
     }
 }
@@ -0,0 +1,245 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-lived connection to another peer that carries several requests at
+ * once. Every request is tagged with an id and the replies are matched back to
+ * the request that is waiting for them.
+ */
+public class PeerConnection {
+    private final InetSocketAddress address;
+    private final ConnectionPool pool;
+    private final Transport.Connection connection;
+    private final DataOutputStream out;
+    private final InputStream in;
+    private final ConcurrentHashMap<Long, CompletableFuture<String>> pendingRequests = new ConcurrentHashMap<Long, CompletableFuture<String>>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile long lastUsed;
+    private volatile boolean closed;
+
+    /**
+     * @param channel which of the pool's connections to address this is
+     */
+    public PeerConnection(InetSocketAddress address, ConnectionPool pool, String channel) throws IOException {
+        this.address = address;
+        this.pool = pool;
+
+        this.connection = Transport.get().connect(pool.getLocalAddress(), address, channel);
+
+        this.out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        this.in = new BufferedInputStream(connection.getInputStream());
+        this.lastUsed = System.currentTimeMillis();
+
+        Threads.start(this::readReplies, "PeerConnection-" + address);
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Gets the number of requests still waiting for a reply
+     */
+    public int getPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    /**
+     * Sends a request and returns the reply that will be received for it
+     */
+    public CompletableFuture<String> send(String message, byte[] body) throws IOException {
+        RequestBody request = open(message, body.length);
+        request.write(body);
+        request.close();
+        return request.getReply();
+    }
+
+    /**
+     * Same as send, unless another request is being written on the connection,
+     * e.g. a body: then nothing is sent and nothing waits for it
+     *
+     * @return the reply, null if the connection was busy
+     */
+    public CompletableFuture<String> trySend(String message, byte[] body) throws IOException {
+        if (!writeLock.tryLock()) {
+            return null;
+        }
+        try {
+            return send(message, body);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a request whose body is written by the caller, chunk by chunk. The
+     * connection is reserved for this request until the body is closed.
+     */
+    public RequestBody open(String message, long length) throws IOException {
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<String> reply = new CompletableFuture<String>();
+        pendingRequests.put(requestId, reply);
+
+        if (!message.endsWith("\n")) {
+            message += "\n";
+        }
+
+        // A lock rather than synchronized, so waiting writers don't pin virtual threads
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Connection to " + address + " is closed");
+            }
+
+            // <request_id> <body_length> <message> <body>
+            String header = requestId + " " + length + " " + message;
+            out.writeBytes(header);
+            pool.countSent(header.length() + length);
+        } catch (IOException e) {
+            writeLock.unlock();
+            pendingRequests.remove(requestId);
+            close();
+            throw e;
+        }
+
+        return new RequestBody(requestId, reply, length);
+    }
+
+    /**
+     * Body of a request being sent. Must be closed once exactly the announced
+     * number of bytes has been written.
+     */
+    public class RequestBody extends OutputStream {
+        private final long requestId;
+        private final CompletableFuture<String> reply;
+        private long remaining;
+        private boolean finished;
+
+        private RequestBody(long requestId, CompletableFuture<String> reply, long length) {
+            this.requestId = requestId;
+            this.reply = reply;
+            this.remaining = length;
+        }
+
+        public CompletableFuture<String> getReply() {
+            return reply;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining) {
+                abort();
+                throw new IOException("Body longer than announced");
+            }
+
+            try {
+                out.write(b, off, len);
+                remaining -= len;
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (finished) {
+                return;
+            }
+
+            if (remaining != 0) {
+                abort();
+                throw new IOException("Body shorter than announced");
+            }
+
+            finished = true;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                pendingRequests.remove(requestId);
+                PeerConnection.this.close();
+                reply.completeExceptionally(e);
+                throw e;
+            } finally {
+                writeLock.unlock();
+            }
+            lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Gives up on the request. The other side can't tell where the body ends
+         * anymore, so the whole connection is closed.
+         */
+        public void abort() {
+            if (finished) {
+                return;
+            }
+
+            finished = true;
+            pendingRequests.remove(requestId);
+            PeerConnection.this.close();
+            writeLock.unlock();
+            reply.completeExceptionally(new IOException("Request to " + address + " was aborted"));
+        }
+    }
+
+    private void readReplies() {
+        try {
+            String line;
+            while ((line = Helper.readLine(in)) != null) {
+                // <request_id> <response>
+                int separator = line.indexOf(' ');
+                long requestId = Long.parseLong(separator == -1 ? line : line.substring(0, separator));
+                String response = separator == -1 ? "" : line.substring(separator + 1);
+
+                CompletableFuture<String> reply = pendingRequests.remove(requestId);
+                if (reply != null) {
+                    reply.complete(response);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection, failing every request still waiting for a reply
+     */
+    public void close() {
+        closed = true;
+
+        connection.close();
+
+        IOException exception = new IOException("Connection to " + address + " was closed");
+        for (Long requestId : pendingRequests.keySet()) {
+            CompletableFuture<String> reply = pendingRequests.remove(requestId);
+            if (reply != null) {
+                reply.completeExceptionally(exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Totals of a peer, as seen through JMX (sdis:type=Peer,id=<id>)
+ */
+public interface PeerMetricsMBean {
+
+    long getRequests();
+
+    long getErrors();
+
+    /**
+     * Gets the requests being handled right now
+     */
+    int getRequestsInFlight();
+
+    /**
+     * Gets the requests waiting for a thread of the executor
+     */
+    int getQueueDepth();
+
+    int getMaxQueueDepth();
+
+    /**
+     * Gets the time the requests waited for a thread, in microseconds
+     */
+    long getQueueWaitP99Micros();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    /**
+     * Gets the connections other peers have open to this one
+     */
+    int getIncomingConnections();
+
+    /**
+     * Gets the connections this peer has open to other peers
+     */
+    int getOutgoingConnections();
+
+    /**
+     * Gets the bytes this peer sent in requests to other peers, bodies included
+     */
+    long getOutgoingBytes();
+
+    int getStoredFiles();
+
+    long getSpaceOccupied();
+
+    /**
+     * Gets a line for every command handled: count, errors and latency
+     * percentiles
+     */
+    String[] getSummary();
+
+    /**
+     * Gets a line for every successor and the predecessor: id, address and the
+     * failure detector's suspicion (phi) that it's down
+     */
+    String[] getNeighbours();
+
+}
@@ -1,55 +1,146 @@
-import java.math.BigInteger;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
 
 public class ProtocolHandler {
+    // Files of a batch stored at once, each waits for its replicas to be stored
+    private static final int BATCH_PARALLELISM = 8;
+
     private Peer peer;
 
     public ProtocolHandler(Peer peer) {
         this.peer = peer;
     }
 
-    public String forwardHandler(String[] request, byte[] body) throws UnknownHostException {
-        // FORWARD <file_key> <rep_degree> <body>
-        BigInteger fileKey = new BigInteger(request[1]);
+    public String forwardHandler(String[] request, InputStream body) throws UnknownHostException {
+        // FORWARD <file_key> <rep_degree> <body_length> [<hops> [<body_type>]] <body>
+        Key fileKey = Key.parse(request[1]);
         int replicationDegree = Integer.parseInt(request[2]);
+        long bodyLength = Long.parseLong(request[3]);
+        int hops = request.length > 4 ? Integer.parseInt(request[4]) : 0;
+        int type = request.length > 5 ? BodyType.parse(request[5]) : BodyType.PLAIN;
 
-        OutsidePeer outsidePeer = this.peer.getSuccessor();
+        try {
+            // OK <copies>
+            return "OK " + forward(fileKey, replicationDegree, hops, body, bodyLength, type) + "\n";
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "ERROR\n";
+        }
+    }
+
+    public String batchHandler(String[] request, InputStream body) throws IOException {
+        // BATCH <count> <rep_degree> <body_length> <body>
+        // body: <file_key> <length> <body_type>\n<bytes>, for every file
+        int count = Integer.parseInt(request[1]);
+        int replicationDegree = Integer.parseInt(request[2]);
+        Semaphore storing = new Semaphore(BATCH_PARALLELISM);
+        List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+
+        for (int i = 0; i < count; i++) {
+            String[] header = readLine(body).split(" ");
+            Key fileKey = Key.parse(header[0]);
+            int length = Integer.parseInt(header[1]);
+            int type = BodyType.parse(header[2]);
+
+            // Batched files are small, each is read whole so the next can be while it's stored
+            byte[] file = new byte[length];
+            new DataInputStream(body).readFully(file);
+
+            // Files whose owner changed since the batch was made are routed on, one by one. Each gets its
+            // own thread: this handler already holds one of the request executor's and waits for them
+            storing.acquireUninterruptibly();
+            CompletableFuture<String> result = new CompletableFuture<String>();
+            Threads.start(() -> {
+                try {
+                    result.complete(fileKey + " " + forward(fileKey, replicationDegree, 0,
+                            new ByteArrayInputStream(file), length, type));
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    result.complete(fileKey + " 0");
+                } finally {
+                    storing.release();
+                }
+            }, "Batch-" + fileKey);
+            results.add(result);
+        }
+
+        System.out.println("Batch of " + count + " files");
+        // OK <file_key> <copies> ..., for every file
+        StringBuilder reply = new StringBuilder("OK");
+        for (CompletableFuture<String> result : results) {
+            reply.append(" ").append(result.join());
+        }
+        return reply + "\n";
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Batch ended in a header");
+            }
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Stores a file this peer owns, or routes it on to its owner
+     *
+     * @return number of replicas, or fragments, stored
+     */
+    private int forward(Key fileKey, int replicationDegree, int hops, InputStream body, long bodyLength,
+            int type) throws IOException {
+        // The chain skips a successor the failure detector suspects
+        OutsidePeer outsidePeer = this.peer.getLiveSuccessor();
 
         if (Helper.middlePeer(fileKey, peer.getPredecessor().getId(), peer.getId())) {
+            System.out.println(this.peer.getRoutingStats().record("FORWARD", hops));
+        }
+
+        // A manifest is read whole by whoever deletes or replaces the file, it's never cut into fragments
+        if (Helper.middlePeer(fileKey, peer.getPredecessor().getId(), peer.getId()) && Config.isErasureCoded()
+                && !BodyType.isManifest(type)) {
+            this.peer.getStorage().initializeFileLocation(fileKey);
+            return this.peer.placeFragments(fileKey, body, bodyLength, type);
+        } else if (Helper.middlePeer(fileKey, peer.getPredecessor().getId(), peer.getId()) && Config.isFanOut()) {
+            this.peer.getStorage().initializeFileLocation(fileKey);
+            return this.peer.placeReplicas(fileKey, replicationDegree, body, bodyLength, type);
+        } else if (Helper.middlePeer(fileKey, peer.getPredecessor().getId(), peer.getId())) {
             this.peer.getStorage().initializeFileLocation(fileKey);
             String message = "BACKUP " + this.peer.getAddress().getAddress().getHostAddress() + " "
                     + this.peer.getAddress().getPort() + " "
-                    + this.peer.getSuccessor().getInetSocketAddress().getAddress().getHostAddress() + " "
-                    + this.peer.getSuccessor().getInetSocketAddress().getPort() + " " + fileKey + " "
-                    + replicationDegree + " " + body.length + "\n";
-            try {
-                this.peer.sendMessage(message, body, outsidePeer.getInetSocketAddress());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+                    + outsidePeer.getInetSocketAddress().getAddress().getHostAddress() + " "
+                    + outsidePeer.getInetSocketAddress().getPort() + " " + fileKey + " " + replicationDegree + " "
+                    + bodyLength + " " + type + "\n";
+            return Peer.awaitCopies(
+                    this.peer.sendMessage(message, body, bodyLength, outsidePeer.getInetSocketAddress()));
         } else {
-            // FORWARD <file_key> <rep_degree> <body_length>
-            String message = "FORWARD " + fileKey + " " + replicationDegree + " " + body.length + "\n";
-            try {
-                this.peer.sendMessage(message, body, outsidePeer.getInetSocketAddress());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            // FORWARD <file_key> <rep_degree> <body_length> <hops> <body_type>
+            String message = "FORWARD " + fileKey + " " + replicationDegree + " " + bodyLength + " " + (hops + 1)
+                    + " " + type + "\n";
+            return Peer.awaitCopies(this.peer.route(message, fileKey, body, bodyLength));
         }
-
-        return "OK\n";
     }
 
-    public String backupHandler(String[] request, byte[] body) {
+    public String backupHandler(String[] request, InputStream body) {
         // BACKUP <ip_address> <port> <Successor ip_address> <successor port> <file_key>
-        // <rep_degree> <body>
+        // <rep_degree> <body_length> [<body_type>] <body>
         String ipAddress = request[1];
         int port = Integer.parseInt(request[2]);
         String succesorIpAddress = request[3];
@@ -59,25 +150,31 @@ public class ProtocolHandler {
         InetSocketAddress inetSocketAddress = new InetSocketAddress(ipAddress, port);
         InetSocketAddress successorInetSocketAddress = new InetSocketAddress(succesorIpAddress, successorPort);
 
+        // Replicas stored here and by the peers after this one, every peer of the chain waits for the next
+        int stored = 0;
+        CompletableFuture<String> next = null;
         try {
             String fileKey = request[5];
             int replicationDegree = Integer.parseInt(request[6]);
+            long bodyLength = Long.parseLong(request[7]);
+            int type = request.length > 8 ? BodyType.parse(request[8]) : BodyType.PLAIN;
             if (replicationDegree < 1 && replicationDegree != -1) {
 
-                return "OK\n";
+                return "OK 0\n";
             }
 
             if (ipAddress.equals(myIpAddress) && myPort == port) {
                 System.out.println("There aren't enough peers to backup the file");
 
-                return "OK\n";
+                return "OK 0\n";
             }
 
-            OutsidePeer outsidePeer = this.peer.getSuccessor();
+            OutsidePeer outsidePeer = this.peer.getLiveSuccessor();
             String message = "BACKUP " + ipAddress + " " + port + " " + succesorIpAddress + " " + successorPort + " "
-                    + fileKey + " " + replicationDegree + " " + body.length + "\n";
+                    + fileKey + " " + replicationDegree + " " + bodyLength + " " + type + "\n";
 
-            if (this.peer.getStorage().hasFileStored(new BigInteger(fileKey))) {
+            if (this.peer.getStorage().hasFileStored(Key.parse(fileKey))) {
+                stored = 1;
 
                 if (replicationDegree > 1 || replicationDegree == -1) {
 
@@ -86,32 +183,23 @@ public class ProtocolHandler {
                     }
 
                     String message1 = "BACKUP " + ipAddress + " " + port + " " + succesorIpAddress + " " + successorPort
-                            + " " + fileKey + " " + replicationDegree + " " + body.length + "\n";
+                            + " " + fileKey + " " + replicationDegree + " " + bodyLength + " " + type + "\n";
 
-                    if (!outsidePeer.testSuccessor()) {
-                        Peer.sendMessage(message1, body, outsidePeer.getInetSocketAddress());
-                    } else {
-                        OutsidePeer otherSuccessor = this.peer.getNextSuccessor();
-                        Peer.sendMessage(message1, body, otherSuccessor.getInetSocketAddress());
-                    }
+                    next = this.peer.sendMessage(message1, body, bodyLength,
+                            this.peer.getLiveSuccessor().getInetSocketAddress());
 
                 }
-                return "OK\n";
+                return "OK " + (stored + copies(next)) + "\n";
             }
-            int space = this.peer.getStorage().spaceOccupied(this.peer.getBackupDirPath())
-                    + Integer.parseInt(request[7]);
-            int availableSpace = this.peer.getStorage().getAvailableSpace();
+            long space = this.peer.getStorage().spaceOccupied() + bodyLength;
+            long availableSpace = this.peer.getStorage().getAvailableSpace();
 
-            if (this.peer.getStorage().hasAskedForFile(new BigInteger(fileKey))
+            if (this.peer.getStorage().hasAskedForFile(Key.parse(fileKey)) || this.peer.getStorage().isReadOnly()
                     || (space > availableSpace && availableSpace != -1)) {
-                if (!outsidePeer.testSuccessor()) {
-                    Peer.sendMessage(message, body, outsidePeer.getInetSocketAddress());
-                } else {
-                    OutsidePeer otherSuccessor = this.peer.getNextSuccessor();
-                    Peer.sendMessage(message, body, otherSuccessor.getInetSocketAddress());
-                }
+                next = this.peer.sendMessage(message, body, bodyLength,
+                        this.peer.getLiveSuccessor().getInetSocketAddress());
 
-                return "OK\n";
+                return "OK " + copies(next) + "\n";
             }
 
             String fileDirName = this.peer.getBackupDirPath();
@@ -123,125 +211,310 @@ public class ProtocolHandler {
             }
 
             final Path fileDirPath = Paths.get(fileDirName + "/" + fileKey);
+            replicationDegree--;
+
+            // Cut-through: the next replica gets every chunk as soon as it arrives,
+            // instead of after the whole file is stored here
+            PeerConnection.RequestBody nextReplica = null;
+            if (Config.isCutThrough() && replicationDegree >= 1) {
+                message = "BACKUP " + ipAddress + " " + port + " " + succesorIpAddress + " " + successorPort + " "
+                        + fileKey + " " + replicationDegree + " " + bodyLength + " " + type + "\n";
+                try {
+                    nextReplica = this.peer.getConnectionPool().open(outsidePeer.getInetSocketAddress(), message,
+                            bodyLength);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
 
-            Files.newOutputStream(fileDirPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE).write(body);
-            System.out.println("File size: " + body.length + "bytes");
+            boolean forwarded;
+            try (OutputStream out = Files.newOutputStream(fileDirPath)) {
+                forwarded = Helper.copy(body, out, nextReplica, bodyLength);
+            } catch (IOException e) {
+                if (nextReplica != null) {
+                    nextReplica.abort();
+                }
+                throw e;
+            }
+            if (forwarded) {
+                next = nextReplica.getReply();
+            }
+            System.out.println("File size: " + bodyLength + "bytes");
 
             System.out.println("Stored!");
-            replicationDegree--;
 
             OutsidePeer peer = new OutsidePeer(inetSocketAddress);
-            this.peer.getStorage().addStoredFile(new BigInteger(fileKey));
-            Messenger.sendStored(new BigInteger(fileKey), myIpAddress, myPort, inetSocketAddress);
-            Messenger.sendStored(new BigInteger(fileKey), myIpAddress, myPort, successorInetSocketAddress);
-
-            if (replicationDegree >= 1) {
+            this.peer.getStorage().addStoredFile(Key.parse(fileKey), bodyLength, type);
+            Messenger.sendStored(this.peer.getConnectionPool(), Key.parse(fileKey), myIpAddress, myPort,
+                    inetSocketAddress);
+            Messenger.sendStored(this.peer.getConnectionPool(), Key.parse(fileKey), myIpAddress, myPort,
+                    successorInetSocketAddress);
+            stored = 1;
+
+            if (replicationDegree >= 1 && !forwarded) {
                 message = "BACKUP " + ipAddress + " " + port + " " + succesorIpAddress + " " + successorPort + " "
-                        + fileKey + " " + replicationDegree + " " + body.length + "\n";
-                this.peer.sendMessage(message, body, outsidePeer.getInetSocketAddress());
+                        + fileKey + " " + replicationDegree + " " + bodyLength + " " + type + "\n";
+                next = this.peer.sendFile(message, fileDirPath.toFile(), outsidePeer.getInetSocketAddress());
             }
         } catch (Exception e) {
+            // The replicas after this one are missing until the file is backed up again
+            e.printStackTrace();
+        }
+
+        // OK <copies>
+        return "OK " + (stored + copies(next)) + "\n";
+    }
+
+    /**
+     * Gets the number of replicas the next peer of a chain stored, with the
+     * ones after it
+     */
+    private static int copies(CompletableFuture<String> next) {
+        return next != null ? Peer.awaitCopies(next) : 0;
+    }
 
+    /**
+     * Checks if this peer would store a replica of the file
+     */
+    private boolean canStore(Key fileKey, long bodyLength) {
+        long space = this.peer.getStorage().spaceOccupied() + bodyLength;
+        long availableSpace = this.peer.getStorage().getAvailableSpace();
+
+        return !this.peer.getStorage().hasFileStored(fileKey) && !this.peer.getStorage().hasAskedForFile(fileKey)
+                && !this.peer.getStorage().isReadOnly() && (space <= availableSpace || availableSpace == -1);
+    }
+
+    public String canStoreHandler(String[] request) {
+        // CANSTORE <file_key> <body_length>
+        return canStore(Key.parse(request[1]), Long.parseLong(request[2])) ? "YES\n" : "NO\n";
+    }
+
+    public String replicaHandler(String[] request, InputStream body) {
+        // REPLICA <ip_address> <port> <Successor ip_address> <successor port> <file_key>
+        // <body_length> [<body_type>] <body>
+        InetSocketAddress successorInetSocketAddress = new InetSocketAddress(request[3], Integer.parseInt(request[4]));
+        Key fileKey = Key.parse(request[5]);
+        long bodyLength = Long.parseLong(request[6]);
+        int type = request.length > 7 ? BodyType.parse(request[7]) : BodyType.PLAIN;
+
+        // Another replica may have been stored here since the owner asked
+        if (!canStore(fileKey, bodyLength)) {
+            return "NO\n";
         }
 
-        return "OK\n";
+        try {
+            final Path dirPath = Paths.get(this.peer.getBackupDirPath());
+            if (Files.notExists(dirPath)) {
+                Files.createDirectories(dirPath);
+            }
+
+            try (OutputStream out = Files.newOutputStream(dirPath.resolve(fileKey.toString()))) {
+                Helper.copy(body, out, bodyLength);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "ERROR\n";
+        }
+        System.out.println("Stored!");
+
+        // The owner records the location from the reply, its successor keeps a copy of the table
+        this.peer.getStorage().addStoredFile(fileKey, bodyLength, type);
+        Messenger.sendStored(this.peer.getConnectionPool(), fileKey,
+                this.peer.getAddress().getAddress().getHostAddress(), this.peer.getPort(), successorInetSocketAddress);
+
+        return "STORED\n";
     }
 
     public String restoreHandler(String[] request) throws IOException {
-        // RESTORE <file_key> <ip_address> <port>
+        // RESTORE <file_key> <ip_address> <port> [<hops> [<origin ip_address> <origin port> <tag>]]
         String fileKey = request[1];
         String ipAddress = request[2];
         int port = Integer.parseInt(request[3]);
+        int hops = request.length > 4 ? Integer.parseInt(request[4]) : 0;
+        String[] origin = Peer.getOrigin(request, 5);
         System.out.println("RESTORE");
-        if (this.peer.getStorage().hasFileStored(new BigInteger(fileKey))) {
-            // deleteFile(fileKey)
-            String fileName = this.peer.getBackupDirPath() + "/" + fileKey;
-            File file = new File(fileName);
-            byte[] body = null;
+        if (this.peer.getStorage().hasFileStored(Key.parse(fileKey))
+                || this.peer.getStorage().hasFileLocation(Key.parse(fileKey))) {
+            System.out.println(this.peer.getRoutingStats().record("RESTORE", hops));
+        }
 
-            try {
-                body = Files.readAllBytes(file.toPath());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            String message = "GIVEFILE " + fileKey + " " + body.length + " " + "\n";
-            InetSocketAddress inetSocketAddress = new InetSocketAddress(ipAddress, port);
-            try {
-                this.peer.sendMessage(message, body, inetSocketAddress);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        // The owner asks all the holders, itself included, for parts of the file. It replies once they're
+        // asked: the parts go straight to the restoring peer, which gives up if they stop arriving.
+        CompletableFuture<Boolean> given = this.peer.getStorage().hasFileLocation(Key.parse(fileKey))
+                ? this.peer.getStorage().getFile(Key.parse(fileKey), ipAddress, port)
+                : null;
+        if (given != null) {
+            given.thenAccept(all -> {
+                if (!all) {
+                    System.out.println("Not every part of " + fileKey + " was given");
+                }
+            });
+            return this.peer.answer("OK\n", hops, origin);
+        } else if (this.peer.getStorage().hasFileStored(Key.parse(fileKey))) {
+            Threads.start(() -> {
+                try {
+                    this.peer.giveStoredFile(Key.parse(fileKey), new InetSocketAddress(ipAddress, port));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "GiveFile-" + fileKey);
+            return this.peer.answer("OK\n", hops, origin);
+        } else if (Helper.middlePeer(Key.parse(fileKey), peer.getPredecessor().getId(), peer.getId())) {
+            // The owner doesn't know the file, going on would only loop around the ring
+            System.out.println("File " + fileKey + " not found");
+            return this.peer.answer("NOTFOUND\n", hops, origin);
+        } else {
+            String message = "RESTORE " + fileKey + " " + ipAddress + " " + port + " " + (hops + 1);
 
-        } else if (this.peer.getStorage().hasFileLocation(new BigInteger(fileKey))) {
-            this.peer.getStorage().getFile(new BigInteger(fileKey), ipAddress, port);
-        } else
+            // OK, FAILED or NOTFOUND, from the owner to the origin
+            return this.peer.routeOn(message, Key.parse(fileKey), origin) + "\n";
+        }
+    }
 
-        {
-            String message = "RESTORE " + fileKey + " " + ipAddress + " " + port + "\n";
+    public String referenceHandler(String[] request) throws IOException {
+        // REF <chunk_key> [<hops> [<origin ip_address> <origin port> <tag>]]
+        Key chunkKey = Key.parse(request[1]);
+        int hops = request.length > 2 ? Integer.parseInt(request[2]) : 0;
+        String[] origin = Peer.getOrigin(request, 3);
 
-            try {
-                this.peer.sendMessage(message, this.peer.getSuccessor().getInetSocketAddress());
-            } catch (IOException e) {
-                e.printStackTrace();
+        if (!Helper.middlePeer(chunkKey, peer.getPredecessor().getId(), peer.getId())) {
+            String message = "REF " + chunkKey + " " + (hops + 1);
+            return this.peer.routeOn(message, chunkKey, origin) + "\n";
+        }
+
+        System.out.println(this.peer.getRoutingStats().record("REF", hops));
+        // HAVE or NEW
+        return this.peer.answer(this.peer.addChunkReference(chunkKey) + "\n", hops, origin);
+    }
+
+    public String unreferenceHandler(String[] request) throws IOException {
+        // UNREF <chunk_key> [<hops> [<origin ip_address> <origin port> <tag>]]
+        Key chunkKey = Key.parse(request[1]);
+        int hops = request.length > 2 ? Integer.parseInt(request[2]) : 0;
+        String[] origin = Peer.getOrigin(request, 3);
+
+        if (!Helper.middlePeer(chunkKey, peer.getPredecessor().getId(), peer.getId())) {
+            String message = "UNREF " + chunkKey + " " + (hops + 1);
+            return this.peer.routeOn(message, chunkKey, origin) + "\n";
+        }
+
+        // KEPT or DELETED
+        return this.peer.answer(this.peer.removeChunkReference(chunkKey) + "\n", hops, origin);
+    }
+
+    public String manifestHandler(String[] request) throws IOException {
+        // MANIFEST <file_key> [<hops> [<origin ip_address> <origin port> <tag>]], -1 hops asks a holder for
+        // its own copy only
+        Key fileKey = Key.parse(request[1]);
+        int hops = request.length > 2 ? Integer.parseInt(request[2]) : 0;
+        String[] origin = Peer.getOrigin(request, 3);
+        Storage storage = this.peer.getStorage();
+
+        if (storage.hasFileStored(fileKey) && BodyType.isManifest(storage.getStoredType(fileKey))) {
+            Manifest manifest = Manifest.read(Paths.get(this.peer.getBackupDirPath(), fileKey.toString()));
+            if (manifest != null) {
+                // OK <file_length> <chunk_count> <chunk_key> <chunk_length> ...
+                return this.peer.answer("OK " + manifest.toLine() + "\n", hops, origin);
+            }
+        }
+        if (hops < 0) {
+            return "NOTFOUND\n";
+        }
+
+        if (!Helper.middlePeer(fileKey, peer.getPredecessor().getId(), peer.getId())) {
+            String message = "MANIFEST " + fileKey + " " + (hops + 1);
+            return this.peer.routeOn(message, fileKey, origin) + "\n";
+        }
+
+        // The owner asks the holders in turn, the first copy that can be read is the answer
+        List<OutsidePeer> holders = storage.getFileLocations().get(fileKey);
+        if (holders != null) {
+            for (OutsidePeer holder : new ArrayList<OutsidePeer>(holders)) {
+                try {
+                    String reply = ConnectionPool.await(
+                            this.peer.getConnectionPool().send(holder.getInetSocketAddress(),
+                                    "MANIFEST " + fileKey + " -1\n"),
+                            ConnectionPool.REQUEST_TIMEOUT);
+                    if (reply.startsWith("OK")) {
+                        return this.peer.answer(reply + "\n", hops, origin);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
 
+        // The file isn't in the ring, or wasn't backed up in chunks
+        return this.peer.answer("NOTFOUND\n", hops, origin);
+    }
+
+    public String referencesHandler(String[] request) {
+        // REFERENCES <chunk_key> <references>
+        this.peer.getStorage().setChunkReferences(Key.parse(request[1]), Integer.parseInt(request[2]));
         return "OK\n";
     }
 
     public String deleteHandler(String[] request) throws UnknownHostException {
-        // DELETE <file_key> <ip_address> <port>
+        // DELETE <file_key> <ip_address> <port> [<hops> [<origin ip_address> <origin port> <tag>]]
         String fileKey;
         String ipAddress;
         int port;
-        if (request.length == 4) {
+        int hops;
+        String[] origin = Peer.getOrigin(request, 5);
+        if (request.length >= 4) {
             fileKey = request[1];
             ipAddress = request[2];
             port = Integer.parseInt(request[3]);
+            hops = request.length > 4 ? Integer.parseInt(request[4]) : 0;
 
         } else {
             fileKey = request[1];
-            this.peer.getStorage().removeFileLocation(new BigInteger(fileKey));
-            if (this.peer.getStorage().hasFileStored(new BigInteger(fileKey))) {
-                this.peer.getStorage().removeStoredFile(new BigInteger(fileKey));
+            this.peer.getStorage().removeFileLocation(Key.parse(fileKey));
+            if (this.peer.getStorage().hasFileStored(Key.parse(fileKey))) {
+                this.peer.getStorage().removeStoredFile(Key.parse(fileKey));
                 Helper.deleteFile(fileKey, this.peer.getStorageDirPath(), this.peer.getBackupDirPath());
             }
             return "OK\n";
         }
 
-        this.peer.getStorage().removeAskedFile(new BigInteger(fileKey));
+        this.peer.getStorage().removeAskedFile(Key.parse(fileKey));
 
-        if (this.peer.getStorage().hasFileStored(new BigInteger(fileKey))) {
-            this.peer.getStorage().removeStoredFile(new BigInteger(fileKey));
+        if (this.peer.getStorage().hasFileStored(Key.parse(fileKey))) {
+            this.peer.getStorage().removeStoredFile(Key.parse(fileKey));
             Helper.deleteFile(fileKey, this.peer.getStorageDirPath(), this.peer.getBackupDirPath());
         }
 
         if (!(ipAddress.equals(this.peer.getAddress().getHostName())) && (this.peer.getPort() != port)) {
             String message;
-            if (Helper.middlePeer(new BigInteger(fileKey), peer.getPredecessor().getId(), peer.getId())) {
-                message = "DELETE " + fileKey + "\n";
-                try {
-                    this.peer.getStorage().sendDelete(new BigInteger(fileKey));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                this.peer.getStorage().removeFileLocation(new BigInteger(fileKey));
-            } else {
-                this.peer.getStorage().removeFileLocation(new BigInteger(fileKey));
-                message = "DELETE " + fileKey + " " + ipAddress + " " + port + "\n";
-            }
             try {
-                this.peer.sendMessage(message, this.peer.getSuccessor().getInetSocketAddress());
+                if (Helper.middlePeer(Key.parse(fileKey), peer.getPredecessor().getId(), peer.getId())) {
+                    System.out.println(this.peer.getRoutingStats().record("DELETE", hops));
+                    message = "DELETE " + fileKey + "\n";
+                    try {
+                        this.peer.getStorage().sendDelete(Key.parse(fileKey));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    this.peer.getStorage().removeFileLocation(Key.parse(fileKey));
+                    this.peer.sendMessage(message, this.peer.getSuccessor().getInetSocketAddress());
+                } else {
+                    this.peer.getStorage().removeFileLocation(Key.parse(fileKey));
+                    message = "DELETE " + fileKey + " " + ipAddress + " " + port + " " + (hops + 1);
+                    return this.peer.routeOn(message, Key.parse(fileKey), origin) + "\n";
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
-        return "OK\n";
+        return this.peer.answer("OK\n", hops, origin);
     }
 
-    public String reclaimHandler(String[] request, byte[] body) {
-        BigInteger fileKey = new BigInteger(request[1]);
+    public String reclaimHandler(String[] request, InputStream body) {
+        // REMOVED <file_key> <ip_address> <port> <body_length> [<body_type>] <body>
+        Key fileKey = Key.parse(request[1]);
+        long bodyLength = Long.parseLong(request[4]);
+        int type = request.length > 5 ? BodyType.parse(request[5]) : BodyType.PLAIN;
         String ipAddress = request[2];
         int port = Integer.parseInt(request[3]);
         OutsidePeer outsidePeer = this.peer.getSuccessor();
@@ -252,28 +525,24 @@ public class ProtocolHandler {
 
             String message1 = "REMOVELOCATION " + request[1] + " " + request[2] + " " + request[3] + "\n";
 
+            OutsidePeer successor = this.peer.getLiveSuccessor();
             String message = "BACKUP " + this.peer.getAddress().getAddress().getHostAddress() + " "
                     + this.peer.getAddress().getPort() + " "
-                    + this.peer.getSuccessor().getInetSocketAddress().getAddress().getHostAddress() + " "
-                    + this.peer.getSuccessor().getInetSocketAddress().getPort() + " " + fileKey + " " + "-1 "
-                    + body.length + "\n";
+                    + successor.getInetSocketAddress().getAddress().getHostAddress() + " "
+                    + successor.getInetSocketAddress().getPort() + " " + fileKey + " " + "-1 " + bodyLength + " "
+                    + type + "\n";
             try {
-                if (!outsidePeer.testSuccessor()) {
-                    this.peer.sendMessage(message, body, outsidePeer.getInetSocketAddress());
-                    this.peer.sendMessage(message1, body, outsidePeer.getInetSocketAddress());
-                } else {
-                    OutsidePeer otherSuccessor = this.peer.getNextSuccessor();
-                    this.peer.sendMessage(message, body, otherSuccessor.getInetSocketAddress());
-                    this.peer.sendMessage(message1, body, otherSuccessor.getInetSocketAddress());
-                }
+                this.peer.sendMessage(message, body, bodyLength, successor.getInetSocketAddress());
+                Messenger.sendMessage(this.peer.getConnectionPool(), message1, successor.getInetSocketAddress());
             } catch (IOException e) {
             }
             return "OK\n";
         }
 
-        String message = "REMOVED " + request[1] + " " + request[2] + " " + request[3] + " " + request[4] + "\n";
+        String message = "REMOVED " + request[1] + " " + request[2] + " " + request[3] + " " + request[4] + " " + type
+                + "\n";
         try {
-            this.peer.sendMessage(message, body, outsidePeer.getInetSocketAddress());
+            this.peer.sendMessage(message, body, bodyLength, outsidePeer.getInetSocketAddress());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -281,11 +550,15 @@ public class ProtocolHandler {
         return "OK\n";
     }
 
-    public String getFileHandler(String[] request, byte[] body) throws UnknownHostException {
-        // GIVEFILE <file_key> <body>
+    public String getFileHandler(String[] request, InputStream body) throws UnknownHostException {
+        // GIVEFILE <file_key> <body_length> <body_type> [<fragment_index>] <body>
         String fileKey = request[1];
+        long bodyLength = Long.parseLong(request[2]);
+        int type = BodyType.parse(request[3]);
+        boolean isFragment = BodyType.isFragment(type);
         String folderDirectory = this.peer.getRestoreDirPath();
-        String fileDirectory = this.peer.getRestoreDirPath() + "/" + fileKey;
+        String fileDirectory = this.peer.getRestoreDirPath() + "/" + fileKey
+                + (isFragment ? ".fragment" + request[4] : "");
 
         System.out.println("Saving file...");
         try {
@@ -294,8 +567,36 @@ public class ProtocolHandler {
             if (Files.notExists(filePathDir))
                 Files.createDirectories(filePathDir);
 
-            Files.newOutputStream(filePath, StandardOpenOption.WRITE, StandardOpenOption.CREATE).write(body);
+            if (!isFragment) {
+                this.peer.getOperations().expect(Key.parse(fileKey), bodyLength);
+            }
+            try (OutputStream out = this.peer.getOperations().track(Key.parse(fileKey),
+                    Files.newOutputStream(filePath))) {
+                Helper.copy(body, out, bodyLength);
+            }
 
+            if (isFragment) {
+                this.peer.getChunkedRestores().fragmentReceived(Key.parse(fileKey), filePath, type);
+            } else {
+                this.peer.getChunkedRestores().received(Key.parse(fileKey), filePath, type);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return "OK\n";
+    }
+
+    public String getRangeHandler(String[] request, InputStream body) {
+        // GIVERANGE <file_key> <file_length> <offset> <body_length> <body_type> <body>
+        Key fileKey = Key.parse(request[1]);
+        long fileLength = Long.parseLong(request[2]);
+        long offset = Long.parseLong(request[3]);
+        long bodyLength = Long.parseLong(request[4]);
+        int type = BodyType.parse(request[5]);
+
+        try {
+            this.peer.getChunkedRestores().rangeReceived(fileKey, fileLength, offset, bodyLength, type, body);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -305,7 +606,7 @@ public class ProtocolHandler {
 
     public String storedHandler(String[] request) {
         // STORED <file_key> <ip_address> <port>
-        BigInteger fileKey = new BigInteger(request[1]);
+        Key fileKey = Key.parse(request[1]);
         OutsidePeer outsidePeer = new OutsidePeer(new InetSocketAddress(request[2], Integer.parseInt(request[3])));
         peer.getStorage().addFileLocation(fileKey, outsidePeer);
         return "OK\n";
@@ -0,0 +1,191 @@
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8): k data shards and m parity shards,
+ * any k of which give back the data shards.
+ *
+ * The code's matrix is the k x k identity on top of an m x k Cauchy matrix,
+ * 1 / (x_i + y_j) with x_i = k + i and y_j = j, so any k of its rows are
+ * independent.
+ */
+public class ReedSolomon {
+    private static final int POLYNOMIAL = 0x11d;
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    // MUL[a][b] = a * b, a row of it multiplies a whole shard by a
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("Bad Reed-Solomon code " + dataShards + "+" + parityShards);
+        }
+
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.matrix = new byte[dataShards + parityShards][dataShards];
+        for (int i = 0; i < dataShards; i++) {
+            matrix[i][i] = 1;
+        }
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                matrix[dataShards + i][j] = (byte) inverse((dataShards + i) ^ j);
+            }
+        }
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * Computes the parity shards, shards[k..k+m-1], from the data shards,
+     * shards[0..k-1], using their first length bytes
+     */
+    public void encode(byte[][] shards, int length) {
+        byte[][] parityRows = new byte[parityShards][];
+        byte[][] parity = new byte[parityShards][];
+        for (int i = 0; i < parityShards; i++) {
+            parityRows[i] = matrix[dataShards + i];
+            parity[i] = shards[dataShards + i];
+        }
+        multiply(parityRows, shards, parity, length);
+    }
+
+    /**
+     * Gets the matrix that turns the k shards with the given indexes, in that
+     * order, back into the data shards
+     */
+    public byte[][] decodingMatrix(int[] indexes) {
+        if (indexes.length != dataShards) {
+            throw new IllegalArgumentException(dataShards + " shards are needed, not " + indexes.length);
+        }
+
+        byte[][] rows = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            rows[i] = matrix[indexes[i]].clone();
+        }
+        return invert(rows);
+    }
+
+    /**
+     * outputs[i] = sum of rows[i][j] * inputs[j], over the first length bytes
+     */
+    public static void multiply(byte[][] rows, byte[][] inputs, byte[][] outputs, int length) {
+        for (int i = 0; i < rows.length; i++) {
+            byte[] output = outputs[i];
+            Arrays.fill(output, 0, length, (byte) 0);
+
+            for (int j = 0; j < rows[i].length; j++) {
+                int coefficient = rows[i][j] & 0xff;
+                if (coefficient == 0) {
+                    continue;
+                }
+                byte[] input = inputs[j];
+                if (coefficient == 1) {
+                    for (int b = 0; b < length; b++) {
+                        output[b] ^= input[b];
+                    }
+                } else {
+                    byte[] product = MUL[coefficient];
+                    for (int b = 0; b < length; b++) {
+                        output[b] ^= product[input[b] & 0xff];
+                    }
+                }
+            }
+        }
+    }
+
+    private static int multiply(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    private static int inverse(int a) {
+        if (a == 0) {
+            throw new ArithmeticException("0 has no inverse");
+        }
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * Gauss-Jordan elimination, the rows are overwritten
+     */
+    private static byte[][] invert(byte[][] rows) {
+        int size = rows.length;
+        byte[][] inverse = new byte[size][size];
+        for (int i = 0; i < size; i++) {
+            inverse[i][i] = 1;
+        }
+
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (pivot < size && rows[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                throw new IllegalArgumentException("Shards aren't independent");
+            }
+            swap(rows, column, pivot);
+            swap(inverse, column, pivot);
+
+            int scale = inverse(rows[column][column] & 0xff);
+            scaleRow(rows[column], scale);
+            scaleRow(inverse[column], scale);
+
+            for (int row = 0; row < size; row++) {
+                int factor = rows[row][column] & 0xff;
+                if (row != column && factor != 0) {
+                    subtractRow(rows[row], rows[column], factor);
+                    subtractRow(inverse[row], inverse[column], factor);
+                }
+            }
+        }
+
+        return inverse;
+    }
+
+    private static void swap(byte[][] rows, int a, int b) {
+        byte[] row = rows[a];
+        rows[a] = rows[b];
+        rows[b] = row;
+    }
+
+    private static void scaleRow(byte[] row, int scale) {
+        for (int i = 0; i < row.length; i++) {
+            row[i] = (byte) multiply(row[i] & 0xff, scale);
+        }
+    }
+
+    private static void subtractRow(byte[] row, byte[] other, int factor) {
+        for (int i = 0; i < row.length; i++) {
+            row[i] ^= multiply(other[i] & 0xff, factor);
+        }
+    }
+}
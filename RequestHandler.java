@@ -1,51 +1,70 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.net.UnknownHostException;
-import java.nio.file.Files;
-import javax.net.ssl.SSLSocket;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 class RequestHandler implements Runnable {
     private Peer peer;
     private ProtocolHandler protocolHandler;
-    private SSLSocket sslSocket;
+    private Transport.Connection connection;
+    private static final InputStream NO_BODY = new ByteArrayInputStream(new byte[0]);
+    private DataOutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
 
-    public RequestHandler(Peer peer, SSLSocket sslSocket) {
+    public RequestHandler(Peer peer, Transport.Connection connection) {
         this.peer = peer;
-        this.sslSocket = sslSocket;
+        this.connection = connection;
         protocolHandler = new ProtocolHandler(peer);
     }
 
+    /**
+     * Handler for requests read by someone else (see NioConnection)
+     */
+    public RequestHandler(Peer peer) {
+        this(peer, null);
+    }
+
     private void findSuccessor(String[] request) throws UnknownHostException, IOException {
         OutsidePeer newPeer = new OutsidePeer(new InetSocketAddress(request[2], Integer.parseInt(request[3])));
-        // FINDSUCCESSOR <peer_key> <ip_address> <port>
+        // FINDSUCCESSOR <peer_key> <ip_address> <port> [<hops>]
+        int hops = request.length > 4 ? Integer.parseInt(request[4]) : 0;
         // Second peer to join
         if (this.peer.getSuccessor() == null) {
             this.peer.setSuccessor(newPeer);
             this.peer.setPredecessor(newPeer);
             this.peer.getFingerTable().add(this.peer.getSuccessor(), 0);
 
-            Messenger.sendUpdatePosition(this.peer.getAddress().getAddress().getHostAddress(), this.peer.getPort(),
+            Messenger.sendUpdatePosition(this.peer.getConnectionPool(),
+                    this.peer.getAddress().getAddress().getHostAddress(), this.peer.getPort(),
                     this.peer.getAddress().getAddress().getHostAddress(), this.peer.getPort(),
                     newPeer.getInetSocketAddress());
         }
         // New peer is between him and his successor
-        else if (Helper.middlePeer(new BigInteger(request[1]), this.peer.getId(), this.peer.getSuccessor().getId())) {
-            Messenger.sendUpdatePosition(this.peer.getAddress().getAddress().getHostAddress(), this.peer.getPort(),
+        else if (Helper.middlePeer(Key.parse(request[1]), this.peer.getId(), this.peer.getSuccessor().getId())) {
+            System.out.println(this.peer.getRoutingStats().record("FINDSUCCESSOR", hops));
+            Messenger.sendUpdatePosition(this.peer.getConnectionPool(),
+                    this.peer.getAddress().getAddress().getHostAddress(), this.peer.getPort(),
                     this.peer.getSuccessor().getInetSocketAddress().getAddress().getHostAddress(),
                     this.peer.getSuccessor().getInetSocketAddress().getPort(), newPeer.getInetSocketAddress());
             this.peer.setSuccessor(new OutsidePeer(new InetSocketAddress(request[2], Integer.parseInt(request[3]))));
         }
         // The position of the new peer isn't known
         else {
-            Messenger.sendFindSuccessor(new BigInteger(request[1]), request[2], Integer.parseInt(request[3]),
-                    this.peer.getSuccessor().getInetSocketAddress());
+            String message = "FINDSUCCESSOR " + request[1] + " " + request[2] + " " + request[3] + " " + (hops + 1)
+                    + "\n";
+            this.peer.route(message, Key.parse(request[1]));
         }
     }
 
@@ -57,9 +76,15 @@ class RequestHandler implements Runnable {
     }
 
     public String sendPredecessor(String[] request) throws UnknownHostException, IOException {
-        String message = "PREDECESSOR "
-                + this.peer.getPredecessor().getInetSocketAddress().getAddress().getHostAddress() + " "
-                + this.peer.getPredecessor().getInetSocketAddress().getPort() + "\n";
+        // FINDPREDECESSOR <ip_address> <port>
+        OutsidePeer predecessor = this.peer.getPredecessor();
+        if (!this.peer.getFailureDetector().isAvailable(predecessor)) {
+            // The requester doesn't take a dead peer as its successor, it keeps its own
+            return "PREDECESSOR " + request[1] + " " + request[2] + "\n";
+        }
+
+        String message = "PREDECESSOR " + predecessor.getInetSocketAddress().getAddress().getHostAddress() + " "
+                + predecessor.getInetSocketAddress().getPort() + "\n";
 
         return message;
     }
@@ -72,21 +97,22 @@ class RequestHandler implements Runnable {
         int successorPort = Integer.parseInt(request[4]);
         this.peer.setPredecessor(new OutsidePeer(new InetSocketAddress(predecessorIp, predecessorPort)));
         this.peer.setSuccessor(new OutsidePeer(new InetSocketAddress(successorIp, successorPort)));
-        this.peer.getSuccessor().notifySuccessor(this.peer.getAddress(),
+        this.peer.getSuccessor().notifySuccessor(this.peer.getConnectionPool(), this.peer.getAddress(),
                 this.peer.getSuccessor().getInetSocketAddress());
     }
 
     private void getFinger(String[] request) {
         // "MARCO " + index + " " + ipAddress.getHostName() + " " + ipAddress.getPort()
         // + " " + key;
-        if (Helper.middlePeer(new BigInteger(request[4]), this.peer.getPredecessor().getId(), this.peer.getId())
-                || this.peer.getId().compareTo(new BigInteger(request[4])) == 0) {
-            Messenger.sendUpdateFinger(this.peer.getAddress(),
+        if (Helper.middlePeer(Key.parse(request[4]), this.peer.getPredecessor().getId(), this.peer.getId())
+                || this.peer.getId().compareTo(Key.parse(request[4])) == 0) {
+            Messenger.sendUpdateFinger(this.peer.getConnectionPool(), this.peer.getAddress(),
                     new InetSocketAddress(request[2], Integer.parseInt(request[3])), Integer.parseInt(request[1]));
         } else {
-            Messenger.sendFindFinger(new InetSocketAddress(request[2], Integer.parseInt(request[3])),
+            Messenger.sendFindFinger(this.peer.getConnectionPool(),
+                    new InetSocketAddress(request[2], Integer.parseInt(request[3])),
                     this.peer.getSuccessor().getInetSocketAddress(), Integer.parseInt(request[1]),
-                    new BigInteger(request[4]));
+                    Key.parse(request[4]));
         }
     }
 
@@ -95,73 +121,252 @@ class RequestHandler implements Runnable {
                 Integer.parseInt(request[3]));
     }
 
-    private void nextSuccessor(String[] request, DataOutputStream out) throws IOException {
+    private String findOwner(String[] request) throws IOException {
+        // FINDOWNER <key> [<hops> [<origin ip_address> <origin port> <tag>]]
+        Key key = Key.parse(request[1]);
+        int hops = request.length > 2 ? Integer.parseInt(request[2]) : 0;
+        String[] origin = Peer.getOrigin(request, 3);
+
+        if (!Helper.middlePeer(key, this.peer.getPredecessor().getId(), this.peer.getId())) {
+            String message = "FINDOWNER " + key + " " + (hops + 1);
+            return this.peer.routeOn(message, key, origin) + "\n";
+        }
+
+        System.out.println(this.peer.getRoutingStats().record("FINDOWNER", hops));
+        // OWNER <ip_address> <port> <predecessor ip_address> <predecessor port>
+        return this.peer.answer("OWNER " + this.peer.getAddress().getAddress().getHostAddress() + " "
+                + this.peer.getPort() + " "
+                + this.peer.getPredecessor().getInetSocketAddress().getAddress().getHostAddress() + " "
+                + this.peer.getPredecessor().getInetSocketAddress().getPort() + "\n", hops, origin);
+    }
+
+    private void routedReply(String[] request) {
+        // REPLY <tag> <response>
+        this.peer.routedReply(Long.parseLong(request[1]),
+                String.join(" ", Arrays.copyOfRange(request, 2, request.length)));
+    }
+
+    private String findFingers(String[] request) {
+        // FINDFINGERS <hops> <index> <key> [<index> <key>]...
+        int hops = Integer.parseInt(request[1]);
+        Map<Integer, Key> keys = new TreeMap<Integer, Key>();
+        for (int i = 2; i + 1 < request.length; i += 2) {
+            keys.put(Integer.parseInt(request[i]), Key.parse(request[i + 1]));
+        }
+
+        // OK [<index> <ip_address> <port>]...
+        StringBuilder message = new StringBuilder("OK");
+        for (Map.Entry<Integer, OutsidePeer> owner : this.peer.findOwners(keys, hops).entrySet()) {
+            InetSocketAddress address = owner.getValue().getInetSocketAddress();
+            message.append(' ').append(owner.getKey()).append(' ').append(address.getAddress().getHostAddress())
+                    .append(' ').append(address.getPort());
+        }
+        return message.append('\n').toString();
+    }
+
+    private String nextSuccessor(String[] request) throws IOException {
         String message = "OK " + this.peer.getSuccessor().getInetSocketAddress().getAddress().getHostAddress() + " "
                 + this.peer.getSuccessor().getInetSocketAddress().getPort() + "\n";
-        out.writeBytes(message);
+        return message;
+    }
+
+    private String successors(String[] request) {
+        // OK [<ip_address> <port>]...
+        StringBuilder message = new StringBuilder("OK");
+        for (OutsidePeer successor : this.peer.getSuccessorList()) {
+            message.append(' ').append(successor.getInetSocketAddress().getAddress().getHostAddress()).append(' ')
+                    .append(successor.getInetSocketAddress().getPort());
+        }
+        return message.append('\n').toString();
     }
 
     private void updateTable(String[] request) {
-        // UPDATETABLE key ipaddress port
-        BigInteger fileKey = new BigInteger(request[1]);
+        // UPDATETABLE key ipaddress port [<chunk_references>]
+        Key fileKey = Key.parse(request[1]);
         OutsidePeer newEntry = new OutsidePeer(new InetSocketAddress(request[2], Integer.parseInt(request[3])));
         this.peer.getStorage().addFileLocation(fileKey, newEntry);
+        if (request.length > 4) {
+            this.peer.getStorage().setChunkReferences(fileKey, Integer.parseInt(request[4]));
+        }
         if (!Helper.middlePeer(fileKey, this.peer.getPredecessor().getId(), this.peer.getId())) {
 
             String message = "REMOVETABLE " + fileKey + "\n";
-            Messenger.sendMessage(message, this.peer.getSuccessor().getInetSocketAddress());
+            Messenger.sendMessage(this.peer.getConnectionPool(), message,
+                    this.peer.getSuccessor().getInetSocketAddress());
+        }
+    }
+
+    /**
+     * Applies the entries of the predecessor's location table that changed
+     * since its last sync, and has the successor drop its copy of those that
+     * aren't in this peer's range
+     */
+    private String syncTable(String[] request, InputStream body) throws IOException {
+        // SYNCTABLE <ip_address> <port> <from_version> <to_version> <body>
+        InetSocketAddress sender = new InetSocketAddress(request[1], Integer.parseInt(request[2]));
+        if (!this.peer.isTableSyncExpected(sender, Long.parseLong(request[3]))) {
+            return "RESYNC\n";
+        }
+
+        Storage storage = this.peer.getStorage();
+        StringBuilder removed = new StringBuilder();
+        // The body ends where the entries do, the buffer can't read past it
+        InputStream entries = new BufferedInputStream(body);
+        String line;
+        while ((line = Helper.readLine(entries)) != null) {
+            // <file_key> <chunk_references> [<ip_address> <port>]... or <file_key> -
+            String[] entry = line.split(" ");
+            Key fileKey = Key.parse(entry[0]);
+
+            if (entry[1].equals("-")) {
+                storage.removeFileLocation(fileKey);
+                storage.setChunkReferences(fileKey, 0);
+            } else {
+                List<OutsidePeer> holders = new ArrayList<OutsidePeer>();
+                for (int i = 2; i + 1 < entry.length; i += 2) {
+                    holders.add(new OutsidePeer(new InetSocketAddress(entry[i], Integer.parseInt(entry[i + 1]))));
+                }
+                storage.setFileLocations(fileKey, holders);
+                int references = Integer.parseInt(entry[1]);
+                if (references != storage.getChunkReferences(fileKey)) {
+                    storage.setChunkReferences(fileKey, references);
+                }
+            }
+
+            if (!Helper.middlePeer(fileKey, this.peer.getPredecessor().getId(), this.peer.getId())) {
+                removed.append(' ').append(fileKey);
+            }
+        }
+        this.peer.tableSynced(sender, Long.parseLong(request[4]));
+
+        if (removed.length() > 0) {
+            // REMOVETABLE <file_key>...
+            Messenger.sendMessage(this.peer.getConnectionPool(), "REMOVETABLE" + removed + "\n",
+                    this.peer.getSuccessor().getInetSocketAddress());
         }
+        return "OK\n";
     }
 
     private void removeTable(String[] request) {
-        // REMOVETABLE key
-        this.peer.getStorage().removeFileLocation(new BigInteger(request[1]));
+        // REMOVETABLE <file_key>...
+        for (int i = 1; i < request.length; i++) {
+            this.peer.getStorage().removeFileLocation(Key.parse(request[i]));
+            this.peer.getStorage().setChunkReferences(Key.parse(request[i]), 0);
+        }
     }
 
     private String findFile(String[] request) {
+        // FINDFILE <file_key> <ip_address> <port> [<part> <parts>]
         String fileKey = request[1];
         String ipAddress = request[2];
         int port = Integer.parseInt(request[3]);
 
-        if (!this.peer.getStorage().hasFileStored(new BigInteger(fileKey))) {
+        if (!this.peer.getStorage().hasFileStored(Key.parse(fileKey))) {
             return "NO\n";
         }
 
-        String fileName = this.peer.getBackupDirPath() + "/" + fileKey;
-        File file = new File(fileName);
-        byte[] body = null;
-
         try {
-            body = Files.readAllBytes(file.toPath());
+            if (request.length > 5) {
+                return this.peer.giveStoredFile(Key.parse(fileKey), new InetSocketAddress(ipAddress, port),
+                        Integer.parseInt(request[4]), Integer.parseInt(request[5]));
+            }
+            return this.peer.giveStoredFile(Key.parse(fileKey), new InetSocketAddress(ipAddress, port));
         } catch (IOException e) {
             e.printStackTrace();
+            return "NO\n";
         }
+    }
 
-        String message = "GIVEFILE " + fileKey + " " + body.length + "\n";
-        InetSocketAddress inetSocketAddress = new InetSocketAddress(ipAddress, port);
-        try {
-            this.peer.sendMessage(message, body, inetSocketAddress);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return "SENT " + fileKey + "\n";
+    private void cancelGive(String[] request) {
+        // CANCEL <file_key> <ip_address> <port> <part>
+        this.peer.cancelGive(Key.parse(request[1]), new InetSocketAddress(request[2], Integer.parseInt(request[3])),
+                Integer.parseInt(request[4]));
     }
 
     @Override
     public void run() {
+        Metrics metrics = this.peer.getMetrics();
+        metrics.connectionOpened();
         try {
-            DataOutputStream out = new DataOutputStream(sslSocket.getOutputStream());
-            BufferedReader in = null;
+            InputStream in = new BufferedInputStream(connection.getInputStream(), Helper.CHUNK_SIZE);
+            out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
 
-            String responseMess = null;
-            in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
+            String header;
+            while ((header = Helper.readLine(in)) != null) {
+                // <request_id> <body_length> <message>
+                String[] frame = header.split(" ", 3);
+                long requestId = Long.parseLong(frame[0]);
+                long bodyLength = Long.parseLong(frame[1]);
+                String[] request = frame[2].split(" ");
 
-            responseMess = in.readLine();
+                if (bodyLength == 0) {
+                    long queuedAt = metrics.queued();
+                    this.peer.getRequestExecutor().execute(() -> {
+                        metrics.dequeued(queuedAt);
+                        reply(requestId, handle(request, NO_BODY, 0));
+                    });
+                } else {
+                    // The body must be read before the next request, streamed from the socket. The
+                    // handler may wait for replies to requests sent to this peer after it, e.g. the
+                    // replicas of a FORWARD, so only the end of the body is waited for here
+                    BodyInputStream body = new BodyInputStream(in, bodyLength);
+                    long queuedAt = metrics.queued();
+                    this.peer.getRequestExecutor().execute(() -> {
+                        metrics.dequeued(queuedAt);
+                        String response = handle(request, body, bodyLength);
+                        try {
+                            body.drain();
+                        } catch (IOException e) {
+                            // Where the next request starts is lost with the rest of the body
+                            connection.close();
+                        } finally {
+                            body.finish();
+                        }
+                        reply(requestId, response);
+                    });
+                    body.awaitEnd();
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            // The peer was stopped, its neighbours still send heartbeats
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            metrics.connectionClosed();
+            connection.close();
+        }
+    }
 
-            String[] request = responseMess.split(" ");
+    private void reply(long requestId, String response) {
+        writeLock.lock();
+        try {
+            // <request_id> <response>
+            out.writeBytes(requestId + " " + response.trim() + "\n");
+            out.flush();
+        } catch (IOException e) {
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-            String response = "\n";
-            byte[] file;
+    /**
+     * Handles a request, timing it and counting its bytes in the peer's metrics
+     */
+    String handle(String[] request, InputStream body, long bodyLength) {
+        Metrics metrics = this.peer.getMetrics();
+        long startedAt = metrics.handling();
+        String response = "ERROR\n";
+        try {
+            response = dispatch(request, body);
+            return response;
+        } finally {
+            metrics.handled(request[0], startedAt, bodyLength, response);
+        }
+    }
+
+    private String dispatch(String[] request, InputStream body) {
+        try {
+            String response = "OK\n";
 
             switch (request[0]) {
                 case "FINDSUCCESSOR":
@@ -175,13 +380,12 @@ class RequestHandler implements Runnable {
                     break;
                 case "FINDPREDECESSOR":
                     response = sendPredecessor(request);
-                    out.writeBytes(response);
-                    out.flush();
                     break;
                 case "FINDFILE":
                     response = findFile(request);
-                    out.writeBytes(response);
-                    out.flush();
+                    break;
+                case "CANCEL":
+                    cancelGive(request);
                     break;
                 case "MARCO":
                     getFinger(request);
@@ -189,103 +393,93 @@ class RequestHandler implements Runnable {
                 case "UPDATEFINGER":
                     updateFinger(request);
                     break;
+                case "FINDOWNER":
+                    response = findOwner(request);
+                    break;
+                case "REPLY":
+                    routedReply(request);
+                    break;
+                case "FINDFINGERS":
+                    response = findFingers(request);
+                    break;
                 case "NEXTSUCCESSOR":
-                    nextSuccessor(request, out);
+                    response = nextSuccessor(request);
+                    break;
+                case "SUCCESSORS":
+                    response = successors(request);
                     break;
                 case "FORWARD":
-                    file = new byte[Integer.parseInt(request[3])];
-                    InputStream inputStream = sslSocket.getInputStream();
-                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                    int bytesRead;
-                    while ((bytesRead = inputStream.read(file)) != -1) {
-                        buffer.write(file, 0, bytesRead);
-                    }
-                    buffer.flush();
-                    file = buffer.toByteArray();
-                    response = protocolHandler.forwardHandler(request, file);
-                    buffer.close();
-                    inputStream.close();
+                    response = protocolHandler.forwardHandler(request, body);
                     break;
                 case "BACKUP":
-                    file = new byte[Integer.parseInt(request[7])];
-                    InputStream inputStreamBackup = sslSocket.getInputStream();
-                    ByteArrayOutputStream bufferBackup = new ByteArrayOutputStream();
-                    int bytesReadBackup;
-                    while ((bytesReadBackup = inputStreamBackup.read(file)) != -1) {
-                        bufferBackup.write(file, 0, bytesReadBackup);
-                    }
-                    bufferBackup.flush();
-                    file = bufferBackup.toByteArray();
-                    response = protocolHandler.backupHandler(request, file);
-                    bufferBackup.close();
-                    inputStreamBackup.close();
+                    response = protocolHandler.backupHandler(request, body);
+                    break;
+                case "BATCH":
+                    response = protocolHandler.batchHandler(request, body);
+                    break;
+                case "CANSTORE":
+                    response = protocolHandler.canStoreHandler(request);
+                    break;
+                case "REPLICA":
+                    response = protocolHandler.replicaHandler(request, body);
                     break;
                 case "RESTORE":
                     response = protocolHandler.restoreHandler(request);
                     break;
+                case "REF":
+                    response = protocolHandler.referenceHandler(request);
+                    break;
+                case "UNREF":
+                    response = protocolHandler.unreferenceHandler(request);
+                    break;
+                case "MANIFEST":
+                    response = protocolHandler.manifestHandler(request);
+                    break;
+                case "REFERENCES":
+                    response = protocolHandler.referencesHandler(request);
+                    break;
                 case "REMOVELOCATION":
-                    response = "OK\n";
-                    BigInteger fileKey = new BigInteger(request[1]);
+                    Key fileKey = Key.parse(request[1]);
                     String ipAddress = request[2];
                     int port = Integer.parseInt(request[3]);
-                    OutsidePeer outsidePeer = this.peer.getSuccessor();
                     this.peer.getStorage().removePeerLocation(fileKey, ipAddress, port);
                     break;
                 case "DELETE":
                     response = protocolHandler.deleteHandler(request);
-                    out.writeBytes(response);
-                    out.flush();
                     break;
                 case "REMOVED":
-                    file = new byte[Integer.parseInt(request[4])];
-                    InputStream inputStreamRemoved = sslSocket.getInputStream();
-                    ByteArrayOutputStream bufferRemoved = new ByteArrayOutputStream();
-                    int bytesReadRemoved = 0;
-                    while ((bytesReadRemoved = inputStreamRemoved.read(file)) != -1) {
-                        bufferRemoved.write(file, 0, bytesReadRemoved);
-                    }
-                    bufferRemoved.flush();
-                    file = bufferRemoved.toByteArray();
-                    response = protocolHandler.reclaimHandler(request, file);
-                    bufferRemoved.close();
-                    inputStreamRemoved.close();
+                    response = protocolHandler.reclaimHandler(request, body);
                     break;
                 case "UPDATETABLE":
                     updateTable(request);
-                    out.writeBytes("OK\n");
-                    out.flush();
+                    break;
+                case "SYNCTABLE":
+                    response = syncTable(request, body);
                     break;
                 case "REMOVETABLE":
                     removeTable(request);
-                    out.writeBytes("OK\n");
-                    out.flush();
                     break;
                 case "GIVEFILE":
-                    file = new byte[Integer.parseInt(request[2])];
-                    InputStream inputStreamFile = sslSocket.getInputStream();
-                    ByteArrayOutputStream bufferFile = new ByteArrayOutputStream();
-                    int bytesReadFile;
-                    while ((bytesReadFile = inputStreamFile.read(file)) != -1) {
-                        bufferFile.write(file, 0, bytesReadFile);
-                    }
-                    bufferFile.flush();
-                    file = bufferFile.toByteArray();
-                    response = protocolHandler.getFileHandler(request, file);
-                    bufferFile.close();
-                    inputStreamFile.close();
+                    response = protocolHandler.getFileHandler(request, body);
+                    break;
+                case "GIVERANGE":
+                    response = protocolHandler.getRangeHandler(request, body);
                     break;
                 case "STORED":
                     response = protocolHandler.storedHandler(request);
                     break;
+                case "TEST":
+                    break;
                 default:
                     System.out.println(request[0]);
+                    response = "ERROR\n";
             }
-            in.close();
-            // out.close();
-            // sslSocket.close();
-        } catch (IOException e) {
+
+            return response;
+        } catch (IOException | RuntimeException e) {
             e.printStackTrace();
+            return "ERROR\n";
         }
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,7 +1,4 @@
 import java.io.IOException;
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.SSLSocket;
 
 class RequestListener implements Runnable {
     private final Peer peer;
@@ -12,23 +9,20 @@ class RequestListener implements Runnable {
 
     @Override
     public void run() {
-        final SSLServerSocketFactory sslServerSocketFactory = (SSLServerSocketFactory) SSLServerSocketFactory
-                .getDefault();
-        SSLServerSocket sslServerSocket = null;
+        Transport.Listener listener;
 
         try {
-            sslServerSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(peer.getPort());
+            listener = Transport.get().listen(peer.getAddress());
         } catch (final IOException e) {
             e.printStackTrace();
+            return;
         }
 
         while (true) {
-            SSLSocket sslSocket;
-
             try {
-                sslSocket = null;
-                sslSocket = (SSLSocket) sslServerSocket.accept();
-                peer.getExecutor().execute(new RequestHandler(peer, sslSocket));
+                Transport.Connection connection = listener.accept();
+                // The connection is kept open for many requests, so it gets a reader of its own
+                Threads.start(new RequestHandler(peer, connection), "RequestHandler-" + connection);
             } catch (final IOException e) {
                 e.printStackTrace();
             }
@@ -1,15 +1,62 @@
 import java.rmi.Remote;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
 
 public interface RmiRemote extends Remote {
 
+    /**
+     * Backs up a file
+     *
+     * @return OK and the number of replicas, or fragments, stored, or ERROR and
+     *         why
+     */
     String backup(String fileName, int replicationDegree) throws IOException, NoSuchAlgorithmException;
 
+    /**
+     * Backs up every file under a directory, small ones in batches
+     *
+     * @return the result of every file, by name, as backup gives it
+     */
+    Map<String, String> backupDirectory(String directory, int replicationDegree) throws IOException;
+
+    /**
+     * Backs up many files at once, small ones in batches
+     *
+     * @return the result of every file, by name, as backup gives it
+     */
+    Map<String, String> backupFiles(List<String> fileNames, int replicationDegree) throws IOException;
+
+    /**
+     * Starts restoring a file
+     *
+     * @return id of the operation, to follow it with the methods below
+     */
     String restore(String fileName) throws IOException, NoSuchAlgorithmException;
 
+    /**
+     * @return null if there's no such operation
+     */
+    OperationStatus getOperation(String operationId) throws IOException;
+
+    /**
+     * Waits up to timeout ms for an operation to finish
+     *
+     * @return its state then, null if there's no such operation
+     */
+    OperationStatus awaitOperation(String operationId, long timeout) throws IOException;
+
+    /**
+     * Has the listener called back as the operation progresses and once it's
+     * finished
+     *
+     * @return false if there's no such operation
+     */
+    boolean subscribe(String operationId, OperationListener listener) throws IOException;
+
     String delete(String fileName) throws IOException, NoSuchAlgorithmException;
 
-    String reclaim(int space) throws IOException, NoSuchAlgorithmException;
+    String reclaim(long space) throws IOException, NoSuchAlgorithmException;
 
-}
\ No newline at end of file
+}
\ No newline at end of file
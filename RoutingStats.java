@@ -0,0 +1,61 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Number of hops the routed requests (FORWARD, RESTORE, DELETE, FINDSUCCESSOR)
+ * took to reach this peer as the owner of their key, to check that lookups
+ * grow with log N and not with N. Each peer keeps its own, a harness running
+ * several peers adds them up.
+ */
+public class RoutingStats {
+    private static final int COUNT = 0;
+    private static final int TOTAL = 1;
+    private static final int MAX = 2;
+
+    private final ConcurrentHashMap<String, AtomicLongArray> stats = new ConcurrentHashMap<String, AtomicLongArray>();
+
+    /**
+     * Records a request that reached its owner, returning the summary of its
+     * command
+     */
+    public String record(String command, int hops) {
+        AtomicLongArray counters = stats.computeIfAbsent(command, key -> new AtomicLongArray(3));
+        counters.incrementAndGet(COUNT);
+        counters.addAndGet(TOTAL, hops);
+        counters.accumulateAndGet(MAX, hops, Math::max);
+
+        return command + " routed in " + hops + " hops (" + summary(counters) + ")";
+    }
+
+    /**
+     * Adds the requests routed to another peer to these
+     */
+    public void add(RoutingStats other) {
+        other.stats.forEach((command, counters) -> {
+            AtomicLongArray total = stats.computeIfAbsent(command, key -> new AtomicLongArray(3));
+            total.addAndGet(COUNT, counters.get(COUNT));
+            total.addAndGet(TOTAL, counters.get(TOTAL));
+            total.accumulateAndGet(MAX, counters.get(MAX), Math::max);
+        });
+    }
+
+    /**
+     * Gets the summary of every command routed here so far
+     */
+    public List<String> summaries() {
+        List<String> summaries = new ArrayList<String>();
+        new TreeMap<String, AtomicLongArray>(stats)
+                .forEach((command, counters) -> summaries.add(command + ": " + summary(counters)));
+        return summaries;
+    }
+
+    private static String summary(AtomicLongArray counters) {
+        long count = counters.get(COUNT);
+
+        return count + " requests, " + String.format("%.2f", (double) counters.get(TOTAL) / Math.max(1, count))
+                + " hops on average, " + counters.get(MAX) + " at most";
+    }
+}
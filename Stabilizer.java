@@ -1,6 +1,12 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class Stabilizer implements Runnable {
 	private Peer peer;
 	private FingerFixer fingerFixer;
+	private final AtomicBoolean running = new AtomicBoolean();
+	private OutsidePeer lastSuccessor;
+	private OutsidePeer lastPredecessor;
 
 	Stabilizer(Peer peer) {
 		this.peer = peer;
@@ -8,6 +14,43 @@ public class Stabilizer implements Runnable {
 	}
 
 	public void run() {
+		// In the virtual thread mode a slow round could overlap the next one
+		if (!running.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			stabilize();
+			checkNeighbours();
+		} finally {
+			running.set(false);
+		}
+	}
+
+	/**
+	 * The ranges next to this peer change with its successor or predecessor, the
+	 * lookup cache can't trust their owners anymore
+	 */
+	private void checkNeighbours() {
+		OutsidePeer successor = peer.getSuccessor();
+		OutsidePeer predecessor = peer.getPredecessor();
+
+		invalidateChanged(lastSuccessor, successor);
+		invalidateChanged(lastPredecessor, predecessor);
+		lastSuccessor = successor;
+		lastPredecessor = predecessor;
+	}
+
+	private void invalidateChanged(OutsidePeer last, OutsidePeer current) {
+		if (last != null && !last.equals(current)) {
+			peer.getLookupCache().invalidate(last.getId());
+		}
+		if (current != null && !current.equals(last)) {
+			peer.getLookupCache().invalidate(current.getId());
+		}
+	}
+
+	private void stabilize() {
 		try {
 			System.out.println("Peer with id: " + this.peer.getId());
 			System.out.println("Successor id: " + this.peer.getSuccessor().getId());
@@ -15,24 +58,28 @@ public class Stabilizer implements Runnable {
 			this.peer.getFingerTable().print();
 			peer.getStorage().print();
 			if (peer.getSuccessor() != null) {
-				if (peer.getSuccessor().testSuccessor()) {
-					if (peer.updateToNextPeer()) {
+				// Told by the heartbeats, no request waits for a dead successor to time out
+				if (!peer.getFailureDetector().isAvailable(peer.getSuccessor())) {
+					if (!peer.failOverSuccessor()) {
 						return;
 					}
 				}
-				OutsidePeer newNextPeer = this.peer.getSuccessor().getNextSuccessor();
-				if (newNextPeer.getId().compareTo(this.peer.getId()) == 0) {
-					this.peer.setNextSuccessor(null);
-				} else {
-					this.peer.setNextSuccessor(newNextPeer);
+				peer.setSuccessorsOfSuccessor(peer.getSuccessor().getSuccessors(peer.getConnectionPool()));
+				try {
+					peer.updateTable();
+				} catch (IOException e) {
+					// Sent again next round
+					e.printStackTrace();
 				}
-				peer.updateTable();
-				peer.getSuccessor().notifySuccessor(peer.getAddress(), peer.getSuccessor().getInetSocketAddress());
+				peer.getSuccessor().notifySuccessor(peer.getConnectionPool(), peer.getAddress(), peer.getSuccessor().getInetSocketAddress());
 				peer.stabilize();
-				peer.getExecutor().execute(fingerFixer);
+				peer.getRequestExecutor().execute(fingerFixer);
 			}
+			peer.getConnectionPool().closeIdle();
+			// Changes logged since the last round survive a power loss from now on
+			peer.getStorage().sync();
 		} catch (Exception e) {
 
 		}
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,32 +1,134 @@
-import java.math.BigInteger;
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.nio.file.Path;
 import java.net.InetSocketAddress;
-import javax.net.ssl.SSLSocket;
 
 public class Storage {
-    private List<BigInteger> storedFiles = Collections.synchronizedList(new ArrayList<BigInteger>());
-    private List<BigInteger> askedFiles = Collections.synchronizedList(new ArrayList<BigInteger>());
-    private ConcurrentHashMap<BigInteger, List<OutsidePeer>> fileLocation = new ConcurrentHashMap<BigInteger, List<OutsidePeer>>();
+    private static final int MAX_PRINTED_FILES = 20;
+    // Hedging delays, until enough parts were given to know how long they take
+    private static final long DEFAULT_HEDGE_DELAY = ConnectionPool.REQUEST_TIMEOUT / 10;
+    private static final long MIN_HEDGE_DELAY = 10;
+    private static final long MEGABYTE = 1 << 20;
+
+    // Stored files and their sizes
+    private ConcurrentHashMap<Key, Long> storedFiles = new ConcurrentHashMap<Key, Long>();
+    // BodyType of the stored files that aren't plain
+    private ConcurrentHashMap<Key, Integer> storedTypes = new ConcurrentHashMap<Key, Integer>();
+    private Set<Key> askedFiles = ConcurrentHashMap.newKeySet();
+    private ConcurrentHashMap<Key, List<OutsidePeer>> fileLocation = new ConcurrentHashMap<Key, List<OutsidePeer>>();
+    private final AtomicLong bytesStored = new AtomicLong();
+    // Number of manifests that list each chunk whose location table is kept here
+    private ConcurrentHashMap<Key, Integer> chunkReferences = new ConcurrentHashMap<Key, Integer>();
+    // Version of the last change to the location table, and of the last change to each entry the
+    // successor hasn't acknowledged yet
+    private final AtomicLong locationVersion = new AtomicLong();
+    private final ConcurrentHashMap<Key, Long> changedLocations = new ConcurrentHashMap<Key, Long>();
+
+    private long availableSpace;
+    // Set once the saved state is loaded, every change is logged from then on
+    private MetadataLog log;
+    private final ReentrantLock changeLock = new ReentrantLock();
+    // Where requests to other peers are sent from, and how long their replies took
+    private final ConnectionPool connectionPool;
+    private final Latencies latencies = new Latencies();
+
+    public Storage(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+        availableSpace = -1;
+    }
 
-    private int availableSpace;
+    /**
+     * Loads the state saved in a directory and saves every change there from
+     * now on
+     */
+    public void load(Path directory) throws IOException {
+        log = MetadataLog.open(directory, this);
+    }
 
-    public Storage() {
-        availableSpace = -1;
+    /**
+     * Tells if changes can't be logged anymore, no more files are stored then
+     */
+    public boolean isReadOnly() {
+        return log != null && log.isFailed();
+    }
+
+    /**
+     * Forces the logged changes to disk
+     */
+    public void sync() {
+        if (log != null) {
+            log.sync();
+        }
+    }
+
+    /**
+     * Makes a change and logs it as one step, so the log has the changes in the
+     * order they were made
+     */
+    private void change(Runnable change, Consumer<MetadataLog> record) {
+        changeLock.lock();
+        try {
+            change.run();
+            if (log != null) {
+                record.accept(log);
+            }
+        } finally {
+            changeLock.unlock();
+        }
+    }
+
+    /**
+     * Same as change, for a change to the entry of a file in the location
+     * table, which gets a new version
+     */
+    private void changeLocation(Key fileId, Runnable change, Consumer<MetadataLog> record) {
+        change(() -> {
+            change.run();
+            changedLocations.put(fileId, locationVersion.incrementAndGet());
+        }, record);
+    }
+
+    /**
+     * Gets the version of the last change to the location table
+     */
+    public long getLocationVersion() {
+        return locationVersion.get();
+    }
+
+    /**
+     * Gets the entries of the location table changed since the successor last
+     * acknowledged them, and the version of their last change. Removed entries
+     * are in it too.
+     */
+    public Map<Key, Long> getChangedLocations() {
+        return changedLocations;
+    }
+
+    /**
+     * Forgets the changes up to a version, the successor has them
+     */
+    public void acknowledgeLocations(long version) {
+        changedLocations.values().removeIf(changed -> changed <= version);
     }
 
     /**
      * Gets available space
      */
-    public int getAvailableSpace() {
+    public long getAvailableSpace() {
         return this.availableSpace;
     }
 
@@ -34,202 +136,587 @@ public class Storage {
      * Clear file location
      */
     public void clearFileLocation() {
-        fileLocation.clear();
+        change(() -> {
+            fileLocation.keySet().forEach(fileId -> changedLocations.put(fileId, locationVersion.incrementAndGet()));
+            fileLocation.clear();
+        }, log -> log.clearLocations());
     }
 
     /**
      * Sets available space
      */
-    public void setAvailableSpace(int space) {
-        this.availableSpace = space;
+    public void setAvailableSpace(long space) {
+        change(() -> this.availableSpace = space, log -> log.space(space));
     }
 
     /**
-     * Gets stored files list
+     * Gets stored files set
      */
-    public List<BigInteger> getStoredFiles() {
-        return this.storedFiles;
+    public Set<Key> getStoredFiles() {
+        return this.storedFiles.keySet();
     }
 
     /**
      * Checks if file is backed up
      */
-    public boolean hasFileStored(BigInteger fileId) {
-        return this.storedFiles.contains(fileId);
+    public boolean hasFileStored(Key fileId) {
+        return this.storedFiles.containsKey(fileId);
+    }
+
+    /**
+     * Gets the size of a stored file, -1 if it isn't stored
+     */
+    public long getStoredFileSize(Key fileId) {
+        Long size = this.storedFiles.get(fileId);
+        return size == null ? -1 : size;
+    }
+
+    /**
+     * Gets the BodyType of a stored file
+     */
+    public int getStoredType(Key fileId) {
+        return this.storedTypes.getOrDefault(fileId, BodyType.PLAIN);
     }
 
     /**
-     * Gets asked files List
+     * Gets asked files set
      */
-    public List<BigInteger> getmyAskedFiles() {
+    public Set<Key> getmyAskedFiles() {
         return this.askedFiles;
     }
 
     /**
      * Checks if it asked the peers to backup the file
      */
-    public boolean hasAskedForFile(BigInteger fileID) {
+    public boolean hasAskedForFile(Key fileID) {
         return this.askedFiles.contains(fileID);
     }
 
     /**
      * Adds a new asked file
      */
-    public void addAskedFile(BigInteger fileId) {
-        if (!askedFiles.contains(fileId)) {
-            askedFiles.add(fileId);
-        }
+    public void addAskedFile(Key fileId) {
+        change(() -> askedFiles.add(fileId), log -> log.asked(fileId));
     }
 
-    public void removeAskedFile(BigInteger fileId) { 
-        if (askedFiles.contains(fileId)) {
-            askedFiles.remove(fileId);
-        }
+    public void removeAskedFile(Key fileId) {
+        change(() -> askedFiles.remove(fileId), log -> log.unasked(fileId));
     }
 
     /**
-     * Adds a new stored file
+     * Adds a new stored file of the given size in bytes
      */
-    public void addStoredFile(BigInteger fileId) {
-        this.storedFiles.add(fileId);
+    public void addStoredFile(Key fileId, long size) {
+        addStoredFile(fileId, size, BodyType.PLAIN);
     }
 
-    public void removeStoredFile(BigInteger fileId) {
-        this.storedFiles.remove(fileId);
+    /**
+     * Adds a new stored file of the given size in bytes and BodyType
+     */
+    public void addStoredFile(Key fileId, long size, int type) {
+        change(() -> {
+            Long previous = this.storedFiles.put(fileId, size);
+            bytesStored.addAndGet(previous == null ? size : size - previous);
+            if (type != BodyType.PLAIN) {
+                this.storedTypes.put(fileId, type);
+            } else {
+                this.storedTypes.remove(fileId);
+            }
+        }, log -> log.stored(fileId, size, type));
+    }
+
+    public void removeStoredFile(Key fileId) {
+        change(() -> {
+            this.storedTypes.remove(fileId);
+            Long size = this.storedFiles.remove(fileId);
+            if (size != null) {
+                bytesStored.addAndGet(-size);
+            }
+        }, log -> log.unstored(fileId));
     }
 
     /**
      * Adds file id to hash map
      */
-    public void initializeFileLocation(BigInteger fileId) {
-        if (!this.fileLocation.containsKey(fileId)) {
-            this.fileLocation.put(fileId, Collections.synchronizedList(new ArrayList<OutsidePeer>()));
-        }
+    public void initializeFileLocation(Key fileId) {
+        changeLocation(fileId, () -> {
+            if (!this.fileLocation.containsKey(fileId)) {
+                this.fileLocation.put(fileId, Collections.synchronizedList(new ArrayList<OutsidePeer>()));
+            }
+        }, log -> log.locations(fileId));
     }
 
-    public ConcurrentHashMap<BigInteger, List<OutsidePeer>> getFileLocations() {
+    public ConcurrentHashMap<Key, List<OutsidePeer>> getFileLocations() {
         return fileLocation;
     }
 
     /**
      * Adds file id to hash map
      */
-    public void addFileLocation(BigInteger fileId, OutsidePeer outsidePeer) {
-        if (this.fileLocation.containsKey(fileId)) {
-            if (!this.fileLocation.get(fileId).contains(outsidePeer)) {
-                this.fileLocation.get(fileId).add(outsidePeer);
+    public void addFileLocation(Key fileId, OutsidePeer outsidePeer) {
+        changeLocation(fileId, () -> {
+            if (this.fileLocation.containsKey(fileId)) {
+                if (!this.fileLocation.get(fileId).contains(outsidePeer)) {
+                    this.fileLocation.get(fileId).add(outsidePeer);
+                }
+            } else {
+                List<OutsidePeer> list = Collections.synchronizedList(new ArrayList<OutsidePeer>());
+                list.add(outsidePeer);
+                this.fileLocation.put(fileId, list);
             }
-        } else {
-            List<OutsidePeer> list = Collections.synchronizedList(new ArrayList<OutsidePeer>());
-            list.add(outsidePeer);
-            this.fileLocation.put(fileId, list);
-        }
+        }, log -> log.location(fileId, outsidePeer));
     }
 
     /**
      * Adds file id to hash map
      */
-    public void removeFileLocation(BigInteger fileId) {
-        if (this.fileLocation.containsKey(fileId)) {
-            this.fileLocation.remove(fileId);
+    public void removeFileLocation(Key fileId) {
+        changeLocation(fileId, () -> this.fileLocation.remove(fileId), log -> log.noLocations(fileId));
+    }
+
+    /**
+     * Makes the holders of a file the given ones, as the owner's table has
+     * them. Holders are added before the others are removed, so the entry is
+     * never empty in between.
+     */
+    public void setFileLocations(Key fileId, List<OutsidePeer> holders) {
+        List<OutsidePeer> current = fileLocation.get(fileId);
+        List<OutsidePeer> previous = current == null ? new ArrayList<OutsidePeer>()
+                : new ArrayList<OutsidePeer>(current);
+        if (current == null) {
+            initializeFileLocation(fileId);
+        }
+
+        for (OutsidePeer holder : holders) {
+            if (!previous.contains(holder)) {
+                addFileLocation(fileId, holder);
+            }
+        }
+        for (OutsidePeer holder : previous) {
+            if (!holders.contains(holder)) {
+                InetSocketAddress address = holder.getInetSocketAddress();
+                removePeerLocation(fileId, address.getAddress().getHostAddress(), address.getPort());
+            }
         }
     }
 
-    public boolean hasFileLocation(BigInteger fileID) {
+    public boolean hasFileLocation(Key fileID) {
         return this.fileLocation.containsKey(fileID);
     }
 
-    public void removePeerLocation(BigInteger fileId, String ipAddress, int port) {
-        OutsidePeer peer = new OutsidePeer(new InetSocketAddress(ipAddress, port));
+    public ConcurrentHashMap<Key, Integer> getChunkReferences() {
+        return chunkReferences;
+    }
+
+    /**
+     * Gets the number of manifests that list a chunk, 0 if it isn't known here
+     */
+    public int getChunkReferences(Key chunkId) {
+        return chunkReferences.getOrDefault(chunkId, 0);
+    }
 
-        if (fileLocation.containsKey(fileId)) {
-            List<OutsidePeer> peers = fileLocation.get(fileId);
-            if (peers.contains(peer)) {
-                peers.remove(peer);
-                fileLocation.remove(fileId);
-                fileLocation.put(fileId, peers);
+    /**
+     * Sets the number of manifests that list a chunk, 0 forgets the chunk
+     */
+    public void setChunkReferences(Key chunkId, int references) {
+        changeLocation(chunkId, () -> {
+            if (references > 0) {
+                chunkReferences.put(chunkId, references);
+            } else {
+                chunkReferences.remove(chunkId);
             }
+        }, log -> log.references(chunkId, references));
+    }
+
+    /**
+     * Counts one more manifest that lists a chunk, and tells in the same step
+     * if the chunk is backed up, so its last reference can't be removed and
+     * its entry dropped in between
+     *
+     * @return "HAVE" if the chunk has an entry in the location table, "NEW" if
+     *         it must be backed up
+     */
+    public String addChunkReference(Key chunkId) {
+        changeLock.lock();
+        try {
+            setChunkReferences(chunkId, getChunkReferences(chunkId) + 1);
+            return hasFileLocation(chunkId) ? "HAVE" : "NEW";
+        } finally {
+            changeLock.unlock();
         }
     }
 
-    public boolean getFile(BigInteger fileId, String ipAddress, int port) throws IOException {
-        List<OutsidePeer> peers = fileLocation.get(fileId);
-        String message = new String();
-        String response = new String();
-        SSLSocket sslSocket = null;
-
-        for (int i = 0; i < peers.size(); i++) {
-            InetSocketAddress socket = peers.get(i).getInetSocketAddress();
-            // FINDFILE file_key ip_address port
-            message = "FINDFILE " + fileId + " " + ipAddress + " " + port + "\n";
-            sslSocket = Messenger.sendMessage(message, socket);
-            BufferedReader in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
-            if (sslSocket.isInputShutdown()) {
-                continue;
+    /**
+     * Counts one less manifest that lists a chunk. The last one drops the
+     * chunk's entry from the location table in the same step, so a reference
+     * added right after has the chunk backed up again instead of counting on
+     * the copies about to be deleted.
+     *
+     * @return the holders of the chunk if that was its last reference, null if
+     *         it has references left or isn't known here
+     */
+    public List<OutsidePeer> removeChunkReference(Key chunkId) {
+        changeLock.lock();
+        try {
+            int references = getChunkReferences(chunkId);
+            if (references == 0) {
+                return null;
+            }
+            setChunkReferences(chunkId, references - 1);
+            if (references > 1) {
+                return null;
             }
-            response = in.readLine();
-            in.close();
-            if (response.equals("SENT " + fileId)) {
-                return true;
+
+            List<OutsidePeer> holders = fileLocation.get(chunkId);
+            holders = holders == null ? new ArrayList<OutsidePeer>() : new ArrayList<OutsidePeer>(holders);
+            removeFileLocation(chunkId);
+            return holders;
+        } finally {
+            changeLock.unlock();
+        }
+    }
+
+    public void removePeerLocation(Key fileId, String ipAddress, int port) {
+        OutsidePeer peer = new OutsidePeer(new InetSocketAddress(ipAddress, port));
+
+        changeLocation(fileId, () -> {
+            if (fileLocation.containsKey(fileId)) {
+                List<OutsidePeer> peers = fileLocation.get(fileId);
+                if (peers.contains(peer)) {
+                    peers.remove(peer);
+                    fileLocation.remove(fileId);
+                    fileLocation.put(fileId, peers);
+                }
             }
+        }, log -> log.unlocation(fileId, peer.getInetSocketAddress()));
+    }
+
+    /**
+     * Asks every holder of a file for a part of it at once, so the restoring
+     * peer gets it from all of them. A part that takes longer than most did
+     * lately is also asked for to a holder that already gave its own, the
+     * first to give it wins and the other is cancelled. The parts of the
+     * holders that fail are asked for again, one at a time, to the holders
+     * that didn't. Fragments come whole, from the first k holders, and spare
+     * holders are only asked for theirs if some of those are late or fail.
+     * <p>
+     * Returns once every holder is asked: the holders give the parts straight
+     * to the restoring peer, which follows them as they arrive, and their
+     * replies are waited for on another thread.
+     *
+     * @return whether every part was given, once the holders replied, null if
+     *         no holder is known, e.g. the file was just deleted
+     */
+    public CompletableFuture<Boolean> getFile(Key fileId, String ipAddress, int port) {
+        // Read once, a delete can remove the entry at any time
+        List<OutsidePeer> holders = fileLocation.get(fileId);
+        if (holders == null) {
+            return null;
+        }
+        List<OutsidePeer> peers = new ArrayList<OutsidePeer>(holders);
+        if (peers.isEmpty()) {
+            return null;
+        }
+        int parts = peers.size();
+        long asked = System.currentTimeMillis();
+        List<CompletableFuture<String>> replies = new ArrayList<CompletableFuture<String>>();
+        for (int part = 0; part < parts; part++) {
+            // FINDFILE <file_key> <ip_address> <port> [<part> <parts>]
+            String message = "FINDFILE " + fileId + " " + ipAddress + " " + port
+                    + (parts > 1 ? " " + part + " " + parts : "") + "\n";
+            replies.add(askFor(message, peers.get(part)));
         }
 
-        return false;
+        CompletableFuture<Boolean> given = new CompletableFuture<Boolean>();
+        Threads.start(() -> given.complete(awaitParts(fileId, ipAddress, port, asked, peers, replies)),
+                "GetFile-" + fileId);
+        return given;
     }
 
-    public boolean sendDelete(BigInteger fileId) throws IOException {
-        List<OutsidePeer> peers = fileLocation.get(fileId);
-        String message = new String();
-        if(peers != null){
-            for (int i = 0; i < peers.size(); i++) {
-                InetSocketAddress socket = peers.get(i).getInetSocketAddress();
-                // FINDFILE file_key ip_address port
-                message = "DELETE " + fileId + "\n";
-                Messenger.sendMessage(message, socket);
+    /**
+     * Waits for the holders to give the parts they were asked for, hedging the
+     * late ones and asking for the failed ones again
+     *
+     * @return whether every part was given
+     */
+    private boolean awaitParts(Key fileId, String ipAddress, int port, long asked, List<OutsidePeer> peers,
+            List<CompletableFuture<String>> replies) {
+        int parts = peers.size();
+        List<OutsidePeer> hedgeHolders = new ArrayList<OutsidePeer>(Collections.nCopies(parts, (OutsidePeer) null));
+        List<CompletableFuture<String>> hedges = hedge(fileId, ipAddress, port, asked, peers, replies,
+                hedgeHolders);
+
+        List<Integer> failedParts = new ArrayList<Integer>();
+        List<OutsidePeer> givers = new ArrayList<OutsidePeer>();
+        List<OutsidePeer> spares = new ArrayList<OutsidePeer>();
+        int sent = 0;
+        int fragmentsNeeded = 0;
+        for (int part = 0; part < parts; part++) {
+            CompletableFuture<String> reply = replies.get(part);
+            CompletableFuture<String> hedge = hedges.get(part);
+            String[] response;
+            try {
+                // SENT <file_key> <bytes> [<fragments_needed>] or SPARE <file_key> <bytes> <fragments_needed>
+                response = ConnectionPool.await(hedge == null ? reply : firstSent(reply, hedge),
+                        ConnectionPool.REQUEST_TIMEOUT).split(" ");
+            } catch (IOException e) {
+                response = new String[] { "NO" };
+            }
+
+            if (response.length > 3) {
+                fragmentsNeeded = Integer.parseInt(response[3]);
+            }
+            if (response[0].equals("SENT")) {
+                sent++;
+                // The holder that lost the race stops giving the part
+                if (hedge == null) {
+                    givers.add(peers.get(part));
+                } else if (isSent(reply, 0)) {
+                    givers.add(peers.get(part));
+                    cancel(fileId, ipAddress, port, part, hedgeHolders.get(part), hedge);
+                } else {
+                    cancel(fileId, ipAddress, port, part, peers.get(part), reply);
+                }
+            } else if (response[0].equals("SPARE")) {
+                spares.add(peers.get(part));
+            } else {
+                failedParts.add(part);
             }
         }
 
-        return true;
+        if (fragmentsNeeded > 0) {
+            // FINDFILE <file_key> <ip_address> <port>
+            String message = "FINDFILE " + fileId + " " + ipAddress + " " + port + "\n";
+            for (int i = 0; i < spares.size() && sent < fragmentsNeeded; i++) {
+                if (isSent(askFor(message, spares.get(i)), ConnectionPool.REQUEST_TIMEOUT)) {
+                    sent++;
+                }
+            }
+            return sent >= fragmentsNeeded;
+        }
+
+        for (int part : failedParts) {
+            // FINDFILE <file_key> <ip_address> <port> <part> <parts>
+            String message = "FINDFILE " + fileId + " " + ipAddress + " " + port + " " + part + " " + parts + "\n";
+            boolean given = false;
+            for (int i = 0; i < givers.size() && !given; i++) {
+                given = isSent(askFor(message, givers.get(i)), ConnectionPool.REQUEST_TIMEOUT);
+            }
+            if (!given) {
+                return false;
+            }
+        }
+        return !givers.isEmpty();
     }
 
-    public int spaceOccupied(String path) {
-        int counter = 0;
+    /**
+     * Waits for the parts asked for as long as most parts took lately, for
+     * their size, then asks for the ones still missing to the holders that
+     * already answered: another range to one that gave its own, another
+     * fragment to a spare. The parts are all about the size the first holder
+     * to answer tells, nobody could be asked again before that anyway.
+     *
+     * @return the second request of every part, null for the ones on time;
+     *         the holders asked for ranges are set in hedgeHolders
+     */
+    private List<CompletableFuture<String>> hedge(Key fileId, String ipAddress, int port, long asked,
+            List<OutsidePeer> peers, List<CompletableFuture<String>> replies, List<OutsidePeer> hedgeHolders) {
+        List<CompletableFuture<String>> hedges = new ArrayList<CompletableFuture<String>>(
+                Collections.nCopies(replies.size(), (CompletableFuture<String>) null));
+        if (Config.HEDGE_PERCENTILE <= 0 || replies.size() < 2) {
+            return hedges;
+        }
+
+        long delay = latencies.percentile("FINDFILE", Config.HEDGE_PERCENTILE);
+        try {
+            long bytes = firstPartBytes(replies).get(ConnectionPool.REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (bytes < 0) {
+                return hedges;
+            }
+            delay = delay < 0 ? DEFAULT_HEDGE_DELAY
+                    : Math.max(MIN_HEDGE_DELAY, delay * Math.max(bytes, Helper.CHUNK_SIZE) / MEGABYTE);
+            long wait = Math.max(0, asked + delay - System.currentTimeMillis());
+            CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).get(wait, TimeUnit.MILLISECONDS);
+            return hedges;
+        } catch (TimeoutException | ExecutionException e) {
+            // Some are late, or failed and will be asked for again anyway
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return hedges;
+        }
+
+        List<OutsidePeer> givers = new ArrayList<OutsidePeer>();
+        List<OutsidePeer> spares = new ArrayList<OutsidePeer>();
+        for (int part = 0; part < replies.size(); part++) {
+            String reply = replies.get(part).exceptionally(e -> "").getNow("");
+            if (reply.startsWith("SENT") && reply.split(" ").length == 3) {
+                givers.add(peers.get(part));
+            } else if (reply.startsWith("SPARE")) {
+                spares.add(peers.get(part));
+            }
+        }
 
-        for (BigInteger hash : storedFiles) {
-            String filename = path + "/" + hash;
+        int next = 0;
+        for (int part = 0; part < replies.size(); part++) {
+            if (replies.get(part).isDone()) {
+                continue;
+            }
 
-            File file = new File(filename);
-            if (!file.exists() || !file.isFile()) {
+            if (!spares.isEmpty()) {
+                // FINDFILE <file_key> <ip_address> <port>
+                String message = "FINDFILE " + fileId + " " + ipAddress + " " + port + "\n";
+                hedges.set(part, askFor(message, spares.remove(0)));
+            } else if (!givers.isEmpty()) {
+                // FINDFILE <file_key> <ip_address> <port> <part> <parts>
+                String message = "FINDFILE " + fileId + " " + ipAddress + " " + port + " " + part + " "
+                        + replies.size() + "\n";
+                hedgeHolders.set(part, givers.get(next++ % givers.size()));
+                hedges.set(part, askFor(message, hedgeHolders.get(part)));
+            } else {
                 continue;
             }
+            System.out.println("Part " + part + " of " + fileId + " is late after " + delay + "ms, asked again");
+        }
+        return hedges;
+    }
+
+    /**
+     * Sends a FINDFILE, timing the reply per MB given. Parts smaller than a
+     * chunk count as one, their time is mostly the round trip.
+     */
+    private CompletableFuture<String> askFor(String message, OutsidePeer holder) {
+        long start = System.currentTimeMillis();
+        CompletableFuture<String> reply = Messenger.sendMessage(connectionPool, message,
+                holder.getInetSocketAddress());
+        reply.thenAccept(response -> {
+            long bytes = partBytes(response);
+            if (response.startsWith("SENT") && bytes >= 0) {
+                latencies.record("FINDFILE",
+                        (System.currentTimeMillis() - start) * MEGABYTE / Math.max(bytes, Helper.CHUNK_SIZE));
+            }
+        });
+        return reply;
+    }
 
-            counter += file.length();
+    /**
+     * Gets the bytes of the part a SENT or SPARE reply tells, -1 for any other
+     * reply
+     */
+    private static long partBytes(String reply) {
+        String[] response = reply.split(" ");
+        return (response[0].equals("SENT") || response[0].equals("SPARE")) && response.length > 2
+                ? Long.parseLong(response[2])
+                : -1;
+    }
+
+    /**
+     * Completes with the bytes of the part the first of the replies that tells
+     * them, or with -1 if none does
+     */
+    private static CompletableFuture<Long> firstPartBytes(List<CompletableFuture<String>> replies) {
+        CompletableFuture<Long> bytes = new CompletableFuture<Long>();
+        AtomicInteger pending = new AtomicInteger(replies.size());
+        for (CompletableFuture<String> reply : replies) {
+            reply.whenComplete((response, e) -> {
+                long partBytes = response != null ? partBytes(response) : -1;
+                if (partBytes >= 0) {
+                    bytes.complete(partBytes);
+                } else if (pending.decrementAndGet() == 0) {
+                    bytes.complete(-1L);
+                }
+            });
         }
+        return bytes;
+    }
 
-        System.out.println("Space occupied: " + counter);
-        return counter;
+    private static boolean isSent(CompletableFuture<String> reply, long timeout) {
+        try {
+            return ConnectionPool.await(reply, timeout).startsWith("SENT");
+        } catch (IOException e) {
+            return false;
+        }
     }
 
-    public boolean checkIfOverload(String path) {
-        return this.availableSpace >= this.spaceOccupied(path) || storedFiles.size() == 0;
+    /**
+     * Cancels a range still being given, fragments are given whole
+     */
+    private void cancel(Key fileId, String ipAddress, int port, int part, OutsidePeer holder,
+            CompletableFuture<String> reply) {
+        if (holder != null && !reply.isDone()) {
+            // CANCEL <file_key> <ip_address> <port> <part>
+            Messenger.sendMessage(connectionPool, "CANCEL " + fileId + " " + ipAddress + " " + port + " " + part
+                    + "\n", holder.getInetSocketAddress());
+        }
     }
 
     /**
-     * Chooses a random chunk from the stored chunks
+     * Completes with the first of two replies that says the part was sent, or
+     * with the last one if neither does
      */
-    public BigInteger randomFile() {
-        Random rand = new Random();
-        int randomNumber = rand.nextInt(storedFiles.size());
+    private static CompletableFuture<String> firstSent(CompletableFuture<String> first,
+            CompletableFuture<String> second) {
+        CompletableFuture<String> sent = new CompletableFuture<String>();
+        AtomicInteger pending = new AtomicInteger(2);
+        for (CompletableFuture<String> reply : Arrays.asList(first, second)) {
+            reply.whenComplete((response, e) -> {
+                if (response != null && response.startsWith("SENT")) {
+                    sent.complete(response);
+                } else if (pending.decrementAndGet() == 0) {
+                    if (response != null) {
+                        sent.complete(response);
+                    } else {
+                        sent.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+        return sent;
+    }
 
-        BigInteger hash = storedFiles.get(randomNumber);
+    public boolean sendDelete(Key fileId) throws IOException {
+        return sendDelete(fileId, fileLocation.get(fileId));
+    }
 
-        return hash;
+    /**
+     * Tells the given holders of a file to delete it
+     */
+    public boolean sendDelete(Key fileId, List<OutsidePeer> peers) throws IOException {
+        String message = new String();
+        if(peers != null){
+            for (int i = 0; i < peers.size(); i++) {
+                InetSocketAddress socket = peers.get(i).getInetSocketAddress();
+                // FINDFILE file_key ip_address port
+                message = "DELETE " + fileId + "\n";
+                Messenger.sendMessage(connectionPool, message, socket);
+            }
+        }
+
+        return true;
     }
 
+    /**
+     * Gets the bytes taken by the stored files, kept up to date as files are
+     * stored and removed
+     */
+    public long spaceOccupied() {
+        return bytesStored.get();
+    }
+
+    public boolean checkIfOverload() {
+        return this.availableSpace >= spaceOccupied() || storedFiles.isEmpty();
+    }
+
+    /**
+     * Chooses a stored file to give up. Keys are hashes, so the set's order is
+     * already random.
+     */
+    public Key randomFile() {
+        return storedFiles.keySet().iterator().next();
+    }
 
     public void print() {
         System.out.println("FL----------------------- ");
-        for (BigInteger key : fileLocation.keySet()) {
+        for (Key key : fileLocation.keySet()) {
             System.out.println("File: " + key);
             for (OutsidePeer peerKey : fileLocation.get(key)) {
                 System.out.println("\tPeer: " + peerKey.getId());
@@ -237,9 +724,13 @@ public class Storage {
         }
 
         System.out.println("SF----------------------- ");
-        System.out.println(Arrays.toString(storedFiles.toArray()));
+        System.out.println(storedFiles.size() + " files, " + bytesStored.get() + " bytes");
+        if (storedFiles.size() <= MAX_PRINTED_FILES) {
+            System.out.println(Arrays.toString(storedFiles.keySet().toArray()));
+        }
         System.out.println("AF----------------------- ");
-        System.out.println(Arrays.toString(askedFiles.toArray()));
+        System.out.println(askedFiles.size() <= MAX_PRINTED_FILES ? Arrays.toString(askedFiles.toArray())
+                : askedFiles.size() + " files");
         System.out.println("------------------------- ");
     }
 }
@@ -0,0 +1,60 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads that do blocking socket work, as virtual threads when
+ * the "virtual" mode is selected and the JVM has them (Java 21+)
+ */
+public class Threads {
+    private static final boolean VIRTUAL = Config.isVirtualThreads() && virtualThreadsAvailable();
+
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Checks if this JVM supports virtual threads
+     */
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Executor that runs every task on a new virtual thread
+     */
+    public static ExecutorService newVirtualExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21", e);
+        }
+    }
+
+    /**
+     * Starts a thread that lives as long as a connection
+     */
+    public static Thread start(Runnable task, String name) {
+        if (VIRTUAL) {
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+                return (Thread) builderClass.getMethod("start", Runnable.class).invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
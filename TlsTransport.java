@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Peers connected with TLS over TCP, with the keystore and trust store set by
+ * Peer.setJSSEProperties
+ */
+public class TlsTransport extends Transport {
+    private static final int CONNECT_TIMEOUT = 2000;
+
+    private static class TlsConnection implements Connection {
+        private final SSLSocket sslSocket;
+
+        TlsConnection(SSLSocket sslSocket) {
+            this.sslSocket = sslSocket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return sslSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return sslSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() {
+            try {
+                sslSocket.close();
+            } catch (IOException e) {
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(sslSocket.getInetAddress());
+        }
+    }
+
+    @Override
+    public Connection connect(InetSocketAddress local, InetSocketAddress address, String channel)
+            throws IOException {
+        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket();
+        try {
+            sslSocket.connect(address, CONNECT_TIMEOUT);
+            sslSocket.setTcpNoDelay(true);
+            sslSocket.setKeepAlive(true);
+            sslSocket.startHandshake();
+        } catch (IOException e) {
+            sslSocket.close();
+            throw e;
+        }
+        return new TlsConnection(sslSocket);
+    }
+
+    @Override
+    public Listener listen(InetSocketAddress address) throws IOException {
+        final SSLServerSocketFactory sslServerSocketFactory = (SSLServerSocketFactory) SSLServerSocketFactory
+                .getDefault();
+        // Every interface, as before, the address is only the peer's id
+        final SSLServerSocket sslServerSocket = (SSLServerSocket) sslServerSocketFactory
+                .createServerSocket(address.getPort());
+
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException {
+                return new TlsConnection((SSLSocket) sslServerSocket.accept());
+            }
+
+            @Override
+            public void close() {
+                try {
+                    sslServerSocket.close();
+                } catch (IOException e) {
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean isSocketBased() {
+        return true;
+    }
+}
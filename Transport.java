@@ -0,0 +1,76 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * How peers connect to each other: TLS over TCP, or in-memory pipes between
+ * peers of the same JVM that can be given latency, bandwidth limits and loss
+ * to simulate a ring on one machine. Every peer of a JVM uses the same one.
+ */
+public abstract class Transport {
+    private static volatile Transport transport = Config.isMemoryTransport() ? new MemoryTransport() : new TlsTransport();
+
+    /**
+     * Two-way byte stream between two peers, like a socket
+     */
+    public interface Connection extends Closeable {
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Closes both directions, the other side reads the end of the stream
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Takes the connections made to a peer's address
+     */
+    public interface Listener extends Closeable {
+        /**
+         * Waits for the next connection
+         */
+        Connection accept() throws IOException;
+
+        @Override
+        void close();
+    }
+
+    public static Transport get() {
+        return transport;
+    }
+
+    /**
+     * Replaces the transport, before any peer of this JVM is started
+     */
+    public static void set(Transport newTransport) {
+        transport = newTransport;
+    }
+
+    /**
+     * Opens a connection to the peer listening at address
+     *
+     * @param local   address of the peer connecting, null if it isn't one
+     * @param channel which of the connections from local to address this is,
+     *                the same in every run
+     */
+    public abstract Connection connect(InetSocketAddress local, InetSocketAddress address, String channel)
+            throws IOException;
+
+    /**
+     * Starts taking the connections made to address
+     */
+    public abstract Listener listen(InetSocketAddress address) throws IOException;
+
+    /**
+     * Checks if the peers can be served by the non-blocking server, which
+     * reads TLS off real sockets
+     */
+    public boolean isSocketBased() {
+        return false;
+    }
+}